@@ -0,0 +1,178 @@
+package extensions;
+
+import org.neo4j.graphalgo.HarmonicCentralityProc;
+import org.neo4j.graphalgo.PageRankProc;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.kernel.api.exceptions.KernelException;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Times the pagerank and closeness procedures against the algo.* calls they replace, with the same Cypher projection
+those were made with, on a generated graph shaped like ours: individuals each participating in a few groups, with
+group sizes heavily skewed. Each call writes its scores, as in use (the native procedures return nothing, and have
+run by the time their result is closed). The algo.* calls load their graph through Cypher every time, so before each
+call a relationship is added and removed again, which retires the native procedures' cached projection and has them
+build theirs every time too. Once the timing is done, both sides of the comparison run once more and the scores they
+wrote are checked against each other, failing the trial if they disagree
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class CentralityBenchmark {
+
+    private static final int PARTICIPATIONS_PER_INDIVIDUAL = 5;
+    private static final int INDIVIDUALS_PER_GROUP = 50;
+
+    private static final String CYPHER_PROJECTION =
+            " 'MATCH (n) WHERE EXISTS( (n)-[:PARTICIPATES]-() ) RETURN id(n) as id'," +
+            " 'MATCH (n1)-[:PARTICIPATES]->(n2) RETURN id(n1) as source, id(n2) as target UNION" +
+            "  MATCH (n1)-[:PARTICIPATES]->(n2) RETURN id(n2) as source, id(n1) as target',";
+
+    // relative: algo.pageRank settles a little short of the fixed point the definition gives (about 0.2% under on a
+    // five entity graph, after 100 iterations or 1000, and up to 1% on the million participation one), where
+    // pagerank.write solves it to its tolerance
+    private static final double PAGERANK_TOLERANCE = 2e-2;
+    private static final double CLOSENESS_TOLERANCE = 1e-9;
+
+    private static final RelationshipType TOUCHES = RelationshipType.withName("BENCHMARK_TOUCHES");
+
+    @Param({ "1000000", "5000000", "10000000" })
+    public int participations;
+
+    private File storeDir;
+    private GraphDatabaseService db;
+
+    @Setup(Level.Trial)
+    public void createGraph() throws IOException, KernelException {
+        storeDir = Files.createTempDirectory("centrality-benchmark").toFile();
+        final int individuals = participations / PARTICIPATIONS_PER_INDIVIDUAL;
+        final int groups = individuals / INDIVIDUALS_PER_GROUP;
+        final Random random = new Random(42);
+
+        BatchInserter inserter = BatchInserters.inserter(storeDir);
+        try {
+            long[] groupIds = new long[groups];
+            for (int group = 0; group < groups; group++) {
+                groupIds[group] = inserter.createNode(Collections.singletonMap("actorType", "GROUP"), Label.label("Actor"));
+            }
+            RelationshipType participates = RelationshipType.withName("PARTICIPATES");
+            for (int individual = 0; individual < individuals; individual++) {
+                long individualId = inserter.createNode(Collections.singletonMap("actorType", "INDIVIDUAL"), Label.label("Actor"));
+                for (int participation = 0; participation < PARTICIPATIONS_PER_INDIVIDUAL; participation++) {
+                    // squaring a uniform draw puts most participations in the first few groups
+                    double draw = random.nextDouble();
+                    inserter.createRelationship(individualId, groupIds[(int) (groups * draw * draw)], participates, null);
+                }
+            }
+        } finally {
+            inserter.shutdown();
+        }
+
+        // procedures registered directly are given full access, with no need to allow them in the config
+        db = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+        Procedures procedures = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class);
+        procedures.registerProcedure(Pagerank.class);
+        procedures.registerProcedure(Closeness.class);
+        procedures.registerProcedure(PageRankProc.class);
+        procedures.registerProcedure(HarmonicCentralityProc.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void invalidateProjection() {
+        long touchId;
+        try (Transaction tx = db.beginTx()) {
+            touchId = db.getNodeById(0).createRelationshipTo(db.getNodeById(1), TOUCHES).getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.getRelationshipById(touchId).delete();
+            tx.success();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void checkScoresAndDeleteGraph(BenchmarkParams params) throws IOException {
+        try {
+            if (params.getBenchmark().endsWith("Pagerank")) {
+                algoPagerank();
+                nativePagerank();
+                compareScores("algoPagerank", ExtensionUtils.pagerankRaw, PAGERANK_TOLERANCE);
+            } else {
+                algoCloseness();
+                nativeCloseness();
+                compareScores("algoCloseness", ExtensionUtils.closenessRaw, CLOSENESS_TOLERANCE);
+            }
+        } finally {
+            db.shutdown();
+            FileUtils.deleteRecursively(storeDir);
+        }
+    }
+
+    private void compareScores(String algoProperty, String nativeProperty, double tolerance) {
+        long compared = 0, differing = 0;
+        double maxDifference = 0.0;
+        try (Result scores = db.execute("MATCH (n) WHERE EXISTS(n." + algoProperty + ") OR EXISTS(n." + nativeProperty + ")" +
+                " RETURN n." + algoProperty + " AS algo, n." + nativeProperty + " AS native")) {
+            while (scores.hasNext()) {
+                Map<String, Object> row = scores.next();
+                Number algo = (Number) row.get("algo"), ours = (Number) row.get("native");
+                double difference = algo == null || ours == null ? Double.POSITIVE_INFINITY :
+                        Math.abs(algo.doubleValue() - ours.doubleValue()) /
+                                Math.max(Math.abs(algo.doubleValue()), Math.abs(ours.doubleValue()));
+                compared++;
+                if (difference > tolerance) differing++;
+                maxDifference = Math.max(maxDifference, difference);
+            }
+        }
+        System.out.println(nativeProperty + " against " + algoProperty + ": " + compared + " entities, " + differing +
+                " differing by more than " + tolerance + " relative, largest " + maxDifference);
+        if (compared == 0 || differing > 0) {
+            throw new IllegalStateException(nativeProperty + " does not match " + algoProperty);
+        }
+    }
+
+    @Benchmark
+    public String algoPagerank() {
+        return db.execute("CALL algo.pageRank(" + CYPHER_PROJECTION +
+                " {graph:'cypher', iterations:100, dampingFactor:0.85, write: true, writeProperty:'algoPagerank'})").resultAsString();
+    }
+
+    @Benchmark
+    public void nativePagerank() {
+        db.execute("CALL pagerank.write()").close();
+    }
+
+    @Benchmark
+    public String algoCloseness() {
+        return db.execute("CALL algo.closeness.harmonic(" + CYPHER_PROJECTION +
+                " {graph:'cypher', write: true, writeProperty:'algoCloseness'})").resultAsString();
+    }
+
+    @Benchmark
+    public void nativeCloseness() {
+        db.execute("CALL closeness.write()").close();
+    }
+
+}
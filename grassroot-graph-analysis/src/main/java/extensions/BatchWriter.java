@@ -0,0 +1,131 @@
+package extensions;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+Sets properties on many nodes, or removes them (a null value), in batches of a bounded size, each committed in a
+transaction of its own from a thread of its own, one batch filling while the last commits, so holding at most two.
+If the calling transaction already has changes, whose locks that thread would wait on, writes go straight into it
+ */
+class BatchWriter implements AutoCloseable {
+
+    static final int DEFAULT_BATCH_SIZE = 10000;
+
+    private final GraphDatabaseAPI database;
+    private final int batchSize;
+    private final boolean ownTransactions;
+    private final ExecutorService executor;
+
+    private long[] nodeIds;
+    private String[] properties;
+    private Object[] values;
+    private long[] spareNodeIds;
+    private String[] spareProperties;
+    private Object[] spareValues;
+    private int size;
+    private Future<?> pending;
+
+    BatchWriter(GraphDatabaseAPI database, int batchSize, boolean ownTransactions) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.ownTransactions = ownTransactions;
+        this.executor = ownTransactions ? Executors.newSingleThreadExecutor() : null;
+        if (ownTransactions) {
+            nodeIds = new long[batchSize];
+            properties = new String[batchSize];
+            values = new Object[batchSize];
+            spareNodeIds = new long[batchSize];
+            spareProperties = new String[batchSize];
+            spareValues = new Object[batchSize];
+        }
+    }
+
+    static BatchWriter open(GraphDatabaseAPI database, KernelTransaction tx) {
+        return new BatchWriter(database, DEFAULT_BATCH_SIZE, canCommitSeparately(tx));
+    }
+
+    static boolean canCommitSeparately(KernelTransaction tx) {
+        return !(tx instanceof TxStateHolder) || !((TxStateHolder) tx).hasTxStateWithChanges();
+    }
+
+    void set(Node node, String property, Object value) {
+        if (ownTransactions) {
+            set(node.getId(), property, value);
+        } else if (value == null) {
+            node.removeProperty(property);
+        } else {
+            node.setProperty(property, value);
+        }
+    }
+
+    void set(long nodeId, String property, Object value) {
+        if (!ownTransactions) {
+            set(database.getNodeById(nodeId), property, value);
+            return;
+        }
+        nodeIds[size] = nodeId;
+        properties[size] = property;
+        values[size++] = value;
+        if (size == batchSize) flush();
+    }
+
+    private void flush() {
+        awaitPending();
+        final long[] batchNodeIds = nodeIds;
+        final String[] batchProperties = properties;
+        final Object[] batchValues = values;
+        final int batchLength = size;
+        pending = executor.submit(() -> {
+            try (Transaction transaction = database.beginTx()) {
+                for (int i = 0; i < batchLength; i++) {
+                    Node node = database.getNodeById(batchNodeIds[i]);
+                    if (batchValues[i] == null) node.removeProperty(batchProperties[i]);
+                    else node.setProperty(batchProperties[i], batchValues[i]);
+                }
+                transaction.success();
+            }
+        });
+        nodeIds = spareNodeIds;
+        properties = spareProperties;
+        values = spareValues;
+        spareNodeIds = batchNodeIds;
+        spareProperties = batchProperties;
+        spareValues = batchValues;
+        size = 0;
+    }
+
+    private void awaitPending() {
+        if (pending == null) return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted writing a batch of properties", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed writing a batch of properties", e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!ownTransactions) return;
+        try {
+            if (size > 0) flush();
+            awaitPending();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
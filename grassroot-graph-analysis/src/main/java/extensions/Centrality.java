@@ -0,0 +1,299 @@
+package extensions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/*
+Scores over a projection, indexed as its entities are, with the same definitions as the algo.* procedures. Both run
+across a fork-join pool on flat arrays: pagerank pulls each entity's score from its neighbours' shares, so entities
+can be scored in any order at once, and closeness runs breadth first searches from 64 sources at a time, one bit of
+a long per source, so each pass over the edges advances all 64 together
+ */
+public class Centrality {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int SOURCES_PER_SEARCH = Long.SIZE;
+
+    // the undirected form of algo.pageRank: every entity starts at, and is always given, 1 - d. Stops early once the
+    // mean change in score over an iteration is under the tolerance
+    public static Pagerank pagerank(GraphProjection projection, int maxIterations, double dampingFactor,
+                                    double tolerance, ForkJoinPool pool) {
+        final int[] offsets = projection.offsets(), targets = projection.targets();
+        final int nodeCount = projection.nodeCount();
+        final double[] scores = new double[nodeCount];
+        final double[] shares = new double[nodeCount];
+        Arrays.fill(scores, 1 - dampingFactor);
+
+        int iteration = 0;
+        boolean converged = false;
+        while (iteration < maxIterations && !converged) {
+            inParallel(pool, nodeCount, (from, to) -> {
+                for (int node = from; node < to; node++) {
+                    shares[node] = scores[node] / (offsets[node + 1] - offsets[node]);
+                }
+                return 0.0;
+            });
+            double change = inParallel(pool, nodeCount, (from, to) -> {
+                double chunkChange = 0.0;
+                for (int node = from; node < to; node++) {
+                    double incoming = 0.0;
+                    for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+                        incoming += shares[targets[edge]];
+                    }
+                    double score = (1 - dampingFactor) + dampingFactor * incoming;
+                    chunkChange += Math.abs(score - scores[node]);
+                    scores[node] = score;
+                }
+                return chunkChange;
+            });
+            iteration++;
+            converged = nodeCount == 0 || change / nodeCount < tolerance;
+        }
+        return new Pagerank(scores, iteration, converged);
+    }
+
+    // as algo.closeness.harmonic: the sum of 1 / distance to every entity reached, over the count of the others
+    public static double[] harmonicCloseness(GraphProjection projection, ForkJoinPool pool) {
+        final int nodeCount = projection.nodeCount();
+        final double[] closeness = new double[nodeCount];
+        final int[] sources = new int[nodeCount];
+        Arrays.setAll(sources, node -> node);
+        searchInParallel(projection, sources, pool, (search, first, count) -> {
+            final double[] sums = new double[SOURCES_PER_SEARCH];
+            search.run(sources, first, count, (node, reachedFrom, distance) -> {
+                for (; reachedFrom != 0L; reachedFrom &= reachedFrom - 1) {
+                    sums[Long.numberOfTrailingZeros(reachedFrom)] += 1.0 / distance;
+                }
+            });
+            for (int source = 0; source < count; source++) {
+                closeness[first + source] = nodeCount > 1 ? sums[source] / (nodeCount - 1) : 0.0;
+            }
+        });
+        return closeness;
+    }
+
+    /*
+    Harmonic closeness estimated from searches out of a uniform sample of pivots, rather than out of every entity.
+    Distances are the same either way, so the search from a pivot gives every entity one term of its sum; scaled up by
+    the sampling rate, the terms from k pivots give an unbiased estimate. Each term is between 0 and n / (n - 1), so by
+    Hoeffding's inequality (which holds sampling without replacement) an estimate is out by more than
+    n / (n - 1) * sqrt(ln(2 / delta) / 2k) with probability at most delta; the error given back takes delta over every entity at
+    once, so all are within it together at the confidence asked for
+     */
+    public static ApproximateCloseness approximateHarmonicCloseness(GraphProjection projection, int pivotCount,
+                                                                    double confidence, long seed, ForkJoinPool pool) {
+        final int nodeCount = projection.nodeCount();
+        if (pivotCount >= nodeCount) {
+            return new ApproximateCloseness(harmonicCloseness(projection, pool), nodeCount, 0.0);
+        }
+
+        final int[] pivots = new int[nodeCount];
+        Arrays.setAll(pivots, node -> node);
+        Random random = new Random(seed);
+        for (int pivot = 0; pivot < pivotCount; pivot++) {
+            int swap = pivot + random.nextInt(nodeCount - pivot);
+            int chosen = pivots[swap];
+            pivots[swap] = pivots[pivot];
+            pivots[pivot] = chosen;
+        }
+
+        final double[] closeness = new double[nodeCount];
+        searchInParallel(projection, Arrays.copyOf(pivots, pivotCount), pool, (search, first, count) -> {
+            final double[] sums = search.sums();
+            search.run(pivots, first, count, (node, reachedFrom, distance) ->
+                    sums[node] += (double) Long.bitCount(reachedFrom) / distance);
+        }, threadSums -> threadSums.forEach(sums -> {
+            for (int node = 0; node < nodeCount; node++) closeness[node] += sums[node];
+        }));
+
+        final double scale = (double) nodeCount / ((double) pivotCount * (nodeCount - 1));
+        for (int node = 0; node < nodeCount; node++) closeness[node] *= scale;
+        double delta = (1 - confidence) / nodeCount;
+        double error = Math.sqrt(Math.log(2 / delta) / (2.0 * pivotCount)) * nodeCount / (nodeCount - 1);
+        return new ApproximateCloseness(closeness, pivotCount, error);
+    }
+
+    private static void searchInParallel(GraphProjection projection, int[] sources, ForkJoinPool pool, SearchBatch batch) {
+        searchInParallel(projection, sources, pool, batch, threadSums -> {});
+    }
+
+    // each worker thread keeps one search's state across all the chunks it runs, so there are at most as many as the
+    // pool has threads at once; once all are done, the per entity sums of those that kept any are handed on
+    private static void searchInParallel(GraphProjection projection, int[] sources, ForkJoinPool pool, SearchBatch batch,
+                                         Consumer<List<double[]>> finished) {
+        final int searches = (sources.length + SOURCES_PER_SEARCH - 1) / SOURCES_PER_SEARCH;
+        // a few chunks per thread, so a thread that draws the slow searches does not hold up the rest
+        final int searchesPerChunk = Math.max(1, searches / (pool.getParallelism() * 4));
+        final Map<Thread, MultiSourceSearch> perThread = new ConcurrentHashMap<>();
+        pool.invoke(new RangeTask(0, searches, searchesPerChunk, (from, to) -> {
+            MultiSourceSearch search = perThread.computeIfAbsent(Thread.currentThread(),
+                    thread -> new MultiSourceSearch(projection));
+            for (int index = from; index < to; index++) {
+                int first = index * SOURCES_PER_SEARCH;
+                batch.search(search, first, Math.min(SOURCES_PER_SEARCH, sources.length - first));
+            }
+            return 0.0;
+        }));
+        finished.accept(perThread.values().stream().map(search -> search.sums).filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+    }
+
+    private static double inParallel(ForkJoinPool pool, int size, RangeFunction function) {
+        return pool.invoke(new RangeTask(0, size, CHUNK_SIZE, function));
+    }
+
+    public static class Pagerank {
+        private final double[] scores;
+        private final int iterations;
+        private final boolean converged;
+
+        Pagerank(double[] scores, int iterations, boolean converged) {
+            this.scores = scores;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+
+        public double[] getScores() {
+            return scores;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public boolean isConverged() {
+            return converged;
+        }
+    }
+
+    public static class ApproximateCloseness {
+        private final double[] scores;
+        private final int pivots;
+        private final double error;
+
+        ApproximateCloseness(double[] scores, int pivots, double error) {
+            this.scores = scores;
+            this.pivots = pivots;
+            this.error = error;
+        }
+
+        public double[] getScores() {
+            return scores;
+        }
+
+        public int getPivots() {
+            return pivots;
+        }
+
+        public double getError() {
+            return error;
+        }
+    }
+
+    private interface RangeFunction {
+        double apply(int from, int to);
+    }
+
+    // splits the range in half until it is no longer than the chunk size, and sums what each chunk returns
+    private static class RangeTask extends RecursiveTask<Double> {
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        private final RangeFunction function;
+
+        RangeTask(int from, int to, int chunkSize, RangeFunction function) {
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.function = function;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from <= chunkSize) {
+                return function.apply(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            RangeTask lower = new RangeTask(from, middle, chunkSize, function);
+            lower.fork();
+            double upper = new RangeTask(middle, to, chunkSize, function).compute();
+            return upper + lower.join();
+        }
+    }
+
+    private interface SearchBatch {
+        void search(MultiSourceSearch search, int first, int count);
+    }
+
+    private interface Reached {
+        void at(int node, long reachedFrom, int distance);
+    }
+
+    // the state of a search is three longs per entity: which sources have reached it, which reached it in the last
+    // level, and which reach it in the next
+    private static class MultiSourceSearch {
+        private final int[] offsets;
+        private final int[] targets;
+        private final int nodeCount;
+        private final long[] seen;
+        private final long[] frontier;
+        private final long[] next;
+        private double[] sums;
+
+        MultiSourceSearch(GraphProjection projection) {
+            this.offsets = projection.offsets();
+            this.targets = projection.targets();
+            this.nodeCount = projection.nodeCount();
+            this.seen = new long[nodeCount];
+            this.frontier = new long[nodeCount];
+            this.next = new long[nodeCount];
+        }
+
+        // per entity totals, for whatever the caller accumulates across its searches
+        double[] sums() {
+            if (sums == null) sums = new double[nodeCount];
+            return sums;
+        }
+
+        // searches out of sources[first] to sources[first + count - 1], handing over each entity as it is first
+        // reached, with the sources (as bits, in that order) that reach it at that distance
+        void run(int[] sources, int first, int count, Reached reached) {
+            Arrays.fill(seen, 0L);
+            Arrays.fill(frontier, 0L);
+            for (int source = 0; source < count; source++) {
+                seen[sources[first + source]] |= 1L << source;
+                frontier[sources[first + source]] |= 1L << source;
+            }
+
+            boolean reachedAny = true;
+            for (int distance = 1; reachedAny; distance++) {
+                for (int node = 0; node < nodeCount; node++) {
+                    long reaching = frontier[node];
+                    if (reaching == 0L) continue;
+                    for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+                        next[targets[edge]] |= reaching;
+                    }
+                }
+                reachedAny = false;
+                for (int node = 0; node < nodeCount; node++) {
+                    long reachedFrom = next[node] & ~seen[node];
+                    next[node] = 0L;
+                    frontier[node] = reachedFrom;
+                    if (reachedFrom == 0L) continue;
+                    seen[node] |= reachedFrom;
+                    reachedAny = true;
+                    reached.at(node, reachedFrom, distance);
+                }
+            }
+        }
+    }
+
+}
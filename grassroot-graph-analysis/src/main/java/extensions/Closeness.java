@@ -2,10 +2,15 @@ package extensions;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Result;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import static extensions.ExtensionUtils.*;
 
@@ -15,28 +20,79 @@ public class Closeness {
 
     @Context public Log log;
 
+    @Context public KernelTransaction tx;
+
+    @Context public GraphDatabaseAPI database;
+
     @Procedure(name = "closeness.setup", mode = Mode.WRITE)
     @Description("Write information needed for closeness extensions")
-    public void setupCloseness() {
+    public void setupCloseness(@Name(value = "pivots", defaultValue = "0") long pivots) {
         log.info("Setting up closeness");
-        db.execute("CALL closeness.write()");
-        db.execute("CALL metric.normalize('CLOSENESS', 'ACTOR', 'INDIVIDUAL')");
-        db.execute("CALL metric.normalize('CLOSENESS', 'ACTOR', 'GROUP')");
-        db.execute("CALL metric.normalize('CLOSENESS', 'EVENT', 'MEETING')");
-        db.execute("CALL metric.normalize('CLOSENESS', 'EVENT', 'VOTE')");
-        db.execute("CALL metric.normalize('CLOSENESS', 'EVENT', 'TODO')");
+        // raw scores are committed first, so normalizing them can commit in batches without waiting on their locks
+        // schema changes cannot join a transaction that has written, so then the rank indexes wait for the next setup
+        boolean indexable = BatchWriter.canCommitSeparately(tx);
+        onOwnThread(tx, () -> {
+            if (indexable) Ranking.createIndexes(database, "CLOSENESS");
+            if (pivots > 0) {
+                database.execute("CALL closeness.approximate($pivots)", Collections.singletonMap("pivots", pivots))
+                        .forEachRemaining(estimate -> log.info("Approximated closeness: " + estimate));
+            } else {
+                database.execute("CALL closeness.write()").close();
+            }
+        });
+        db.execute("CALL metric.normalizeAll('CLOSENESS')").forEachRemaining(group -> log.info("Normalized closeness: " + group));
     }
 
     @Procedure(name = "closeness.write", mode = Mode.WRITE)
     @Description("Write raw closeness for all entities")
-    public void writeCloseness() {
+    public void writeCloseness(@Name(value = "concurrency", defaultValue = "0") long concurrency) {
         log.info("Writing raw closeness");
-        db.execute("CALL algo.closeness.harmonic(" +
-                " 'MATCH (n) WHERE exists( (n)-[:PARTICIPATES]-() ) RETURN id(n) as id'," +
-                " 'MATCH (n1)-[:PARTICIPATES]->(n2) RETURN id(n1) as source, id(n2) as target UNION" +
-                "  MATCH (n1)-[:PARTICIPATES]->(n2) RETURN id(n2) as source, id(n1) as target'," +
-                " {graph:'cypher', write: true, writeProperty:'" + closenessRaw + "'}" +
-                ")");
+        GraphProjection projection = GraphProjection.participations(database, tx);
+        ForkJoinPool pool = forkJoinPool(concurrency);
+        double[] scores;
+        try {
+            scores = Centrality.harmonicCloseness(projection, pool);
+        } finally {
+            pool.shutdown();
+        }
+        writeRaw(projection, scores);
+        writeRanks();
+    }
+
+    @Procedure(name = "closeness.approximate", mode = Mode.WRITE)
+    @Description("Write raw closeness for all entities, estimated from searches out of a sample of pivots")
+    public Stream<Estimate> approximateCloseness(@Name(value = "pivots") long pivots,
+                                                 @Name(value = "confidence", defaultValue = "0.95") double confidence,
+                                                 @Name(value = "concurrency", defaultValue = "0") long concurrency) {
+        if (pivots < 1) throw new IllegalArgumentException("Approximate closeness needs at least one pivot");
+        if (confidence <= 0 || confidence >= 1) throw new IllegalArgumentException("Confidence must be between 0 and 1");
+        log.info("Writing raw closeness approximated from " + pivots + " pivots");
+        GraphProjection projection = GraphProjection.participations(database, tx);
+        ForkJoinPool pool = forkJoinPool(concurrency);
+        Centrality.ApproximateCloseness closeness;
+        try {
+            closeness = Centrality.approximateHarmonicCloseness(projection, (int) Math.min(pivots, Integer.MAX_VALUE),
+                    confidence, System.nanoTime(), pool);
+        } finally {
+            pool.shutdown();
+        }
+        writeRaw(projection, closeness.getScores());
+        writeRanks();
+        Estimate estimate = new Estimate(projection.nodeCount(), closeness.getPivots(), confidence, closeness.getError());
+        log.info("Wrote approximate closeness: " + estimate);
+        return Stream.of(estimate);
+    }
+
+    private void writeRaw(GraphProjection projection, double[] scores) {
+        try (BatchWriter writer = BatchWriter.open(database, tx)) {
+            projection.writeProperty(writer, closenessRaw, scores);
+        }
+    }
+
+    private void writeRanks() {
+        try (BatchWriter writer = BatchWriter.open(database, tx)) {
+            log.info("Moved " + Ranking.write(db, writer, "CLOSENESS") + " closeness ranks");
+        }
     }
 
     @UserFunction(name = "closeness.tiers")
@@ -51,4 +107,24 @@ public class Closeness {
         return tierCounts.hasNext() ? resultToMap(tierCounts, "tier", "count") : null;
     }
 
+    public static class Estimate {
+        public long entities;
+        public long pivots;
+        public double confidence;
+        public double errorBound;
+
+        public Estimate(long entities, long pivots, double confidence, double errorBound) {
+            this.entities = entities;
+            this.pivots = pivots;
+            this.confidence = confidence;
+            this.errorBound = errorBound;
+        }
+
+        @Override
+        public String toString() {
+            return pivots + " pivots over " + entities + " entities, every score within " + errorBound +
+                    " with confidence " + confidence;
+        }
+    }
+
 }
\ No newline at end of file
@@ -2,6 +2,8 @@ package extensions;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Result;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
@@ -19,6 +21,10 @@ public class Connections {
 
     @Context public Log log;
 
+    @Context public KernelTransaction tx;
+
+    @Context public GraphDatabaseAPI database;
+
     @UserFunction(name = "connections.mean")
     @Description("Calculate mean connections reached at depth 1, 2, or 3")
     public Object getMeanConnections(@Name(value = "metricType") String metricType,
@@ -63,8 +69,20 @@ public class Connections {
     private Object calculateMeanConnections(String entityType, String subType, long firstRank, long lastRank,
                                             long depth, boolean countEntities, String metric) {
         String typeFilter = typeQuery(entityType, subType, metric);
-        Result results = db.execute(typeFilter + rangeQuery(entityType, subType, metric, firstRank, lastRank, db) + depthQuery(depth, countEntities));
-        return resultToSingleValue(results);
+        Result entities = db.execute(typeFilter + rangeQuery(entityType, subType, metric, firstRank, lastRank, db) + " RETURN id(entity) AS id");
+        GraphProjection projection = GraphProjection.participations(database, tx);
+        Neighbourhoods neighbourhoods = new Neighbourhoods(projection);
+        long connectionSum = 0, connectedEntities = 0;
+        while (entities.hasNext()) {
+            int index = projection.indexOf((long) entities.next().get("id"));
+            long connections = index < 0 ? 0 : neighbourhoods.count(index, (int) depth, countEntities);
+            // as with the match this replaces, entities with nothing at this depth are left out of the mean
+            if (connections > 0) {
+                connectionSum += connections;
+                connectedEntities++;
+            }
+        }
+        return connectedEntities == 0 ? null : (double) connectionSum / connectedEntities;
     }
 
     private List<Object> calculateMeanConnectionsList(String entityType, String subType, long firstRank, long lastRank,
@@ -75,25 +93,6 @@ public class Connections {
                 (index - 1) * 10, index * 10, depth, countEntities, metric)).collect(Collectors.toList());
     }
 
-    private String depthQuery(long depth, boolean countingEntities) {
-        String connection = (countingEntities ? "e" : "p") + Long.toString(depth);
-        String depthMatchingQuery = getDepthMatchingQuery(depth);
-        return  " WITH COLLECT({e:entity}) as entities" +
-                " UNWIND entities AS entity" +
-                " WITH entity.e as graphEntity " + depthMatchingQuery +
-                " WITH graphEntity, COUNT(DISTINCT " + connection + ") AS connections" +
-                " RETURN avg(connections) AS connectionCount";
-    }
-
-    private String getDepthMatchingQuery(long depth) {
-        switch ((int) depth) {
-            case 1: return "MATCH (graphEntity)-[p1:PARTICIPATES]-(e1)";
-            case 2: return "MATCH (graphEntity)-[p1:PARTICIPATES]-(e1)-[p2:PARTICIPATES]-(e2)";
-            case 3: return "MATCH (graphEntity)-[p1:PARTICIPATES]-(e1)-[p2:PARTICIPATES]-(e2)-[p3:PARTICIPATES]-(e3)";
-            default: log.error("Error! Invalid depth, should have been caught by upstream validation"); return null;
-        }
-    }
-
     private boolean paramsAreValid(String metric, String entityType, String subType, long firstRank, long lastRank, long depth) {
         return (metric == null || metricIsValid(metric)) && typesAreValid(entityType, subType) &&
                 rangeIsValid(firstRank, lastRank) && depthIsValid(depth);
@@ -2,9 +2,14 @@ package extensions;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Result;
+import org.neo4j.kernel.api.KernelTransaction;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -13,8 +18,12 @@ public class ExtensionUtils {
 
     public static final String pagerankRaw = "pagerankRaw";
     public static final String pagerankNorm = "pagerankNorm";
+    public static final String pagerankSignature = "pagerankSignature";
+    public static final String pagerankResidual = "pagerankResidual";
     public static final String closenessRaw = "closenessRaw";
     public static final String closenessNorm = "closenessNorm";
+    public static final String pagerankRank = "pagerankRank";
+    public static final String closenessRank = "closenessRank";
 
     public static String getMetricPropertyName(String metric, boolean normalized) {
         if (isPagerank(metric)) return normalized ? pagerankNorm : pagerankRaw;
@@ -22,6 +31,38 @@ public class ExtensionUtils {
         return null;
     }
 
+    // raw and normalized scores are in the same order within a subtype, so share one rank, taking either name
+    public static String getRankPropertyName(String metric) {
+        if (isPagerank(metric) || pagerankRaw.equals(metric) || pagerankNorm.equals(metric)) return pagerankRank;
+        if (isCloseness(metric) || closenessRaw.equals(metric) || closenessNorm.equals(metric)) return closenessRank;
+        return null;
+    }
+
+    // a concurrency of 0 uses every core
+    public static ForkJoinPool forkJoinPool(long concurrency) {
+        return new ForkJoinPool(concurrency > 0 ? (int) concurrency : Runtime.getRuntime().availableProcessors());
+    }
+
+    // a procedure's own queries join its transaction; run on another thread, work commits as it goes instead. unless
+    // the calling transaction has already written, as that thread would wait on its locks, so then the work joins it
+    public static void onOwnThread(KernelTransaction tx, Runnable work) {
+        if (!BatchWriter.canCommitSeparately(tx)) {
+            work.run();
+            return;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(work).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting on work in its own transaction", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed running work in its own transaction", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     public static Map<Object, Object> resultToMap(Result result, String keyName, String valueName) {
         return result.stream().map(r -> new SimpleEntry<>
                 (r.get(keyName), r.get(valueName))).collect(Collectors.toMap(SimpleEntry::getKey, SimpleEntry::getValue));
@@ -56,14 +97,27 @@ public class ExtensionUtils {
         return  "MATCH (n" + entityFilter + ") WHERE " + subTypeFilter + "n." + metric + " IS NOT NULL";
     }
 
+    // follows a type query, whose WHERE the rank seek extends; a last rank of 0 runs to the end of the entities
     public static String rangeQuery(String entityType, String subType, String metric, long firstRank, long lastRank, GraphDatabaseService db) {
-        if (lastRank == 0) lastRank = getEntityCount(entityType, subType, metric, db);
+        String metricRank = getRankPropertyName(metric);
+        if (ranksAreWritten(entityType, subType, metricRank, db)) {
+            return " AND n." + metricRank + " >= " + Long.toString(firstRank) +
+                    (lastRank == 0 ? "" : " AND n." + metricRank + " < " + Long.toString(lastRank)) +
+                    " WITH n AS entity, n." + metric + " AS metric" +
+                    " ORDER BY metric DESC";
+        }
         return " WITH n AS entity, n." + metric + " AS metric" +
                 " ORDER BY metric DESC" +
                 " SKIP " + Long.toString(firstRank) +
-                " LIMIT " + Long.toString(lastRank - firstRank);
+                (lastRank == 0 ? "" : " LIMIT " + Long.toString(lastRank - firstRank));
+    }
+
+    // ranks are written within a subtype, so only windows over one can be read from them, and only once written
+    private static boolean ranksAreWritten(String entityType, String subType, String metricRank, GraphDatabaseService db) {
+        return !subType.isEmpty() && metricRank != null && (long) resultToSingleValue(db.execute(
+                simpleTypeQuery(entityType, subType) + " AND n." + metricRank + " = 0 RETURN COUNT(n)")) > 0;
     }
-    
+
     public static String statsQuery(String keyWord) {
         return  " WITH min(" + keyWord + ") AS minimum," +
                 " max(" + keyWord + ") AS maximum," +
@@ -73,10 +127,6 @@ public class ExtensionUtils {
                 " RETURN minimum, maximum, maximum - minimum AS range, average, median, stddev";
     }
 
-    public static long getEntityCount(String entityType, String subType, String metric, GraphDatabaseService db) {
-        return (long) resultToSingleValue(db.execute(typeQuery(entityType, subType, metric) + " RETURN COUNT(n)"));
-    }
-
     public static long getEntityCount(String entityType, String subType, GraphDatabaseService db) {
         return (long) resultToSingleValue(db.execute(simpleTypeQuery(entityType, subType) + " RETURN COUNT(n)"));
     }
@@ -0,0 +1,238 @@
+package extensions;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.api.store.RelationshipIterator;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Participations held in memory as an undirected graph in compressed sparse row form: entities with any participation
+are numbered 0..n-1 in node id order, and the neighbours of entity i are targets[offsets[i]] to targets[offsets[i+1]],
+sorted and distinct, whichever way the participation points. It is read straight from the kernel, and kept between
+procedure calls until a commit creates or deletes a relationship, so writing scores back does not throw it away.
+A transaction that has created or deleted relationships of its own is given a projection of its own
+ */
+public class GraphProjection {
+
+    private static final String PARTICIPATES = "PARTICIPATES";
+
+    // keyed by the database itself, as the one procedures are given is a new wrapper around it on every call
+    private static final Map<GraphDatabaseAPI, ProjectionCache> CACHES = new WeakHashMap<>();
+
+    private final long[] nodeIds;
+    private final int[] offsets;
+    private final int[] targets;
+
+    private GraphProjection(long[] nodeIds, int[] offsets, int[] targets) {
+        this.nodeIds = nodeIds;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    public static GraphProjection participations(GraphDatabaseAPI db, KernelTransaction tx) {
+        ProjectionCache cache;
+        synchronized (CACHES) {
+            cache = CACHES.computeIfAbsent(db, ProjectionCache::new);
+        }
+        return cache.get(tx);
+    }
+
+    public int nodeCount() {
+        return nodeIds.length;
+    }
+
+    // each participation is counted once from either end
+    public long adjacencyCount() {
+        return targets.length;
+    }
+
+    public long nodeId(int index) {
+        return nodeIds[index];
+    }
+
+    public int indexOf(long nodeId) {
+        int index = Arrays.binarySearch(nodeIds, nodeId);
+        return index < 0 ? -1 : index;
+    }
+
+    public int degree(int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    int[] targets() {
+        return targets;
+    }
+
+    public void writeProperty(BatchWriter writer, String property, double[] values) {
+        for (int index = 0; index < nodeIds.length; index++) {
+            writer.set(nodeIds[index], property, values[index]);
+        }
+    }
+
+    private static GraphProjection build(KernelTransaction tx) {
+        try (Statement statement = tx.acquireStatement()) {
+            ReadOperations read = statement.readOperations();
+            int participates = read.relationshipTypeGetForName(PARTICIPATES);
+            if (participates < 0) {
+                return new GraphProjection(new long[0], new int[1], new int[0]);
+            }
+
+            LongBuffer participating = new LongBuffer();
+            PrimitiveLongIterator allNodes = read.nodesGetAll();
+            while (allNodes.hasNext()) {
+                long nodeId = allNodes.next();
+                if (read.nodeGetDegree(nodeId, Direction.BOTH, participates) > 0) participating.add(nodeId);
+            }
+            long[] nodeIds = participating.sorted();
+
+            int[] offsets = new int[nodeIds.length + 1];
+            IntBuffer targets = new IntBuffer();
+            IntBuffer row = new IntBuffer();
+            for (int index = 0; index < nodeIds.length; index++) {
+                final long nodeId = nodeIds[index];
+                row.clear();
+                RelationshipIterator relationships = read.nodeGetRelationships(nodeId, Direction.BOTH, new int[] { participates });
+                while (relationships.hasNext()) {
+                    relationships.relationshipVisit(relationships.next(), (relationshipId, type, startNode, endNode) -> {
+                        // the other end only started participating after the scan
+                        int other = Arrays.binarySearch(nodeIds, startNode == nodeId ? endNode : startNode);
+                        if (other >= 0) row.add(other);
+                    });
+                }
+                targets.addDistinct(row);
+                offsets[index + 1] = targets.size;
+            }
+            return symmetric(nodeIds, offsets, targets.trimmed());
+        } catch (EntityNotFoundException e) {
+            // a node deleted after the scan leaves nothing to read its row from; nothing is cached, so the next call
+            // projects the graph again
+            throw new IllegalStateException("Graph changed while it was being projected", e);
+        }
+    }
+
+    // rows are read one after another while the graph is written, so a participation created or deleted in between is
+    // in one end's row and not the other's; it is added to the other, so every row agrees with its neighbours' rows
+    private static GraphProjection symmetric(long[] nodeIds, int[] offsets, int[] targets) {
+        LongBuffer missing = new LongBuffer();
+        for (int index = 0; index < nodeIds.length; index++) {
+            for (int edge = offsets[index]; edge < offsets[index + 1]; edge++) {
+                int other = targets[edge];
+                if (Arrays.binarySearch(targets, offsets[other], offsets[other + 1], index) < 0) {
+                    missing.add(((long) other << 32) | index);
+                }
+            }
+        }
+        if (missing.size == 0) {
+            return new GraphProjection(nodeIds, offsets, targets);
+        }
+
+        long[] additions = missing.sorted();
+        int[] symmetricOffsets = new int[nodeIds.length + 1];
+        IntBuffer symmetricTargets = new IntBuffer();
+        IntBuffer row = new IntBuffer();
+        int next = 0;
+        for (int index = 0; index < nodeIds.length; index++) {
+            row.clear();
+            for (int edge = offsets[index]; edge < offsets[index + 1]; edge++) row.add(targets[edge]);
+            while (next < additions.length && (int) (additions[next] >>> 32) == index) row.add((int) additions[next++]);
+            symmetricTargets.addDistinct(row);
+            symmetricOffsets[index + 1] = symmetricTargets.size;
+        }
+        return new GraphProjection(nodeIds, symmetricOffsets, symmetricTargets.trimmed());
+    }
+
+    private static class ProjectionCache extends TransactionEventHandler.Adapter<Object> {
+        private final AtomicLong topologyVersion = new AtomicLong();
+        private GraphProjection projection;
+        private long projectedVersion = -1;
+
+        ProjectionCache(GraphDatabaseService db) {
+            db.registerTransactionEventHandler(this);
+        }
+
+        // a transaction that has itself created or deleted relationships sees a graph no other does, so is not cached
+        synchronized GraphProjection get(KernelTransaction tx) {
+            if (changesRelationships(tx)) {
+                return build(tx);
+            }
+            long version = topologyVersion.get();
+            if (projection == null || projectedVersion != version) {
+                projection = build(tx);
+                projectedVersion = version;
+            }
+            return projection;
+        }
+
+        private static boolean changesRelationships(KernelTransaction tx) {
+            return tx instanceof TxStateHolder && ((TxStateHolder) tx).hasTxStateWithChanges() &&
+                    !((TxStateHolder) tx).txState().addedAndRemovedRelationships().isEmpty();
+        }
+
+        // checked by whether any relationship changed at all, as the type of a deleted one is no longer readable
+        @Override
+        public void afterCommit(TransactionData data, Object state) {
+            if (data.createdRelationships().iterator().hasNext() || data.deletedRelationships().iterator().hasNext()) {
+                topologyVersion.incrementAndGet();
+            }
+        }
+    }
+
+    private static class LongBuffer {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        long[] sorted() {
+            long[] trimmed = Arrays.copyOf(values, size);
+            Arrays.sort(trimmed);
+            return trimmed;
+        }
+    }
+
+    private static class IntBuffer {
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addDistinct(IntBuffer other) {
+            Arrays.sort(other.values, 0, other.size);
+            for (int i = 0; i < other.size; i++) {
+                if (i == 0 || other.values[i] != other.values[i - 1]) add(other.values[i]);
+            }
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] trimmed() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package extensions;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static extensions.ExtensionUtils.*;
+
+/*
+Brings raw pagerank up to date with the participation edges changed since it was last written, without a full run.
+Each participating node keeps a signature of its neighbours as of the last write, so one scan finds every node whose
+edges changed. The residual of each of those nodes and their neighbours (how far its score is from the pagerank
+equation) is then recomputed and pushed out to neighbours until every residual is under the tolerance. Whatever is
+left over is kept on the node for the next update, and bounds the error in the scores, so once that bound (or the
+work the push would take) exceeds what a full run costs, a full run is done instead
+ */
+public class IncrementalPagerank {
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private final GraphProjection projection;
+    private final double dampingFactor;
+
+    private final Map<Integer, Double> scores = new HashMap<>();
+    private final Map<Integer, Double> residuals = new HashMap<>();
+    private final Set<Integer> scored = new HashSet<>();
+    private final Set<Integer> residualsChanged = new HashSet<>();
+
+    public IncrementalPagerank(GraphDatabaseService db, Log log, GraphProjection projection, double dampingFactor) {
+        this.db = db;
+        this.log = log;
+        this.projection = projection;
+        this.dampingFactor = dampingFactor;
+    }
+
+    public Update update(double tolerance, double maxError, long fullRunWork) {
+        List<Integer> changed = new ArrayList<>();
+        List<Node> dropped = new ArrayList<>();
+        Map<Integer, Long> signatures = new HashMap<>();
+        long signedCount = 0;
+        for (Node node : db.getAllNodes()) {
+            boolean signed = node.hasProperty(pagerankSignature);
+            int index = projection.indexOf(node.getId());
+            if (index < 0) {
+                if (signed) dropped.add(node);
+                continue;
+            }
+            long signature = signature(index);
+            if (signed) signedCount++;
+            if (!signed || (long) node.getProperty(pagerankSignature) != signature) {
+                changed.add(index);
+                signatures.put(index, signature);
+            }
+            if (node.hasProperty(pagerankResidual)) {
+                residuals.put(index, ((Number) node.getProperty(pagerankResidual)).doubleValue());
+            }
+        }
+
+        if (signedCount == 0) {
+            return Update.fullRunNeeded("no previous run to update from", changed.size());
+        }
+
+        final int[] offsets = projection.offsets(), targets = projection.targets();
+        Set<Integer> affected = new HashSet<>(changed);
+        changed.forEach(index -> { for (int edge = offsets[index]; edge < offsets[index + 1]; edge++) affected.add(targets[edge]); });
+        affected.forEach(index -> setResidual(index, exactResidual(index)));
+
+        Deque<Integer> queue = new ArrayDeque<>();
+        Set<Integer> queued = new HashSet<>();
+        affected.stream().filter(index -> Math.abs(residuals.get(index)) > tolerance).forEach(index -> {
+            queue.add(index);
+            queued.add(index);
+        });
+
+        long pushes = 0, work = 0;
+        while (!queue.isEmpty()) {
+            if (work > fullRunWork) {
+                return Update.fullRunNeeded("push would cost more than a full run", changed.size());
+            }
+            int index = queue.poll();
+            queued.remove(index);
+            double residual = residuals.get(index);
+            setScore(index, score(index) + residual);
+            setResidual(index, 0.0);
+            double share = dampingFactor * residual / projection.degree(index);
+            for (int edge = offsets[index]; edge < offsets[index + 1]; edge++) {
+                int neighbour = targets[edge];
+                double neighbourResidual = residuals.getOrDefault(neighbour, 0.0) + share;
+                setResidual(neighbour, neighbourResidual);
+                if (Math.abs(neighbourResidual) > tolerance && queued.add(neighbour)) {
+                    queue.add(neighbour);
+                }
+            }
+            pushes++;
+            work += projection.degree(index);
+        }
+
+        // residual r and error e satisfy e = r + d.P.e, so the l1 error is at most |r| / (1 - d), taken here per node
+        double residualSum = residuals.values().stream().mapToDouble(Math::abs).sum();
+        double errorBound = residualSum / ((1 - dampingFactor) * projection.nodeCount());
+        if (errorBound > maxError) {
+            return Update.fullRunNeeded("error bound " + errorBound + " over " + maxError, changed.size());
+        }
+
+        scored.forEach(index -> nodeAt(index).setProperty(pagerankRaw, scores.get(index)));
+        signatures.forEach((index, signature) -> nodeAt(index).setProperty(pagerankSignature, signature));
+        residualsChanged.forEach(index -> {
+            Node node = nodeAt(index);
+            double residual = residuals.get(index);
+            if (residual == 0.0) node.removeProperty(pagerankResidual);
+            else node.setProperty(pagerankResidual, residual);
+        });
+        dropped.forEach(this::clearState);
+        log.info("Updated pagerank from " + changed.size() + " changed nodes with " + pushes + " pushes, error bound " + errorBound);
+        return new Update("INCREMENTAL", changed.size(), pushes, errorBound);
+    }
+
+    // the nodes the last update moved the score of, whose ranks may have moved with it
+    public List<Node> rescoredNodes() {
+        List<Node> rescored = new ArrayList<>(scored.size());
+        scored.forEach(index -> rescored.add(nodeAt(index)));
+        return rescored;
+    }
+
+    // after a full run, records where every node stands, so the next update only has what changed after it to do
+    public void writeSignatures(BatchWriter writer) {
+        for (Node node : db.getAllNodes()) {
+            int index = projection.indexOf(node.getId());
+            if (index >= 0) {
+                writer.set(node, pagerankSignature, signature(index));
+                writer.set(node, pagerankResidual, null);
+            } else if (node.hasProperty(pagerankSignature)) {
+                writer.set(node, pagerankSignature, null);
+                writer.set(node, pagerankResidual, null);
+            }
+        }
+        log.info("Wrote pagerank signatures for " + projection.nodeCount() + " nodes");
+    }
+
+    private double exactResidual(int index) {
+        final int[] offsets = projection.offsets(), targets = projection.targets();
+        double incoming = 0.0;
+        for (int edge = offsets[index]; edge < offsets[index + 1]; edge++) {
+            incoming += score(targets[edge]) / projection.degree(targets[edge]);
+        }
+        return (1 - dampingFactor) + dampingFactor * incoming - score(index);
+    }
+
+    private double score(int index) {
+        return scores.computeIfAbsent(index, i -> ((Number) nodeAt(i).getProperty(pagerankRaw, 0.0)).doubleValue());
+    }
+
+    private void setScore(int index, double score) {
+        scores.put(index, score);
+        scored.add(index);
+    }
+
+    private void setResidual(int index, double residual) {
+        residuals.put(index, residual);
+        residualsChanged.add(index);
+    }
+
+    private Node nodeAt(int index) {
+        return db.getNodeById(projection.nodeId(index));
+    }
+
+    private void clearState(Node node) {
+        node.removeProperty(pagerankSignature);
+        node.removeProperty(pagerankResidual);
+    }
+
+    // over node ids rather than indices, which shift between projections; order independent, and the mix spreads
+    // out sequential ids
+    private long signature(int index) {
+        final int[] offsets = projection.offsets(), targets = projection.targets();
+        long signature = projection.degree(index);
+        for (int edge = offsets[index]; edge < offsets[index + 1]; edge++) {
+            long mixed = projection.nodeId(targets[edge]) + 0x9E3779B97F4A7C15L;
+            mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+            mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+            signature += mixed ^ (mixed >>> 31);
+        }
+        return signature;
+    }
+
+    public static class Update {
+        public String mode;
+        public long changedNodes;
+        public long pushes;
+        public double errorBound;
+        public String fullRunReason;
+
+        public Update(String mode, long changedNodes, long pushes, double errorBound) {
+            this.mode = mode;
+            this.changedNodes = changedNodes;
+            this.pushes = pushes;
+            this.errorBound = errorBound;
+        }
+
+        static Update fullRunNeeded(String reason, long changedNodes) {
+            Update update = new Update("FULL", changedNodes, 0, 0.0);
+            update.fullRunReason = reason;
+            return update;
+        }
+
+        public boolean needsFullRun() {
+            return "FULL".equals(mode);
+        }
+    }
+
+}
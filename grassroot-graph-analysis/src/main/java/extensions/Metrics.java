@@ -2,11 +2,14 @@ package extensions;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Result;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import static extensions.ExtensionUtils.*;
 
@@ -16,21 +19,27 @@ public class Metrics {
 
     @Context public Log log;
 
+    @Context public KernelTransaction tx;
+
+    @Context public GraphDatabaseAPI database;
+
     @Procedure(name = "metric.normalize", mode = Mode.WRITE)
     @Description("Write normalized metric scores for specified entities")
     public void normalizeScores(@Name(value = "metricType") String metricType,
-                                @Name(value = "entityType") String entityType, @Name(value = "subType") String subType) {
+                                @Name(value = "entityType") String entityType, @Name(value = "subType") String subType,
+                                @Name(value = "batchSize", defaultValue = "10000") long batchSize) {
         log.info("Writing normalized metric scores");
-        if (!metricIsValid(metricType) || !typesAreValid(entityType, subType)) return;
-        String metricRaw = getMetricPropertyName(metricType, false);
-        String metricNorm = getMetricPropertyName(metricType, true);
-        db.execute(typeQuery(entityType, subType, metricRaw) +
-                " WITH n AS entity, n." + metricRaw + " AS " + metricRaw +
-                " WITH collect({entity:entity, pageRank:" + metricRaw + "}) AS entitiesInfo," +
-                " avg(" + metricRaw + ") AS average," +
-                " stDevP(" + metricRaw + ") AS stddev" +
-                " UNWIND entitiesInfo as entityInfo" +
-                " SET entityInfo.entity." + metricNorm + "=(entityInfo.pageRank-average)/stddev");
+        if (!metricIsValid(metricType) || !typesAreValid(entityType, subType) || batchSize < 1) return;
+        normalization(batchSize).normalize(metricType, entityType, subType);
+    }
+
+    @Procedure(name = "metric.normalizeAll", mode = Mode.WRITE)
+    @Description("Write normalized metric scores for every entity type and subtype at once")
+    public Stream<Normalization.Group> normalizeAllScores(@Name(value = "metricType") String metricType,
+                                                         @Name(value = "batchSize", defaultValue = "10000") long batchSize) {
+        log.info("Writing normalized metric scores for all subtypes");
+        if (!metricIsValid(metricType) || batchSize < 1) return Stream.empty();
+        return normalization(batchSize).normalizeAll(metricType).stream();
     }
 
     @UserFunction(name = "metric.stats")
@@ -83,6 +92,10 @@ public class Metrics {
         return scores.hasNext() ? resultToList(scores, "metric") : null;
     }
 
+    private Normalization normalization(long batchSize) {
+        return new Normalization(database, (int) Math.min(batchSize, Integer.MAX_VALUE), BatchWriter.canCommitSeparately(tx));
+    }
+
     private boolean paramsAreValid(String metric, String entityType, String subType, long firstRank, long lastRank) {
         return metricIsValid(metric) && typesAreValid(entityType, subType) && rangeIsValid(firstRank, lastRank);
     }
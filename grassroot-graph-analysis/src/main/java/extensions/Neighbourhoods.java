@@ -0,0 +1,69 @@
+package extensions;
+
+import java.util.Arrays;
+
+/*
+Counts what an entity reaches along participation paths of exactly a given length, as the Cypher pattern with that
+many PARTICIPATES hops counts them: no participation is used twice within a path, and what is counted is either the
+distinct entities at the end of the paths, or the distinct participations making up their last hop
+ */
+class Neighbourhoods {
+
+    private final int[] offsets;
+    private final int[] targets;
+
+    private final int[] entityMarks;
+    private final int[] participationMarks;
+    private int mark = 0;
+    private long count;
+
+    Neighbourhoods(GraphProjection projection) {
+        this.offsets = projection.offsets();
+        this.targets = projection.targets();
+        this.entityMarks = new int[projection.nodeCount()];
+        this.participationMarks = new int[targets.length];
+    }
+
+    long count(int source, int depth, boolean countEntities) {
+        mark++;
+        count = 0;
+        walk(source, depth, new long[depth], 0, countEntities);
+        return count;
+    }
+
+    private void walk(int node, int remaining, long[] path, int pathLength, boolean countEntities) {
+        for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+            int target = targets[edge];
+            long participation = participation(node, target);
+            if (onPath(participation, path, pathLength)) continue;
+            if (remaining > 1) {
+                path[pathLength] = participation;
+                walk(target, remaining - 1, path, pathLength + 1, countEntities);
+            } else if (countEntities) {
+                if (entityMarks[target] != mark) {
+                    entityMarks[target] = mark;
+                    count++;
+                }
+            } else {
+                // a participation is in the rows of both its ends, so it is marked where it sits in the lower one's
+                int slot = node <= target ? edge : Arrays.binarySearch(targets, offsets[target], offsets[target + 1], node);
+                if (participationMarks[slot] != mark) {
+                    participationMarks[slot] = mark;
+                    count++;
+                }
+            }
+        }
+    }
+
+    private static long participation(int node, int other) {
+        return node <= other ? ((long) node << 32) | other : ((long) other << 32) | node;
+    }
+
+    private static boolean onPath(long participation, long[] path, int pathLength) {
+        for (int i = 0; i < pathLength; i++) {
+            if (path[i] == participation) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,144 @@
+package extensions;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static extensions.ExtensionUtils.*;
+
+/*
+Rewrites a raw metric as z-scores within groups of entities, without holding the entities in memory. One scan keeps a
+running count, mean and sum of squared differences per group (Welford's method, which unlike summing squares does not
+lose precision as the count grows), and a second writes each entity's score, committed in batches by a BatchWriter
+ */
+public class Normalization {
+
+    private static final Label ACTOR = Label.label("Actor");
+    private static final Label EVENT = Label.label("Event");
+
+    private final GraphDatabaseAPI database;
+    private final int batchSize;
+    private final boolean ownTransactions;
+
+    public Normalization(GraphDatabaseAPI database, int batchSize, boolean ownTransactions) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.ownTransactions = ownTransactions;
+    }
+
+    // every actor and event, grouped by entity and subtype
+    public List<Group> normalizeAll(String metricType) {
+        return normalize(metricType, "", "", true);
+    }
+
+    // as one group, all entities of the type and subtype given, where empty matches any
+    public Group normalize(String metricType, String entityType, String subType) {
+        List<Group> groups = normalize(metricType, entityType, subType, false);
+        return groups.isEmpty() ? new RunningStats(entityType, subType).group() : groups.get(0);
+    }
+
+    private List<Group> normalize(String metricType, String entityType, String subType, boolean bySubType) {
+        String metricRaw = getMetricPropertyName(metricType, false);
+        String metricNorm = getMetricPropertyName(metricType, true);
+
+        Map<String, RunningStats> groups = new LinkedHashMap<>();
+        for (Node node : entities(entityType, bySubType)) {
+            Object raw = node.getProperty(metricRaw, null);
+            if (!(raw instanceof Number) || !inSubType(node, subType)) continue;
+            String groupEntityType = bySubType ? entityType(node) : entityType;
+            String groupSubType = bySubType ? subType(node) : subType;
+            groups.computeIfAbsent(groupEntityType + "/" + groupSubType, key -> new RunningStats(groupEntityType, groupSubType))
+                    .add(((Number) raw).doubleValue());
+        }
+
+        try (BatchWriter writer = new BatchWriter(database, batchSize, ownTransactions)) {
+            for (Node node : entities(entityType, bySubType)) {
+                Object raw = node.getProperty(metricRaw, null);
+                if (!(raw instanceof Number) || !inSubType(node, subType)) continue;
+                RunningStats group = groups.get(bySubType ? entityType(node) + "/" + subType(node) : entityType + "/" + subType);
+                // as the Cypher this replaces, entities with no spread in their group are given NaN
+                writer.set(node, metricNorm, (((Number) raw).doubleValue() - group.mean) / group.stddev);
+            }
+        }
+
+        return groups.values().stream().map(RunningStats::group).collect(Collectors.toList());
+    }
+
+    // grouped by subtype, only actors and events have one; otherwise an empty entity type matches any node, as the
+    // Cypher this replaces did
+    private Iterable<Node> entities(String entityType, boolean bySubType) {
+        if (bySubType) return Iterables.concat(labelled(ACTOR), labelled(EVENT));
+        return entityType.isEmpty() ? database.getAllNodes() : labelled(isActor(entityType) ? ACTOR : EVENT);
+    }
+
+    private Iterable<Node> labelled(Label label) {
+        return () -> database.findNodes(label);
+    }
+
+    private static boolean inSubType(Node node, String subType) {
+        return subType.isEmpty() || subType.equals(subType(node));
+    }
+
+    private static String entityType(Node node) {
+        return node.hasLabel(ACTOR) ? "ACTOR" : node.hasLabel(EVENT) ? "EVENT" : "";
+    }
+
+    private static String subType(Node node) {
+        Object subType = node.getProperty(node.hasLabel(ACTOR) ? "actorType" : "eventType", "");
+        return subType.toString();
+    }
+
+    public static class Group {
+        public String entityType;
+        public String subType;
+        public long entities;
+        public double mean;
+        public double stddev;
+
+        Group(String entityType, String subType, long entities, double mean, double stddev) {
+            this.entityType = entityType;
+            this.subType = subType;
+            this.entities = entities;
+            this.mean = mean;
+            this.stddev = stddev;
+        }
+
+        @Override
+        public String toString() {
+            return entityType + " " + subType + ": " + entities + " entities, mean " + mean + ", stddev " + stddev;
+        }
+    }
+
+    private static class RunningStats {
+        private final String entityType;
+        private final String subType;
+        private long count;
+        private double mean;
+        private double squaredDifferences;
+        private double stddev;
+
+        RunningStats(String entityType, String subType) {
+            this.entityType = entityType;
+            this.subType = subType;
+        }
+
+        void add(double value) {
+            count++;
+            double difference = value - mean;
+            mean += difference / count;
+            squaredDifferences += difference * (value - mean);
+            stddev = Math.sqrt(squaredDifferences / count);
+        }
+
+        Group group() {
+            return new Group(entityType, subType, count, mean, stddev);
+        }
+    }
+
+}
@@ -2,41 +2,96 @@ package extensions;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Result;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import static extensions.ExtensionUtils.*;
 
 public class Pagerank {
 
+    private static final int ITERATIONS = 100;
+    private static final double DAMPING_FACTOR = 0.85;
+    private static final double DEFAULT_TOLERANCE = 0.0000001;
+
     @Context public GraphDatabaseService db;
 
     @Context public Log log;
 
+    @Context public KernelTransaction tx;
+
+    @Context public GraphDatabaseAPI database;
+
     @Procedure(name = "pagerank.setup", mode = Mode.WRITE)
     @Description("Write information needed for pagerank extensions")
-    public void setupPagerank() {
+    public void setupPagerank(@Name(value = "incremental", defaultValue = "true") boolean incremental) {
         log.info("Setting up pagerank");
-        db.execute("CALL pagerank.write()");
-        db.execute("CALL metric.normalize('PAGERANK', 'ACTOR', 'INDIVIDUAL')");
-        db.execute("CALL metric.normalize('PAGERANK', 'ACTOR', 'GROUP')");
-        db.execute("CALL metric.normalize('PAGERANK', 'EVENT', 'MEETING')");
-        db.execute("CALL metric.normalize('PAGERANK', 'EVENT', 'VOTE')");
-        db.execute("CALL metric.normalize('PAGERANK', 'EVENT', 'TODO')");
+        // raw scores are committed first, so normalizing them can commit in batches without waiting on their locks
+        // schema changes cannot join a transaction that has written, so then the rank indexes wait for the next setup
+        boolean indexable = BatchWriter.canCommitSeparately(tx);
+        onOwnThread(tx, () -> {
+            if (indexable) Ranking.createIndexes(database, "PAGERANK");
+            if (incremental) {
+                database.execute("CALL pagerank.update()").forEachRemaining(update -> log.info("Pagerank update: " + update));
+            } else {
+                database.execute("CALL pagerank.write()").close();
+            }
+        });
+        db.execute("CALL metric.normalizeAll('PAGERANK')").forEachRemaining(group -> log.info("Normalized pagerank: " + group));
     }
 
     @Procedure(name = "pagerank.write", mode = Mode.WRITE)
     @Description("Write raw pagerank for all entities")
-    public void writePagerank() {
+    public void writePagerank(@Name(value = "maxIterations", defaultValue = "100") long maxIterations,
+                              @Name(value = "tolerance", defaultValue = "0.0000001") double tolerance,
+                              @Name(value = "concurrency", defaultValue = "0") long concurrency) {
         log.info("Writing raw pagerank");
-        db.execute("CALL algo.pageRank(" +
-                " 'MATCH (n) WHERE EXISTS( (n)-[:PARTICIPATES]-() ) RETURN id(n) as id'," +
-                " 'MATCH (n1)-[:PARTICIPATES]->(n2) RETURN id(n1) as source, id(n2) as target UNION" +
-                "  MATCH (n1)-[:PARTICIPATES]->(n2) RETURN id(n2) as source, id(n1) as target'," +
-                " {graph:'cypher', iterations:100, dampingFactor:0.85, write: true, writeProperty:'" + pagerankRaw + "'}" +
-                ")");
+        GraphProjection projection = GraphProjection.participations(database, tx);
+        ForkJoinPool pool = forkJoinPool(concurrency);
+        Centrality.Pagerank pagerank;
+        try {
+            pagerank = Centrality.pagerank(projection, (int) maxIterations, DAMPING_FACTOR, tolerance, pool);
+            log.info("Computed pagerank for " + projection.nodeCount() + " entities in " + pagerank.getIterations() +
+                    " iterations, " + (pagerank.isConverged() ? "converged" : "not converged"));
+        } finally {
+            pool.shutdown();
+        }
+        try (BatchWriter writer = BatchWriter.open(database, tx)) {
+            projection.writeProperty(writer, pagerankRaw, pagerank.getScores());
+            new IncrementalPagerank(db, log, projection, DAMPING_FACTOR).writeSignatures(writer);
+        }
+        writeRanks();
+    }
+
+    @Procedure(name = "pagerank.update", mode = Mode.WRITE)
+    @Description("Update raw pagerank for entities whose participations changed since it was written, or rewrite it all")
+    public Stream<IncrementalPagerank.Update> updatePagerank(@Name(value = "tolerance", defaultValue = "0.0001") double tolerance,
+                                                             @Name(value = "maxError", defaultValue = "0.001") double maxError) {
+        log.info("Updating raw pagerank");
+        GraphProjection projection = GraphProjection.participations(database, tx);
+        // each iteration of a full run passes along every participation, once in each direction
+        IncrementalPagerank incremental = new IncrementalPagerank(db, log, projection, DAMPING_FACTOR);
+        IncrementalPagerank.Update update = incremental.update(tolerance, maxError, ITERATIONS * projection.adjacencyCount());
+        if (update.needsFullRun()) {
+            log.info("Rewriting raw pagerank in full: " + update.fullRunReason);
+            writePagerank(ITERATIONS, DEFAULT_TOLERANCE, 0);
+        } else {
+            try (BatchWriter writer = BatchWriter.open(database, tx)) {
+                log.info("Moved " + Ranking.write(db, writer, "PAGERANK", incremental.rescoredNodes()) + " pagerank ranks");
+            }
+        }
+        return Stream.of(update);
+    }
+
+    private void writeRanks() {
+        try (BatchWriter writer = BatchWriter.open(database, tx)) {
+            log.info("Moved " + Ranking.write(db, writer, "PAGERANK") + " pagerank ranks");
+        }
     }
 
     @UserFunction(name = "pagerank.tiers")
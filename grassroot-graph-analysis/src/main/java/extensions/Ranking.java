@@ -0,0 +1,176 @@
+package extensions;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static extensions.ExtensionUtils.*;
+
+/*
+Writes each actor's and event's position by a raw metric within its entity type and subtype: 0 for the highest, then
+1, 2 and so on with no gaps, ties going to the lower node id. A window of ranks is then a range seek on the rank
+property, where it used to be a sort of the whole subtype with SKIP and LIMIT. Normalizing keeps the order within a
+subtype, so the same ranks serve both. After an update only the subtypes it rescored are ranked again, and in
+either case only ranks that moved are written
+ */
+public class Ranking {
+
+    private static final Label ACTOR = Label.label("Actor");
+    private static final Label EVENT = Label.label("Event");
+
+    // schema changes need a transaction of their own, without any data written in it
+    public static void createIndexes(GraphDatabaseService db, String metricType) {
+        String metricRank = getRankPropertyName(metricType);
+        db.execute("CREATE INDEX ON :Actor(" + metricRank + ")").close();
+        db.execute("CREATE INDEX ON :Event(" + metricRank + ")").close();
+    }
+
+    // after a full run, when every subtype may have moved
+    public static long write(GraphDatabaseService db, BatchWriter writer, String metricType) {
+        String metricRaw = getMetricPropertyName(metricType, false);
+        Map<SubType, Scores> subTypes = new HashMap<>();
+        for (Label label : new Label[] { ACTOR, EVENT }) {
+            db.findNodes(label).forEachRemaining(node ->
+                    addScore(subTypes.computeIfAbsent(SubType.of(node, label), key -> new Scores()), node, metricRaw));
+        }
+        return writeRanks(db, writer, metricType, subTypes.values());
+    }
+
+    // after an update, when only the subtypes of the nodes it rescored can have moved
+    public static long write(GraphDatabaseService db, BatchWriter writer, String metricType, Collection<Node> rescored) {
+        String metricRaw = getMetricPropertyName(metricType, false);
+        Set<SubType> subTypes = new HashSet<>();
+        for (Node node : rescored) {
+            if (node.hasLabel(ACTOR)) subTypes.add(SubType.of(node, ACTOR));
+            else if (node.hasLabel(EVENT)) subTypes.add(SubType.of(node, EVENT));
+        }
+
+        List<Scores> subTypeScores = new ArrayList<>();
+        for (SubType subType : subTypes) {
+            Scores scores = new Scores();
+            subType.nodes(db).forEachRemaining(node -> addScore(scores, node, metricRaw));
+            subTypeScores.add(scores);
+        }
+        return writeRanks(db, writer, metricType, subTypeScores);
+    }
+
+    private static void addScore(Scores scores, Node node, String metricRaw) {
+        Object raw = node.getProperty(metricRaw, null);
+        if (raw instanceof Number) {
+            scores.add(node.getId(), ((Number) raw).doubleValue());
+        }
+    }
+
+    private static long writeRanks(GraphDatabaseService db, BatchWriter writer, String metricType, Collection<Scores> subTypes) {
+        String metricRank = getRankPropertyName(metricType);
+        long written = 0;
+        for (Scores scores : subTypes) {
+            int[] order = scores.descending();
+            for (int rank = 0; rank < order.length; rank++) {
+                long nodeId = scores.nodeIds[order[rank]];
+                Object previous = db.getNodeById(nodeId).getProperty(metricRank, null);
+                if (!(previous instanceof Number) || ((Number) previous).longValue() != rank) {
+                    writer.set(nodeId, metricRank, (long) rank);
+                    written++;
+                }
+            }
+        }
+        return written;
+    }
+
+    // an actor or event type, or the nodes of a label without one
+    private static final class SubType {
+        private final Label label;
+        private final Object value;
+
+        private SubType(Label label, Object value) {
+            this.label = label;
+            this.value = value;
+        }
+
+        static SubType of(Node node, Label label) {
+            return new SubType(label, node.getProperty(property(label), null));
+        }
+
+        private static String property(Label label) {
+            return label.equals(ACTOR) ? "actorType" : "eventType";
+        }
+
+        Iterator<Node> nodes(GraphDatabaseService db) {
+            if (value != null) return db.findNodes(label, property(label), value);
+            List<Node> untyped = new ArrayList<>();
+            db.findNodes(label).forEachRemaining(node -> {
+                if (!node.hasProperty(property(label))) untyped.add(node);
+            });
+            return untyped.iterator();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SubType that = (SubType) o;
+            return label.equals(that.label) && Objects.equals(value, that.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(label, value);
+        }
+    }
+
+    private static class Scores {
+        private long[] nodeIds = new long[1024];
+        private double[] values = new double[1024];
+        private int size;
+
+        void add(long nodeId, double value) {
+            if (size == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            nodeIds[size] = nodeId;
+            values[size++] = value;
+        }
+
+        // indices into the scores, highest first, ties to the lower node id; a merge sort on the bare indices
+        int[] descending() {
+            int[] order = new int[size];
+            for (int index = 0; index < size; index++) order[index] = index;
+            int[] buffer = new int[size];
+            for (int width = 1; width < size; width *= 2) {
+                for (int from = 0; from < size; from += 2 * width) {
+                    merge(order, buffer, from, Math.min(from + width, size), Math.min(from + 2 * width, size));
+                }
+                int[] sorted = buffer;
+                buffer = order;
+                order = sorted;
+            }
+            return order;
+        }
+
+        private void merge(int[] from, int[] to, int start, int middle, int end) {
+            int left = start, right = middle;
+            for (int out = start; out < end; out++) {
+                to[out] = right >= end || (left < middle && before(from[left], from[right])) ? from[left++] : from[right++];
+            }
+        }
+
+        private boolean before(int a, int b) {
+            int byScore = Double.compare(values[b], values[a]);
+            return byScore < 0 || (byScore == 0 && nodeIds[a] < nodeIds[b]);
+        }
+    }
+
+}
@@ -17,6 +17,8 @@ public class Interaction extends GrassrootGraphEntity {
     @Id @GeneratedValue(strategy = UuidStrategy.class) String id;
     @Property protected Instant creationTime; // creation time _in graph_ (not necessarily on platform)
 
+    @Property @Index(unique = true) private String platformUid;
+
     @Property private InteractionType interactionType;
 
     @Relationship(type = "GENERATOR", direction = Relationship.INCOMING)
@@ -34,7 +36,8 @@ public class Interaction extends GrassrootGraphEntity {
 
     @Override
     public String getPlatformUid() {
-        return id;
+        // senders from before interactions had a platform uid set the id to it instead
+        return platformUid != null ? platformUid : id;
     }
 
     @Override
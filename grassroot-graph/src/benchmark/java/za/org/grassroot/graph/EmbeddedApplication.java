@@ -0,0 +1,60 @@
+package za.org.grassroot.graph;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.kernel.configuration.BoltConnector;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+
+/*
+The whole application, running against an embedded Neo4j in a temporary directory that it reaches over bolt, as it
+would a server, so the benchmarks time the same write path as production; the database is also open directly, for
+setting up graphs faster than through the application
+ */
+class EmbeddedApplication implements AutoCloseable {
+
+    private final File storeDir;
+    private final GraphDatabaseService db;
+    private final ConfigurableApplicationContext application;
+
+    EmbeddedApplication(String name) throws IOException {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        storeDir = Files.createTempDirectory(name).toFile();
+        BoltConnector bolt = new BoltConnector("bolt");
+        db = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(storeDir)
+                .setConfig(bolt.type, "BOLT")
+                .setConfig(bolt.enabled, "true")
+                .setConfig(bolt.listen_address, "localhost:" + port)
+                .newGraphDatabase();
+
+        // as arguments, so that they take precedence over application.properties
+        application = new SpringApplicationBuilder(GraphApplication.class)
+                .run("--spring.data.neo4j.uri=bolt://localhost:" + port, "--sqs.pull.enabled=false",
+                        "--sqs.push.enabled=false", "--logging.level.root=warn");
+    }
+
+    <T> T getBean(Class<T> type) {
+        return application.getBean(type);
+    }
+
+    GraphDatabaseService getDatabase() {
+        return db;
+    }
+
+    @Override
+    public void close() throws IOException {
+        application.close();
+        db.shutdown();
+        FileUtils.deleteRecursively(storeDir);
+    }
+
+}
@@ -0,0 +1,101 @@
+package za.org.grassroot.graph;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.openjdk.jmh.annotations.*;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.EventType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.InteractionType;
+import za.org.grassroot.graph.services.PlatformEntityDTO;
+import za.org.grassroot.graph.services.RelationshipBroker;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+Times writes to very high degree nodes (super-user actors, long-lived meeting series) at each hub degree: adding an
+edge should cost the same whether the node has ten relationships or a hundred thousand. That those writes land
+correctly is checked in HubNodeWriteTests
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class HubNodeWriteBenchmark {
+
+    private static final int SETUP_BATCH_SIZE = 10_000;
+
+    @Param({ "10", "100000" })
+    public int hubDegree;
+
+    private EmbeddedApplication application;
+    private GraphDatabaseService db;
+    private RelationshipBroker relationshipBroker;
+
+    private final PlatformEntityDTO superUser = new PlatformEntityDTO("superuser", GraphEntityType.ACTOR,
+            ActorType.INDIVIDUAL.name());
+    private final PlatformEntityDTO series = new PlatformEntityDTO("series", GraphEntityType.EVENT,
+            EventType.MEETING.name());
+
+    // the edge each invocation adds runs to a node of its own, created beforehand so that only the edge is timed
+    private int nextTarget;
+    private PlatformEntityDTO interaction;
+    private PlatformEntityDTO event;
+
+    @Setup(Level.Trial)
+    public void buildHubs() throws IOException {
+        application = new EmbeddedApplication("hub-write-benchmark");
+        db = application.getDatabase();
+        relationshipBroker = application.getBean(RelationshipBroker.class);
+
+        db.execute("CREATE (:Actor {platformUid: 'superuser', actorType: 'INDIVIDUAL'})").close();
+        db.execute("CREATE (:Event {platformUid: 'series', eventType: 'MEETING'})").close();
+        bulkCreate("UNWIND $rows AS row MATCH (hub:Actor {platformUid: 'superuser'}) " +
+                "CREATE (hub)-[:PARTICIPATES]->(:Interaction {id: row, platformUid: row, interactionType: 'SURVEY'})", "bulk-interaction-");
+        bulkCreate("UNWIND $rows AS row MATCH (hub:Event {platformUid: 'series'}) " +
+                "CREATE (hub)-[:GENERATOR]->(:Event {platformUid: row, eventType: 'MEETING'})", "bulk-event-");
+    }
+
+    @Setup(Level.Invocation)
+    public void createTargets() {
+        final String uid = "target-" + nextTarget++;
+        db.execute("CREATE (:Interaction {id: $uid, platformUid: $uid, interactionType: 'SURVEY'}), " +
+                "(:Event {platformUid: $uid, eventType: 'MEETING'})", Collections.singletonMap("uid", uid)).close();
+        interaction = new PlatformEntityDTO(uid, GraphEntityType.INTERACTION, InteractionType.SURVEY.name());
+        event = new PlatformEntityDTO(uid, GraphEntityType.EVENT, EventType.MEETING.name());
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() throws IOException {
+        application.close();
+    }
+
+    @Benchmark
+    public boolean participationOnHubActor() {
+        return relationshipBroker.addParticipation(superUser, interaction);
+    }
+
+    @Benchmark
+    public boolean generationFromHubEvent() {
+        return relationshipBroker.setGeneration(series, event);
+    }
+
+    private void bulkCreate(String statement, String rowPrefix) {
+        for (int start = 0; start < hubDegree; start += SETUP_BATCH_SIZE) {
+            List<String> rows = IntStream.range(start, Math.min(start + SETUP_BATCH_SIZE, hubDegree))
+                    .mapToObj(i -> rowPrefix + i).collect(Collectors.toList());
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("rows", rows);
+            db.execute(statement, parameters).close();
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package za.org.grassroot.graph;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.ogm.session.Session;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.relationship.ActorInActor;
+import za.org.grassroot.graph.repository.ActorRepository;
+import za.org.grassroot.graph.services.AnnotationBroker;
+import za.org.grassroot.graph.services.ExistenceBroker;
+import za.org.grassroot.graph.services.PlatformEntityDTO;
+import za.org.grassroot.graph.services.RelationshipBroker;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+Times each of the hot ingest writes (upsert entity, upsert edge, delete edge, set tags, set properties) on the native
+statement path against the same write through OGM (load, modify, save), with the whole application running against
+an embedded Neo4j (see EmbeddedApplication). Both run in a transaction, as the processor's writes do, since outside
+one the native path falls back to the session. Edges run from a participant created before each call to one group,
+so every upsert creates its edge and every delete has one to remove. That both paths leave the graph in the same
+state is checked in NativeWritePathTests
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class NativeWritePathBenchmark {
+
+    // actors to annotate, cycled through
+    private static final int ANNOTATED_ACTORS = 1000;
+    private static final Map<String, String> PROPERTIES = Collections.singletonMap("LANGUAGE", "zu");
+    private static final String[] LANGUAGES = { "zu", "xh", "st", "en" };
+
+    private EmbeddedApplication application;
+    private GraphDatabaseService db;
+
+    private ExistenceBroker existenceBroker;
+    private AnnotationBroker annotationBroker;
+    private RelationshipBroker relationshipBroker;
+    private ActorRepository actorRepository;
+    private Session session;
+    private TransactionTemplate transaction;
+
+    private final PlatformEntityDTO group = new PlatformEntityDTO("group", GraphEntityType.ACTOR, ActorType.GROUP.name());
+    private int nextActor;
+    private PlatformEntityDTO participant;
+    private PlatformEntityDTO member;
+
+    @Setup(Level.Trial)
+    public void startApplication() throws IOException {
+        application = new EmbeddedApplication("native-write-benchmark");
+        db = application.getDatabase();
+        existenceBroker = application.getBean(ExistenceBroker.class);
+        annotationBroker = application.getBean(AnnotationBroker.class);
+        relationshipBroker = application.getBean(RelationshipBroker.class);
+        actorRepository = application.getBean(ActorRepository.class);
+        session = application.getBean(Session.class);
+        transaction = new TransactionTemplate(application.getBean(PlatformTransactionManager.class));
+
+        existenceBroker.mergeEntities(IntStream.range(0, ANNOTATED_ACTORS)
+                .mapToObj(i -> new Actor(ActorType.INDIVIDUAL, "annotated-" + i)).collect(Collectors.toList()));
+        existenceBroker.mergeEntities(Collections.singletonList(new Actor(ActorType.GROUP, group.getPlatformId())));
+    }
+
+    // a participant with no edge yet for the upserts, and a member with one for the deletes
+    @Setup(Level.Invocation)
+    public void createParticipants() {
+        final String uid = "edge-" + nextActor++;
+        db.execute("MATCH (group:Actor {platformUid: $group}) " +
+                "CREATE (:Actor {platformUid: $uid + '-participant', actorType: 'INDIVIDUAL'}), " +
+                "(:Actor {platformUid: $uid + '-member', actorType: 'INDIVIDUAL'})-[:PARTICIPATES]->(group)",
+                parameters("group", group.getPlatformId(), "uid", uid)).close();
+        participant = new PlatformEntityDTO(uid + "-participant", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        member = new PlatformEntityDTO(uid + "-member", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() throws IOException {
+        application.close();
+    }
+
+    @Benchmark
+    public Object ogmUpsertEntity() {
+        final String uid = "ogm-" + nextActor++;
+        return transaction.execute(status -> actorRepository.save(new Actor(ActorType.INDIVIDUAL, uid), 0));
+    }
+
+    @Benchmark
+    public Boolean nativeUpsertEntity() {
+        final String uid = "native-" + nextActor++;
+        return transaction.execute(status ->
+                existenceBroker.mergeEntities(Collections.singletonList(new Actor(ActorType.INDIVIDUAL, uid))));
+    }
+
+    @Benchmark
+    public Object ogmUpsertEdge() {
+        return transaction.execute(status -> {
+            Actor tail = actorRepository.findByPlatformUid(participant.getPlatformId(), 0);
+            Actor head = actorRepository.findByPlatformUid(group.getPlatformId(), 0);
+            ActorInActor relationship = new ActorInActor(tail, head, Instant.now());
+            session.save(relationship, 0);
+            return relationship;
+        });
+    }
+
+    @Benchmark
+    public Boolean nativeUpsertEdge() {
+        return transaction.execute(status -> relationshipBroker.addParticipation(participant, group));
+    }
+
+    @Benchmark
+    public Object ogmDeleteEdge() {
+        return transaction.execute(status -> {
+            Actor tail = actorRepository.findByPlatformUid(member.getPlatformId(), 1);
+            ActorInActor relationship = tail.getRelationshipWith(actorRepository.findByPlatformUid(group.getPlatformId(), 0));
+            session.delete(relationship);
+            return relationship;
+        });
+    }
+
+    @Benchmark
+    public Boolean nativeDeleteEdge() {
+        return transaction.execute(status -> relationshipBroker.removeParticipation(member, group));
+    }
+
+    @Benchmark
+    public Object ogmSetTags() {
+        final int i = nextActor++;
+        return transaction.execute(status -> {
+            Actor actor = actorRepository.findByPlatformUid("annotated-" + (i % ANNOTATED_ACTORS), 0);
+            actor.addTags(tags(i));
+            actor.addProperties(PROPERTIES);
+            return actorRepository.save(actor, 0);
+        });
+    }
+
+    @Benchmark
+    public Boolean nativeSetTags() {
+        final int i = nextActor++;
+        return transaction.execute(status -> annotationBroker.annotateEntity(annotated(i), PROPERTIES, tags(i)));
+    }
+
+    @Benchmark
+    public Object ogmSetProperties() {
+        final int i = nextActor++;
+        return transaction.execute(status -> {
+            Actor actor = actorRepository.findByPlatformUid("annotated-" + (i % ANNOTATED_ACTORS), 0);
+            actor.addProperties(properties(i));
+            return actorRepository.save(actor, 0);
+        });
+    }
+
+    @Benchmark
+    public Boolean nativeSetProperties() {
+        final int i = nextActor++;
+        return transaction.execute(status -> annotationBroker.annotateEntity(annotated(i), properties(i),
+                Collections.emptySet()));
+    }
+
+    private PlatformEntityDTO annotated(int i) {
+        return new PlatformEntityDTO("annotated-" + (i % ANNOTATED_ACTORS), GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+    }
+
+    private Set<String> tags(int i) {
+        return new HashSet<>(Arrays.asList("benchmark", "tag-" + (i % 10)));
+    }
+
+    private Map<String, String> properties(int i) {
+        return Collections.singletonMap("LANGUAGE", LANGUAGES[i % LANGUAGES.length]);
+    }
+
+    private static Map<String, Object> parameters(String firstKey, Object firstValue, String secondKey, Object secondValue) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(firstKey, firstValue);
+        parameters.put(secondKey, secondValue);
+        return parameters;
+    }
+
+}
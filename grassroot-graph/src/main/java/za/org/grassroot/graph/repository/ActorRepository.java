@@ -21,6 +21,8 @@ public interface ActorRepository extends Neo4jRepository<Actor, String> {
 
     long countByPlatformUid(final String platformUid);
 
+    long countByPlatformUidStartingWith(final String platformUidPrefix);
+
     @Transactional
     Long deleteByPlatformUid(String platformId);
 
@@ -6,6 +6,18 @@ import za.org.grassroot.graph.domain.Interaction;
 
 public interface InteractionRepository extends Neo4jRepository<Interaction, String> {
 
+    Interaction findByPlatformUid(String platformId);
+
+    Interaction findByPlatformUid(String platformId, int depth);
+
+    long countByPlatformUid(String platformUid);
+
+    @Transactional
+    Long deleteByPlatformUid(String platformId);
+
+    @Transactional
+    Long deleteByPlatformUidContaining(String platformUidFragment);
+
     @Transactional
     Long deleteByIdContaining(String idFragment);
 
@@ -1,202 +1,103 @@
 package za.org.grassroot.graph.services;
 
 import lombok.extern.slf4j.Slf4j;
-import org.neo4j.ogm.session.Session;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import za.org.grassroot.graph.domain.enums.GraphEntityType;
-import za.org.grassroot.graph.domain.relationship.ActorInActor;
-import za.org.grassroot.graph.domain.GrassrootGraphEntity;
-import za.org.grassroot.graph.domain.Actor;
-import za.org.grassroot.graph.domain.Event;
-import za.org.grassroot.graph.repository.ActorRepository;
-import za.org.grassroot.graph.repository.EventRepository;
-import za.org.grassroot.graph.repository.InteractionRepository;
-
-import static za.org.grassroot.graph.domain.enums.ActorType.GROUP;
-import static za.org.grassroot.graph.domain.enums.ActorType.INDIVIDUAL;
-import static za.org.grassroot.graph.domain.enums.EventType.SAFETY_ALERT;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
 @Service @Slf4j
 public class AnnotationBrokerImpl implements AnnotationBroker {
 
-    private final ActorRepository actorRepository;
-    private final EventRepository eventRepository;
-    private final InteractionRepository interactionRepository;
+    private final BoltStatementRunner statementRunner;
 
-    private final Session session;
-
-    public AnnotationBrokerImpl(ActorRepository actorRepository, EventRepository eventRepository, InteractionRepository interactionRepository, Session session) {
-        this.actorRepository = actorRepository;
-        this.eventRepository = eventRepository;
-        this.interactionRepository = interactionRepository;
-        this.session = session;
+    public AnnotationBrokerImpl(BoltStatementRunner statementRunner) {
+        this.statementRunner = statementRunner;
     }
 
     @Override
     @Transactional
     public boolean annotateEntity(PlatformEntityDTO platformEntity, Map<String, String> properties, Set<String> tags) {
         log.info("Wiring up entity annotation");
-        GrassrootGraphEntity entity = fetchGraphEntity(platformEntity.getEntityType(), platformEntity.getPlatformId(), 0);
-        log.info("Got entity: {}", entity);
-
-        if (entity == null) {
-            log.error("Error! Entity does not exist in graph, could not be annotated");
-            return false;
-        }
-
-        switch (entity.getEntityType()) {
-            case ACTOR:         return annotateActor((Actor) entity, properties, tags);
-            case EVENT:         return annotateEvent((Event) entity, properties, tags);
-            case INTERACTION:   log.error("Error! Annotations not supported for interaction entities"); return false;
-            default:            log.error("Error! Unsupported entity type provided"); return false;
-        }
+        return runAnnotation(IngestStatements.annotateEntity(platformEntity.getEntityType()), platformEntity,
+                IngestStatements.stdProps(properties), tags == null ? Collections.emptySet() : tags);
     }
 
     @Override
     @Transactional
     public boolean removeEntityAnnotation(PlatformEntityDTO platformEntity, Set<String> keysToRemove, Set<String> tagsToRemove) {
         log.info("Wiring up removing entity annotation");
-        GrassrootGraphEntity entity = fetchGraphEntity(platformEntity.getEntityType(), platformEntity.getPlatformId(), 0);
-        log.info("Got entity: {}", entity);
-
-        if (entity == null) {
-            log.error("Error! Entity does not exist in graph, annotation could not be removed.");
-            return false;
-        }
-
-        switch (entity.getEntityType()) {
-            case ACTOR:         return removeActorAnnotation((Actor) entity, keysToRemove, tagsToRemove);
-            case EVENT:         return removeEventAnnotation((Event) entity, keysToRemove, tagsToRemove);
-            case INTERACTION:   log.error("Error! Annotations not supported for interaction entities"); return false;
-            default:            log.error("Error! Unsupported entity type provided"); return false;
-        }
+        Map<String, String> blankedProperties = new HashMap<>();
+        if (keysToRemove != null) keysToRemove.forEach(key -> blankedProperties.put(key, ""));
+        return runAnnotation(IngestStatements.removeEntityAnnotation(platformEntity.getEntityType()), platformEntity,
+                IngestStatements.stdProps(blankedProperties), tagsToRemove == null ? Collections.emptySet() : tagsToRemove);
     }
 
     @Override @Transactional
     public boolean annotateParticipation(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity, Set<String> tags) {
         log.info("Wiring up participation annotation");
-        GrassrootGraphEntity participant = fetchGraphEntity(tailEntity.getEntityType(), tailEntity.getPlatformId(), 0);
-        log.info("Got tail entity: {}", participant);
-        GrassrootGraphEntity participatesIn = fetchGraphEntity(headEntity.getEntityType(), headEntity.getPlatformId(), 0);
-        log.info("Got head entity: {}", participatesIn);
-
-        if (participant == null || participatesIn == null) {
-            log.error("Error! One or both entities do not exist in graph, relationship could not be annotated");
-            return false;
-        }
-
-        if (GraphEntityType.ACTOR.equals(participant.getEntityType()) && GraphEntityType.ACTOR.equals(participatesIn.getEntityType())) {
-            return annotateActorInActor((Actor) participant, (Actor) participatesIn, tags);
-        } else {
-            log.error("Annotation only supported for actorInActor relationship entities (for now)");
-            return false;
-        }
+        return runParticipationAnnotation(IngestStatements.annotateParticipation(), tailEntity, headEntity, tags);
     }
 
     @Override @Transactional
     public boolean removeParticipationAnnotation(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity, Set<String> tagsToRemove) {
         log.info("Wiring up removing participation annotation");
-        GrassrootGraphEntity participant = fetchGraphEntity(tailEntity.getEntityType(), tailEntity.getPlatformId(), 0);
-        log.info("Got tail entity: {}", participant);
-        GrassrootGraphEntity participatesIn = fetchGraphEntity(headEntity.getEntityType(), headEntity.getPlatformId(), 0);
-        log.info("Got head entity: {}", participatesIn);
+        return runParticipationAnnotation(IngestStatements.removeParticipationAnnotation(), tailEntity, headEntity, tagsToRemove);
+    }
 
-        if (participant == null || participatesIn == null) {
-            log.error("Error! One or both entities do not exist in graph, annotation could not be removed.");
+    // set on the node directly rather than through a load and save of the entity, as this is on the ingest hot path
+    private boolean runAnnotation(String statement, PlatformEntityDTO platformEntity, Map<String, Object> properties,
+                                  Set<String> tags) {
+        if (statement == null) {
+            log.error("Error! Annotations not supported for entities of type {}", platformEntity.getEntityType());
             return false;
         }
 
-        if (GraphEntityType.ACTOR.equals(participant.getEntityType()) && GraphEntityType.ACTOR.equals(participatesIn.getEntityType())) {
-            return removeActorInActorAnnotation((Actor) participant, (Actor) participatesIn, tagsToRemove);
-        } else {
-            log.error("Annotation only supported for actorInActor relationship entities (for now)");
-            return false;
-        }
-    }
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("uid", platformEntity.getPlatformId());
+        parameters.put("props", properties);
+        parameters.put("tags", tags);
+        Iterator<Map<String, Object>> results = statementRunner.run(statement, parameters).getRows().iterator();
 
-    private boolean annotateActor(Actor actor, Map<String, String> properties, Set<String> tags) {
-        if (INDIVIDUAL.equals(actor.getActorType()) || GROUP.equals(actor.getActorType())) {
-            actor.addProperties(properties);
-            actor.addTags(tags);
-            actorRepository.save(actor, 0);
-            return true;
-        } else {
-            log.error("Only individuals and groups can be annotated (for now)");
+        if (!results.hasNext()) {
+            log.error("Error! Entity does not exist in graph, annotations could not be changed");
             return false;
         }
-    }
-
-    private boolean annotateEvent(Event event, Map<String, String> properties, Set<String> tags) {
-        if (SAFETY_ALERT.equals(event.getEventType())) {
-            log.error("Safety events cannot be annotated");
+        if (!Boolean.TRUE.equals(results.next().get("annotatable"))) {
+            log.error("Only individuals and groups, and events other than safety alerts, can be annotated (for now)");
             return false;
-        } else {
-            event.addProperties(properties);
-            event.addTags(tags);
-            eventRepository.save(event, 0);
-            return true;
         }
+        return true;
     }
 
-    private boolean removeActorAnnotation(Actor actor, Set<String> keysToRemove, Set<String> tagsToRemove) {
-        if (INDIVIDUAL.equals(actor.getActorType()) || GROUP.equals(actor.getActorType())) {
-            actor.removeProperties(keysToRemove);
-            actor.removeTags(tagsToRemove);
-            actorRepository.save(actor, 0);
-            return true;
-        } else {
-            log.error("Only individuals and groups can be annotated (for now)");
+    private boolean runParticipationAnnotation(String statement, PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity,
+                                               Set<String> tags) {
+        if (!GraphEntityType.ACTOR.equals(tailEntity.getEntityType()) || !GraphEntityType.ACTOR.equals(headEntity.getEntityType())) {
+            log.error("Annotation only supported for actorInActor relationship entities (for now)");
             return false;
         }
-    }
 
-    private boolean removeEventAnnotation(Event event, Set<String> keysToRemove, Set<String> tagsToRemove) {
-        if (SAFETY_ALERT.equals(event.getEventType())) {
-            log.error("Safety events cannot be annotated");
-            return false;
-        } else {
-            event.removeProperties(keysToRemove);
-            event.removeTags(tagsToRemove);
-            eventRepository.save(event, 0);
-            return true;
-        }
-    }
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("tailUid", tailEntity.getPlatformId());
+        parameters.put("headUid", headEntity.getPlatformId());
+        parameters.put("tags", tags == null ? Collections.emptySet() : tags);
+        Iterator<Map<String, Object>> results = statementRunner.run(statement, parameters).getRows().iterator();
 
-    private boolean annotateActorInActor(Actor participant, Actor participatesIn, Set<String> tags) {
-        ActorInActor relationship = participant.getRelationshipWith(participatesIn);
-        if (relationship == null) {
-            log.error("No ActorInActor relationship entity found between {} and {}, aborting", participant, participatesIn);
+        if (!results.hasNext()) {
+            log.error("Error! One or both entities do not exist in graph, participation annotations could not be changed");
             return false;
-        } else {
-            relationship.addTags(tags);
-            session.save(relationship, 0);
-            return true;
         }
-    }
-
-    private boolean removeActorInActorAnnotation(Actor participant, Actor participatesIn, Set<String> tagsToRemove) {
-        ActorInActor relationship = participant.getRelationshipWith(participatesIn);
-        if (relationship == null) {
-            log.error("No ActorInActor relationship entity found between {} and {}, aborting", participant, participatesIn);
+        if (!Boolean.TRUE.equals(results.next().get("related"))) {
+            log.error("No ActorInActor relationship entity found between {} and {}, aborting",
+                    tailEntity.getPlatformId(), headEntity.getPlatformId());
             return false;
-        } else {
-            relationship.removeTags(tagsToRemove);
-            session.save(relationship, 0);
-            return true;
-        }
-    }
-
-    private GrassrootGraphEntity fetchGraphEntity(GraphEntityType entityType, String Uid, int depth) {
-        switch (entityType) {
-            case ACTOR:         return actorRepository.findByPlatformUid(Uid, depth);
-            case EVENT:         return eventRepository.findByPlatformUid(Uid, depth);
-            case INTERACTION:   return interactionRepository.findById(Uid, depth).orElse(null);
-            default:            return null;
         }
+        return true;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+package za.org.grassroot.graph.services;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.ogm.drivers.bolt.transaction.BoltTransaction;
+import org.neo4j.ogm.model.Result;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.transaction.Transaction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+Runs the ingest statements straight on the Bolt transaction underneath the current OGM one, so they commit or roll
+back with everything else in the unit of work, but skip OGM's query path: its parameters are converted through an
+object mapper, and its results through its response model, neither of which plain rows of strings and numbers need.
+Outside a transaction, or on a driver other than Bolt (e.g. embedded, in tests), it goes through the session as usual
+ */
+@Component @Slf4j
+@DependsOn("ingestSchemaInitializer") // so nothing runs before the schema is checked and the statements planned
+class BoltStatementRunner {
+
+    // SDN's shared proxy, so the transaction it hands back is the one bound to the calling thread
+    private final Session session;
+
+    @Value("${graph.native.enabled:true}")
+    private boolean nativeEnabled;
+
+    BoltStatementRunner(Session session) {
+        this.session = session;
+    }
+
+    StatementOutcome run(String statement, Map<String, Object> parameters) {
+        Transaction transaction = nativeEnabled ? session.getTransaction() : null;
+        if (transaction instanceof BoltTransaction) {
+            StatementResult result = ((BoltTransaction) transaction).nativeBoltTransaction().run(statement, parameters);
+            List<Map<String, Object>> rows = result.list(Record::asMap);
+            return new StatementOutcome(rows, result.summary().counters().nodesCreated());
+        }
+
+        Result result = session.query(statement, parameters);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        result.queryResults().forEach(rows::add);
+        return new StatementOutcome(rows, result.queryStatistics().getNodesCreated());
+    }
+
+    @Getter
+    static class StatementOutcome {
+        private final List<Map<String, Object>> rows;
+        private final int nodesCreated;
+
+        StatementOutcome(List<Map<String, Object>> rows, int nodesCreated) {
+            this.rows = rows;
+            this.nodesCreated = nodesCreated;
+        }
+    }
+
+}
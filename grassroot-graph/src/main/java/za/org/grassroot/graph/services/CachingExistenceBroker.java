@@ -0,0 +1,276 @@
+package za.org.grassroot.graph.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.ogm.drivers.bolt.transaction.BoltTransaction;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.neo4j.ogm.transaction.Transaction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import za.org.grassroot.graph.domain.GrassrootGraphEntity;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static za.org.grassroot.graph.services.GraphEntityLabels.label;
+
+/*
+Sits in front of the existence broker and answers entity existence checks in process where it can: a bounded LRU
+of entities known to exist, plus a bloom filter per entity type of every uid seen. The bloom filter can only say
+for certain that an entity is absent, and only from what this process has seen, so its negatives only hold if this
+is the sole writer to the graph: other instances, admin cypher and repository writes all create entities it never
+sees. By default negatives fall through to the graph; a deployment that is the single writer can set
+graph.cache.bloom.authoritative, and negatives are then trusted once the warm up has read every uid in the graph
+ */
+@Slf4j
+@Primary
+@Service
+@ConditionalOnProperty(value = "graph.cache.enabled", matchIfMissing = true)
+public class CachingExistenceBroker implements ExistenceBroker {
+
+    private static final String WARM_UP_SCAN = "MATCH (n:%s) RETURN n.platformUid AS uid";
+
+    private final ExistenceBrokerImpl delegate;
+    private final SessionFactory sessionFactory;
+
+    @Value("${graph.cache.lru.size:100000}")
+    private int lruSize;
+
+    @Value("${graph.cache.bloom.capacity:100000}")
+    private int bloomInitialCapacity;
+
+    @Value("${graph.cache.bloom.fpp:0.01}")
+    private double bloomFalsePositiveRate;
+
+    @Value("${graph.cache.bloom.authoritative:false}")
+    private boolean bloomNegativesAuthoritative;
+
+    @Value("${graph.cache.warmup.enabled:true}")
+    private boolean warmUpEnabled;
+
+    private Map<String, Boolean> knownEntities;
+    private final Map<GraphEntityType, ScalableBloomFilter> seenUids = new EnumMap<>(GraphEntityType.class);
+
+    // until the warm up has been through the graph, the bloom filters only know what this process has written
+    private volatile boolean warmedUp;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lruHits = new AtomicLong();
+    private final AtomicLong bloomNegatives = new AtomicLong();
+    private final AtomicLong delegatedLookups = new AtomicLong();
+
+    public CachingExistenceBroker(ExistenceBrokerImpl delegate, SessionFactory sessionFactory) {
+        this.delegate = delegate;
+        this.sessionFactory = sessionFactory;
+    }
+
+    @PostConstruct
+    private void init() {
+        log.info("Setting up existence cache, LRU size: {}, bloom capacity: {}, authoritative negatives: {}",
+                lruSize, bloomInitialCapacity, bloomNegativesAuthoritative);
+        this.knownEntities = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > lruSize;
+            }
+        });
+        for (GraphEntityType entityType : GraphEntityType.values()) {
+            seenUids.put(entityType, new ScalableBloomFilter(bloomInitialCapacity, bloomFalsePositiveRate));
+        }
+    }
+
+    @Override
+    public boolean entityExists(PlatformEntityDTO platformEntity) {
+        lookups.incrementAndGet();
+        final String cacheKey = cacheKey(platformEntity.getEntityType(), platformEntity.getPlatformId());
+        if (knownEntities.containsKey(cacheKey)) {
+            lruHits.incrementAndGet();
+            return true;
+        }
+
+        if (!seenUids.get(platformEntity.getEntityType()).mightContain(platformEntity.getPlatformId())) {
+            bloomNegatives.incrementAndGet();
+            if (bloomNegativesAuthoritative && warmedUp) {
+                return false;
+            }
+        }
+
+        delegatedLookups.incrementAndGet();
+        boolean exists = delegate.entityExists(platformEntity);
+        if (exists) {
+            markExists(platformEntity.getEntityType(), platformEntity.getPlatformId());
+        }
+        return exists;
+    }
+
+    @Override
+    public int reconcileActorTypes(Collection<PlatformEntityDTO> platformEntities) {
+        return delegate.reconcileActorTypes(platformEntities);
+    }
+
+    @Override
+    public boolean relationshipExists(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity,
+                                      GrassrootRelationship.Type relationshipType) {
+        return delegate.relationshipExists(tailEntity, headEntity, relationshipType);
+    }
+
+    @Override
+    public List<Boolean> relationshipsExist(List<PlatformRelationshipDTO> relationships) {
+        return delegate.relationshipsExist(relationships);
+    }
+
+    @Override
+    public boolean addEntityToGraph(PlatformEntityDTO platformEntity) {
+        boolean added = delegate.addEntityToGraph(platformEntity);
+        if (added) {
+            markExists(platformEntity.getEntityType(), platformEntity.getPlatformId());
+        }
+        return added;
+    }
+
+    @Override
+    public boolean addMissingEntities(Collection<PlatformEntityDTO> platformEntities) {
+        boolean added = delegate.addMissingEntities(platformEntities);
+        if (added) {
+            afterCommit(() -> platformEntities.forEach(entity -> cacheExists(entity.getEntityType(), entity.getPlatformId())));
+        }
+        return added;
+    }
+
+    @Override
+    public boolean removeEntityFromGraph(PlatformEntityDTO platformEntity) {
+        // invalidated on both sides of the commit, since until the delete lands a concurrent check still sees the entity
+        final String cacheKey = cacheKey(platformEntity.getEntityType(), platformEntity.getPlatformId());
+        knownEntities.remove(cacheKey);
+        boolean removed = delegate.removeEntityFromGraph(platformEntity);
+        afterCommit(() -> knownEntities.remove(cacheKey));
+        return removed;
+    }
+
+    @Override
+    public boolean mergeEntities(List<GrassrootGraphEntity> graphEntities) {
+        boolean merged = delegate.mergeEntities(graphEntities);
+        if (merged) {
+            afterCommit(() -> graphEntities.forEach(entity -> cacheExists(entity.getEntityType(), entity.getPlatformUid())));
+        }
+        return merged;
+    }
+
+    public void invalidateAll() {
+        knownEntities.clear();
+    }
+
+    public double lruHitRate() {
+        final long total = lookups.get();
+        return total == 0 ? 0 : (double) lruHits.get() / total;
+    }
+
+    // share of lookups that went through to the graph
+    public double delegationRate() {
+        final long total = lookups.get();
+        return total == 0 ? 0 : (double) delegatedLookups.get() / total;
+    }
+
+    @Scheduled(fixedDelayString = "${graph.cache.report.millis:300000}")
+    public void reportHitRates() {
+        log.info("Existence cache, lookups: {}, LRU hits: {} ({}), bloom negatives: {}, went to graph: {} ({}), " +
+                        "LRU entries: {}, bloom entries: {}", lookups.get(), lruHits.get(), String.format("%.3f", lruHitRate()),
+                bloomNegatives.get(), delegatedLookups.get(), String.format("%.3f", delegationRate()),
+                knownEntities.size(), seenUids.values().stream().mapToLong(ScalableBloomFilter::count).sum());
+    }
+
+    // runs once the app is up, off the startup thread, so that startup is not held up on large graphs
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!warmUpEnabled) return;
+        Thread warmUpThread = new Thread(() -> {
+            boolean completed = true;
+            for (GraphEntityType entityType : GraphEntityType.values()) {
+                try {
+                    long count = warmUp(entityType);
+                    log.info("Warmed existence cache with {} uids of type {}", count, entityType);
+                } catch (RuntimeException e) {
+                    log.error("Error warming existence cache for type {}, continuing without", entityType, e);
+                    completed = false;
+                }
+            }
+            this.warmedUp = completed;
+        }, "existence-cache-warmup");
+        warmUpThread.setDaemon(true);
+        warmUpThread.start();
+    }
+
+    // one scan of the label in a session of its own, streamed off the bolt transaction so that neither a sort nor the
+    // whole result is held; other drivers (embedded, in tests) go through the session's query instead
+    private long warmUp(GraphEntityType entityType) {
+        final String statement = String.format(WARM_UP_SCAN, label(entityType));
+        final ScalableBloomFilter filter = seenUids.get(entityType);
+        final Session session = sessionFactory.openSession();
+        long count = 0;
+        try (Transaction transaction = session.beginTransaction(Transaction.Type.READ_ONLY)) {
+            if (transaction instanceof BoltTransaction) {
+                StatementResult result = ((BoltTransaction) transaction).nativeBoltTransaction().run(statement);
+                while (result.hasNext()) {
+                    org.neo4j.driver.v1.Value uid = result.next().get("uid");
+                    if (!uid.isNull()) {
+                        filter.add(uid.asString());
+                        count++;
+                    }
+                }
+            } else {
+                for (Map<String, Object> row : session.query(statement, Collections.emptyMap(), true).queryResults()) {
+                    if (row.get("uid") != null) {
+                        filter.add((String) row.get("uid"));
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private void markExists(GraphEntityType entityType, String platformId) {
+        afterCommit(() -> cacheExists(entityType, platformId));
+    }
+
+    // inside a unit of work the write (or an uncommitted one that was read) may yet be rolled back
+    private void afterCommit(Runnable cacheUpdate) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    cacheUpdate.run();
+                }
+            });
+        } else {
+            cacheUpdate.run();
+        }
+    }
+
+    private void cacheExists(GraphEntityType entityType, String platformId) {
+        if (platformId == null) return;
+        knownEntities.put(cacheKey(entityType, platformId), Boolean.TRUE);
+        seenUids.get(entityType).add(platformId);
+    }
+
+    private String cacheKey(GraphEntityType entityType, String platformId) {
+        return entityType.name() + ":" + platformId;
+    }
+
+}
@@ -1,14 +1,33 @@
 package za.org.grassroot.graph.services;
 
+import za.org.grassroot.graph.domain.GrassrootGraphEntity;
 import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
 
+import java.util.Collection;
+import java.util.List;
+
 public interface ExistenceBroker {
 
     boolean entityExists(PlatformEntityDTO platformEntity);
 
+    // fills in the actor type on any of these actors that are in the graph without one, returns how many were
+    int reconcileActorTypes(Collection<PlatformEntityDTO> platformEntities);
+
     boolean relationshipExists(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity,
                                   GrassrootRelationship.Type relationshipType);
 
+    // checks many pairs in one query per relationship and entity type combination, answers in the order given
+    List<Boolean> relationshipsExist(List<PlatformRelationshipDTO> relationships);
+
     boolean addEntityToGraph(PlatformEntityDTO platformEntity);
 
+    // as above, but for many entities at once, and leaving any that already exist as they are
+    boolean addMissingEntities(Collection<PlatformEntityDTO> platformEntities);
+
+    // removes the entity and its relationships, returning false if the delete failed
+    boolean removeEntityFromGraph(PlatformEntityDTO platformEntity);
+
+    // creates whichever of the entities are not yet in the graph, with one statement per entity type
+    boolean mergeEntities(List<GrassrootGraphEntity> graphEntities);
+
 }
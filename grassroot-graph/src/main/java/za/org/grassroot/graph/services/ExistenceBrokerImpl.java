@@ -14,39 +14,68 @@ import za.org.grassroot.graph.repository.EventRepository;
 import za.org.grassroot.graph.repository.InteractionRepository;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
 @Service @Slf4j
 public class ExistenceBrokerImpl implements ExistenceBroker {
-    
+
     private final ActorRepository actorRepository;
     private final EventRepository eventRepository;
     private final InteractionRepository interactionRepository;
 
-    public ExistenceBrokerImpl(ActorRepository actorRepository, EventRepository eventRepository, InteractionRepository interactionRepository) {
+    private final BoltStatementRunner statementRunner;
+
+    public ExistenceBrokerImpl(ActorRepository actorRepository, EventRepository eventRepository,
+                               InteractionRepository interactionRepository, BoltStatementRunner statementRunner) {
         this.actorRepository = actorRepository;
         this.eventRepository = eventRepository;
         this.interactionRepository = interactionRepository;
+        this.statementRunner = statementRunner;
     }
 
     @Override
     @Transactional(readOnly = true)
     public boolean entityExists(PlatformEntityDTO platformEntity) {
         log.info("Checking existence of entity with id {}", platformEntity.getPlatformId());
-        boolean exists = false;
-        switch (platformEntity.getEntityType()) {
-            case ACTOR:         exists = actorRepository.countByPlatformUid(platformEntity.getPlatformId()) > 0; break;
-            case EVENT:         exists = eventRepository.countByPlatformUid(platformEntity.getPlatformId()) > 0; break;
-            case INTERACTION:   exists = interactionRepository.countById(platformEntity.getPlatformId()) > 0; break;
-            default:            log.error("Error! Unsupported entity type provided."); exists = false; break;
-        }
-        if (exists && platformEntity.isActor()) {
-            Actor actor = actorRepository.findByPlatformUid(platformEntity.getPlatformId());
-            if (actor.getActorType() == null) {
-                actor.setActorType(platformEntity.getActorType());
-                actorRepository.save(actor);
-            }
+        final String statement = IngestStatements.entityExists(platformEntity.getEntityType());
+        if (statement == null) {
+            log.error("Error! Unsupported entity type provided.");
+            return false;
         }
-        return exists;
+        Iterator<Map<String, Object>> results = statementRunner.run(statement,
+                Collections.singletonMap("uid", platformEntity.getPlatformId())).getRows().iterator();
+        return results.hasNext() && Boolean.TRUE.equals(results.next().get("exists"));
+    }
+
+    @Override
+    @Transactional
+    public int reconcileActorTypes(Collection<PlatformEntityDTO> platformEntities) {
+        List<Map<String, Object>> rows = platformEntities.stream()
+                .filter(entity -> entity.isActor() && entity.getActorType() != null && entity.getPlatformId() != null)
+                .map(entity -> {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("uid", entity.getPlatformId());
+                    row.put("actorType", entity.getActorType().name());
+                    return row;
+                }).collect(Collectors.toList());
+        if (rows.isEmpty()) return 0;
+
+        Iterator<Map<String, Object>> results = statementRunner.run(IngestStatements.reconcileActorTypes(),
+                Collections.singletonMap("rows", rows)).getRows().iterator();
+        int reconciled = results.hasNext() ? ((Number) results.next().get("reconciled")).intValue() : 0;
+        log.debug("Reconciled actor types, {} checked, {} filled in", rows.size(), reconciled);
+        return reconciled;
     }
 
     @Override
@@ -54,102 +83,193 @@ public class ExistenceBrokerImpl implements ExistenceBroker {
     public boolean relationshipExists(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity,
                                       GrassrootRelationship.Type relationshipType) {
         log.info("Checking existence of relationship between {} and {}", tailEntity.getPlatformId(), headEntity.getPlatformId());
-        switch (relationshipType) {
-            case PARTICIPATES:  return doesParticipationExist(tailEntity, headEntity);
-            case GENERATOR:     return doesGenerationExist(tailEntity, headEntity);
-            case OBSERVES:      log.error("Observer relationship not yet implemented"); return false;
-            default:            log.error("Error! Unsupported relationship type provided."); return false;
+        if (relationshipType == GrassrootRelationship.Type.OBSERVES) {
+            log.error("Observer relationship not yet implemented");
+            return false;
+        }
+
+        // a combination that cannot be created cannot exist either
+        final String statement = IngestStatements.relationshipExists(relationshipType, tailEntity.getEntityType(),
+                headEntity.getEntityType());
+        if (statement == null) return false;
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("tailUid", tailEntity.getPlatformId());
+        parameters.put("headUid", headEntity.getPlatformId());
+        Iterator<Map<String, Object>> results = statementRunner.run(statement, parameters).getRows().iterator();
+        return results.hasNext() && Boolean.TRUE.equals(results.next().get("exists"));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<Boolean> relationshipsExist(List<PlatformRelationshipDTO> relationships) {
+        Boolean[] exists = new Boolean[relationships.size()];
+        Arrays.fill(exists, false);
+        Map<List<Object>, List<Map<String, Object>>> rowsByGroup = new LinkedHashMap<>();
+        for (int i = 0; i < relationships.size(); i++) {
+            PlatformRelationshipDTO relationship = relationships.get(i);
+            if (relationship.getRelationshipType() == GrassrootRelationship.Type.OBSERVES) continue;
+            Map<String, Object> row = new HashMap<>();
+            row.put("idx", i);
+            row.put("tailUid", relationship.getTailEntity().getPlatformId());
+            row.put("headUid", relationship.getHeadEntity().getPlatformId());
+            rowsByGroup.computeIfAbsent(Arrays.asList(relationship.getRelationshipType(),
+                    relationship.getTailEntity().getEntityType(), relationship.getHeadEntity().getEntityType()),
+                    key -> new ArrayList<>()).add(row);
         }
+
+        rowsByGroup.forEach((group, rows) -> {
+            final String statement = IngestStatements.relationshipsExist((GrassrootRelationship.Type) group.get(0),
+                    (GraphEntityType) group.get(1), (GraphEntityType) group.get(2));
+            if (statement == null) return;
+            statementRunner.run(statement, Collections.singletonMap("rows", rows)).getRows()
+                    .forEach(result -> exists[((Number) result.get("idx")).intValue()] = true);
+        });
+        return Arrays.asList(exists);
     }
 
     @Override
     @Transactional
     public boolean addEntityToGraph(PlatformEntityDTO platformEntity) {
         log.info("Adding entity to graph: {}", platformEntity);
-        switch (platformEntity.getEntityType()) {
-            case ACTOR:
-                Actor actor = new Actor();
-                actor.setPlatformUid(platformEntity.getPlatformId());
-                if (platformEntity.getActorType() != null)
-                    actor.setActorType(platformEntity.getActorType());
-                actorRepository.save(actor);
-                return true;
-            case EVENT:
-                Event event = new Event();
-                event.setPlatformUid(platformEntity.getPlatformId());
-                event.setEventStartTimeEpochMilli(Instant.now().toEpochMilli());
-                if (platformEntity.getEventType() != null)
-                    event.setEventType(platformEntity.getEventType());
-                eventRepository.save(event);
-                return true;
-            case INTERACTION:
-                Interaction interaction = new Interaction();
-                interaction.setId(platformEntity.getPlatformId()); // change to platformUid once implemented in main
-                if (platformEntity.getInteractionType() != null)
-                    interaction.setInteractionType(platformEntity.getInteractionType());
-                interactionRepository.save(interaction);
-                return true;
-        }
-        return false;
+        GrassrootGraphEntity graphEntity = toGraphEntity(platformEntity);
+        return graphEntity != null && saveEntity(graphEntity);
     }
 
-    private boolean doesParticipationExist(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity) {
-        GrassrootGraphEntity participant = fetchGraphEntity(tailEntity.getEntityType(), tailEntity.getPlatformId(), 0);
-        GrassrootGraphEntity participatesIn = fetchGraphEntity(headEntity.getEntityType(), headEntity.getPlatformId(), 0);
+    @Override
+    @Transactional
+    public boolean addMissingEntities(Collection<PlatformEntityDTO> platformEntities) {
+        List<GrassrootGraphEntity> graphEntities = new ArrayList<>();
+        for (PlatformEntityDTO platformEntity : platformEntities) {
+            GrassrootGraphEntity graphEntity = toGraphEntity(platformEntity);
+            if (graphEntity == null) {
+                log.error("Error! Unsupported entity type provided: {}", platformEntity.getEntityType());
+                return false;
+            }
+            graphEntities.add(graphEntity);
+        }
+        return mergeEntities(graphEntities);
+    }
 
-        if (participant == null || participatesIn == null) {
-            log.error("Error, one of the entities does not exist in graph, participation could not be checked");
+    @Override
+    @Transactional
+    public boolean removeEntityFromGraph(PlatformEntityDTO platformEntity) {
+        log.info("Removing entity from graph: {}", platformEntity.getPlatformId());
+        final String statement = IngestStatements.deleteEntity(platformEntity.getEntityType());
+        if (statement == null || platformEntity.getPlatformId() == null) {
+            log.error("Could not delete entity from graph, unsupported type or no id: {}", platformEntity);
             return false;
         }
+        statementRunner.run(statement, Collections.singletonMap("uid", platformEntity.getPlatformId()));
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public boolean mergeEntities(List<GrassrootGraphEntity> graphEntities) {
+        Map<GraphEntityType, List<Map<String, Object>>> rowsByType = new EnumMap<>(GraphEntityType.class);
+        boolean allPersisted = true;
+        for (GrassrootGraphEntity entity : graphEntities) {
+            if (entity.getPlatformUid() == null && !entity.isInteraction()) {
+                // no key to merge on, so nothing to dedupe against either; fall back to a plain save
+                log.info("Entity has no platform uid, saving individually: {}", entity);
+                allPersisted = saveEntity(entity) && allPersisted;
+                continue;
+            }
+            rowsByType.computeIfAbsent(entity.getEntityType(), type -> new ArrayList<>()).add(toMergeRow(entity));
+        }
 
-        switch (participant.getEntityType()) {
-            case ACTOR:         return checkActorParticipation((Actor) participant, participatesIn);
-            case EVENT:         return checkEventParticipation((Event) participant, participatesIn);
-            case INTERACTION:   log.error("Error! Interactions cannot participate in other entities"); return false;
-            default:            log.error("Error! Participant has unsupported entity type"); return false;
+        for (Map.Entry<GraphEntityType, List<Map<String, Object>>> entry : rowsByType.entrySet()) {
+            allPersisted = mergeRows(entry.getKey(), entry.getValue()) && allPersisted;
         }
+        return allPersisted;
     }
 
-    private boolean doesGenerationExist(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity) {
-        GrassrootGraphEntity generator = fetchGraphEntity(tailEntity.getEntityType(), tailEntity.getPlatformId(), 0);
-        GrassrootGraphEntity generated = fetchGraphEntity(headEntity.getEntityType(), headEntity.getPlatformId(), 0);
-
-        if (generator == null || generated == null) {
-            log.error("Error! One of the entities does not exist in graph, generation could not be checked");
+    private boolean mergeRows(GraphEntityType entityType, List<Map<String, Object>> rows) {
+        final String statement = IngestStatements.mergeEntities(entityType);
+        if (statement == null) {
+            log.error("Error! Unsupported entity type provided.");
             return false;
         }
 
-        switch (generated.getEntityType()) {
-            case ACTOR:         return generator.equals(((Actor) generated).getCreatedByActor());
-            case EVENT:         return generator.equals(((Event) generated).getCreator());
-            case INTERACTION:   return generator.equals(((Interaction) generated).getInitiator());
-            default:            log.error("Error! Participant has unsupported entity type"); return false;
+        try {
+            BoltStatementRunner.StatementOutcome outcome = statementRunner.run(statement, Collections.singletonMap("rows", rows));
+            log.info("Merged {} entities of type {}, {} created", rows.size(), entityType, outcome.getNodesCreated());
+            return true;
+        } catch (RuntimeException e) {
+            if (TransientErrors.isTransient(e)) throw e; // so the whole unit of work can be retried
+            log.error("Could not merge entities into graph", e);
+            return false;
         }
     }
 
-    private boolean checkActorParticipation(Actor participant, GrassrootGraphEntity participatesIn) {
-        switch (participatesIn.getEntityType()) {
-            case ACTOR:         return participant.getRelationshipWith((Actor) participatesIn) != null;
-            case EVENT:         return participant.getRelationshipWith((Event) participatesIn) != null;
-            case INTERACTION:   return participant.isParticipantIn((Interaction) participatesIn);
-            default:            log.error("Error! Target has unsupported entity type"); return false;
+    private Map<String, Object> toMergeRow(GrassrootGraphEntity entity) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", UUID.randomUUID().toString());
+        row.put("creationTime", (entity.getCreationTime() == null ? Instant.now() : entity.getCreationTime()).toString());
+        switch (entity.getEntityType()) {
+            case ACTOR:
+                Actor actor = (Actor) entity;
+                row.put("uid", actor.getPlatformUid());
+                row.put("actorType", actor.getActorType() == null ? null : actor.getActorType().name());
+                row.put("tags", actor.getStdTags());
+                row.put("props", IngestStatements.stdProps(actor.getStdProps()));
+                break;
+            case EVENT:
+                Event event = (Event) entity;
+                row.put("uid", event.getPlatformUid());
+                row.put("eventType", event.getEventType() == null ? null : event.getEventType().name());
+                row.put("eventStartTime", event.getEventStartTimeEpochMilli());
+                row.put("tags", event.getStdTags());
+                row.put("props", IngestStatements.stdProps(event.getStdProps()));
+                break;
+            case INTERACTION:
+                Interaction interaction = (Interaction) entity;
+                if (interaction.getId() != null) row.put("id", interaction.getId());
+                row.put("uid", interaction.getPlatformUid() == null ? row.get("id") : interaction.getPlatformUid());
+                row.put("interactionType", interaction.getInteractionType() == null ? null :
+                        interaction.getInteractionType().name());
+                break;
         }
+        return row;
     }
 
-    private boolean checkEventParticipation(Event participant, GrassrootGraphEntity participatesIn) {
-        switch (participatesIn.getEntityType()) {
-            case ACTOR:         return participant.isParticipantIn((Actor) participatesIn);
-            default:            log.error("Error! Event can only participate in actor"); return false;
+    private boolean saveEntity(GrassrootGraphEntity graphEntity) {
+        try {
+            switch (graphEntity.getEntityType()) {
+                case ACTOR:         actorRepository.save((Actor) graphEntity, 0); break;
+                case EVENT:         eventRepository.save((Event) graphEntity, 0); break;
+                case INTERACTION:   interactionRepository.save((Interaction) graphEntity, 0); break;
+            }
+            return true;
+        } catch (IllegalArgumentException|ClassCastException e) {
+            log.error("Could not persist entity in graph", e);
+            return false;
         }
     }
 
-    private GrassrootGraphEntity fetchGraphEntity(GraphEntityType entityType, String Uid, int depth) {
-        switch (entityType) {
-            case ACTOR:         return actorRepository.findByPlatformUid(Uid, depth);
-            case EVENT:         return eventRepository.findByPlatformUid(Uid, depth);
-            case INTERACTION:   return interactionRepository.findById(Uid, depth).orElse(null);
-            default:            return null;
+    private GrassrootGraphEntity toGraphEntity(PlatformEntityDTO platformEntity) {
+        switch (platformEntity.getEntityType()) {
+            case ACTOR:
+                Actor actor = new Actor();
+                actor.setPlatformUid(platformEntity.getPlatformId());
+                if (platformEntity.getActorType() != null)
+                    actor.setActorType(platformEntity.getActorType());
+                return actor;
+            case EVENT:
+                Event event = new Event();
+                event.setPlatformUid(platformEntity.getPlatformId());
+                event.setEventStartTimeEpochMilli(Instant.now().toEpochMilli());
+                if (platformEntity.getEventType() != null)
+                    event.setEventType(platformEntity.getEventType());
+                return event;
+            case INTERACTION:
+                Interaction interaction = new Interaction();
+                interaction.setPlatformUid(platformEntity.getPlatformId());
+                if (platformEntity.getInteractionType() != null)
+                    interaction.setInteractionType(platformEntity.getInteractionType());
+                return interaction;
         }
+        return null;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package za.org.grassroot.graph.services;
+
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.Event;
+import za.org.grassroot.graph.domain.Interaction;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+
+// node labels for writing Cypher against the entities directly
+final class GraphEntityLabels {
+
+    private GraphEntityLabels() {}
+
+    static String label(GraphEntityType entityType) {
+        switch (entityType) {
+            case ACTOR:         return Actor.class.getSimpleName();
+            case EVENT:         return Event.class.getSimpleName();
+            default:            return Interaction.class.getSimpleName();
+        }
+    }
+
+}
@@ -3,8 +3,17 @@ package za.org.grassroot.graph.services;
 import reactor.core.publisher.Mono;
 import za.org.grassroot.graph.dto.IncomingGraphAction;
 
+import java.util.List;
+
 public interface IncomingActionProcessor {
 
     Mono<Boolean> processIncomingAction(IncomingGraphAction action);
 
+    /**
+     * Writes all of the actions in a single transaction. If that fails, falls back to processing each one on its
+     * own, so that one bad action does not fail the others.
+     * @return whether each action succeeded, in the same order as passed in
+     */
+    Mono<List<Boolean>> processIncomingActions(List<IncomingGraphAction> actions);
+
 }
@@ -1,67 +1,297 @@
 package za.org.grassroot.graph.services;
 
 import lombok.extern.slf4j.Slf4j;
+import org.neo4j.ogm.session.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.CollectionUtils;
 import reactor.core.publisher.Mono;
 import za.org.grassroot.graph.domain.Actor;
-import za.org.grassroot.graph.domain.Event;
 import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
-import za.org.grassroot.graph.domain.GrassrootGraphEntity;
-import za.org.grassroot.graph.domain.Interaction;
+import za.org.grassroot.graph.dto.ActionType;
 import za.org.grassroot.graph.dto.IncomingDataObject;
 import za.org.grassroot.graph.dto.IncomingGraphAction;
 import za.org.grassroot.graph.dto.IncomingRelationship;
 import za.org.grassroot.graph.dto.IncomingAnnotation;
-import za.org.grassroot.graph.repository.ActorRepository;
-import za.org.grassroot.graph.repository.EventRepository;
-import za.org.grassroot.graph.repository.InteractionRepository;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Service @Slf4j
 public class IncomingActionProcessorImpl implements IncomingActionProcessor {
 
-    private final ActorRepository actorRepository;
-    private final EventRepository eventRepository;
-    private final InteractionRepository interactionRepository;
-
     private final ExistenceBroker existenceBroker;
     private final RelationshipBroker relationshipBroker;
     private final AnnotationBroker annotationBroker;
 
+    // the brokers' own transactional methods join this, so each unit of work is one commit. the session the brokers
+    // are given is SDN's shared proxy, which resolves to the session bound to the current transaction, so every unit
+    // of work, on whichever worker thread, has an identity map of its own that is dropped when it completes
+    private final TransactionTemplate unitOfWork;
+    private final Session session;
+
+    // actions with more operations than this are committed in chunks of this size, zero means never chunk
+    @Value("${graph.transaction.chunk.size:0}")
+    private int chunkSize;
+
+    @Value("${graph.transaction.retry.attempts:3}")
+    private int retryAttempts;
+
+    @Value("${graph.transaction.retry.backoff.millis:50}")
+    private long retryBackoffMillis;
+
     @Autowired
-    public IncomingActionProcessorImpl(ActorRepository actorRepository, EventRepository eventRepository,
-                                       InteractionRepository interactionRepository, ExistenceBroker existenceBroker,
-                                       RelationshipBroker relationshipBroker, AnnotationBroker annotationBroker) {
-        this.actorRepository = actorRepository;
-        this.eventRepository = eventRepository;
-        this.interactionRepository = interactionRepository;
+    public IncomingActionProcessorImpl(ExistenceBroker existenceBroker, RelationshipBroker relationshipBroker,
+                                       AnnotationBroker annotationBroker, PlatformTransactionManager transactionManager,
+                                       Session session) {
         this.existenceBroker = existenceBroker;
         this.relationshipBroker = relationshipBroker;
         this.annotationBroker = annotationBroker;
+        this.session = session;
+        // always a fresh transaction, and so a fresh session, even if called within someone else's
+        this.unitOfWork = new TransactionTemplate(transactionManager);
+        this.unitOfWork.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
     }
 
     @Override
     public Mono<Boolean> processIncomingAction(IncomingGraphAction action) {
         return Mono.<Boolean>create(sink -> {
             log.info("Handling action, type: {}", action.getActionType());
-            boolean succeeded = false;
-            switch (action.getActionType()) {
-                case CREATE_ENTITY:         succeeded = createEntitiesAndRelationships(action); break;
-                case REMOVE_ENTITY:         succeeded = removeEntities(action.getDataObjects()); break;
-                case ANNOTATE_ENTITY:       succeeded = annotateEntities(action.getAnnotations()); break;
-                case CREATE_RELATIONSHIP:   succeeded = establishRelationships(action.getRelationships()); break;
-                case REMOVE_RELATIONSHIP:   succeeded = removeRelationships(action.getRelationships()); break;
-                case ANNOTATE_RELATIONSHIP: succeeded = annotateRelationships(action.getAnnotations()); break;
-                case REMOVE_ANNOTATION:     succeeded = removeAnnotations(action.getAnnotations()); break;
+            // kept out of the unit of work, as it should neither fail the action nor be rolled back with it
+            reconcileActorTypes(action);
+            sink.success(applyAction(action));
+        });
+    }
+
+    @Override
+    public Mono<List<Boolean>> processIncomingActions(List<IncomingGraphAction> actions) {
+        return Mono.<List<Boolean>>create(sink -> {
+            log.info("Handling {} actions in one unit of work", actions.size());
+            actions.forEach(this::reconcileActorTypes);
+            boolean succeeded;
+            try {
+                succeeded = executeWithRetry(status -> {
+                    WritePlan plan = WritePlanCompiler.compile(actions);
+                    log.info("Compiled {} actions into {} segments, {} of {} operations eliminated", actions.size(),
+                            plan.getSegments().size(), plan.eliminatedOperations(), plan.getInputOperations());
+                    boolean allSucceeded = plan.getSegments().stream().allMatch(this::applySegmentAndClear);
+                    if (!allSucceeded) {
+                        status.setRollbackOnly();
+                    }
+                    return allSucceeded;
+                });
+            } catch (RuntimeException e) {
+                log.error("Error writing actions together", e);
+                succeeded = false;
+            }
+
+            if (succeeded) {
+                sink.success(Collections.nCopies(actions.size(), true));
+            } else {
+                log.info("Combined unit of work rolled back, falling back to one action at a time");
+                sink.success(actions.stream().map(this::applyActionSafely).collect(Collectors.toList()));
             }
-            sink.success(succeeded);
         });
     }
 
+    private boolean applyAction(IncomingGraphAction action) {
+        for (IncomingGraphAction chunk : chunk(action)) {
+            boolean succeeded = executeWithRetry(status -> {
+                boolean chunkSucceeded = dispatch(chunk);
+                if (!chunkSucceeded) {
+                    log.info("Action failed, rolling back its unit of work");
+                    status.setRollbackOnly();
+                }
+                return chunkSucceeded;
+            });
+            if (!succeeded) return false;
+        }
+        return true;
+    }
+
+    // a deadlock or lock timeout has already rolled the whole transaction back, so it is re-run from the start
+    private boolean executeWithRetry(TransactionCallback<Boolean> work) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return Boolean.TRUE.equals(unitOfWork.execute(work));
+            } catch (RuntimeException e) {
+                if (attempt >= retryAttempts || !TransientErrors.isTransient(e)) {
+                    throw e;
+                }
+                // jittered, so that two writers that deadlocked on each other do not just collide again
+                final long backoff = retryBackoffMillis * (1L << (attempt - 1));
+                final long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                log.warn("Transient error on attempt {} of {}, retrying in {} msecs: {}", attempt, retryAttempts,
+                        delay, e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private boolean applyActionSafely(IncomingGraphAction action) {
+        try {
+            return applyAction(action);
+        } catch (RuntimeException e) {
+            log.error("Error processing action of type {}", action.getActionType(), e);
+            return false;
+        }
+    }
+
+    private boolean dispatch(IncomingGraphAction action) {
+        switch (action.getActionType()) {
+            case CREATE_ENTITY:         return createEntitiesAndRelationships(action);
+            case REMOVE_ENTITY:         return removeEntities(action.getDataObjects());
+            case ANNOTATE_ENTITY:       return annotateEntities(action.getAnnotations());
+            case CREATE_RELATIONSHIP:   return establishRelationships(action.getRelationships());
+            case REMOVE_RELATIONSHIP:   return removeRelationships(action.getRelationships());
+            case ANNOTATE_RELATIONSHIP: return annotateRelationships(action.getAnnotations());
+            case REMOVE_ANNOTATION:     return removeAnnotations(action.getAnnotations());
+            default:                    return false;
+        }
+    }
+
+    // a segment's loaded entities are of no use to the next, so the identity map does not grow with the batch
+    private boolean applySegmentAndClear(WritePlan.Segment segment) {
+        boolean succeeded = applySegment(segment);
+        session.clear();
+        return succeeded;
+    }
+
+    // same order as the compiler assumes: existence checks, creates, relationships, annotations, removals
+    private boolean applySegment(WritePlan.Segment segment) {
+        if (segment.isLiteral()) return dispatch(segment.getLiteralAction());
+
+        for (WritePlan.EntityAnnotationDelta delta : segment.getEntityAnnotations().values()) {
+            if (delta.isMustExist() && !existenceBroker.entityExists(delta.getEntity())) {
+                log.info("Entity to have annotation removed does not exist in graph.");
+                return false;
+            }
+        }
+
+        if (!segment.getEntityCreates().isEmpty() &&
+                !existenceBroker.mergeEntities(new ArrayList<>(segment.getEntityCreates().values()))) {
+            return false;
+        }
+
+        if (!establishRelationships(new ArrayList<>(segment.getRelationshipCreates().values()),
+                new ArrayList<>(segment.getRetainedEndpoints().values()))) {
+            return false;
+        }
+
+        for (WritePlan.EntityAnnotationDelta delta : segment.getEntityAnnotations().values()) {
+            if (!applyAnnotationDelta(delta)) return false;
+        }
+
+        if (!removeRelationshipDTOs(new ArrayList<>(segment.getRelationshipRemovals().values()))) {
+            return false;
+        }
+        // these were added earlier in the segment, so only the removal is left, and it cannot miss
+        return segment.getCancelledRemovals().values().stream().allMatch(relationship ->
+                relationshipBroker.removeParticipation(relationship.getTailEntity(), relationship.getHeadEntity()));
+    }
+
+    private boolean applyAnnotationDelta(WritePlan.EntityAnnotationDelta delta) {
+        PlatformEntityDTO entityDTO = delta.getEntity();
+        if (!delta.isMustExist() && !existenceBroker.entityExists(entityDTO) && !existenceBroker.addEntityToGraph(entityDTO)) {
+            log.error("Error! Entity did not previously exist in graph and could not be added, aborting");
+            return false;
+        }
+
+        // an annotation with nothing left to add still goes through, as it is what checks the entity can be annotated
+        if (delta.hasAdditions() || !delta.hasRemovals()) {
+            if (!annotationBroker.annotateEntity(entityDTO, delta.getProperties(), delta.getTags())) return false;
+        }
+        return !delta.hasRemovals() ||
+                annotationBroker.removeEntityAnnotation(entityDTO, delta.getKeysToRemove(), delta.getTagsToRemove());
+    }
+
+    // each chunk is all or nothing, and as creates and annotations are idempotent, a redelivered action re-applies the
+    // chunks that had committed before a failure harmlessly. removals are not (a removal whose target is already gone
+    // fails), so they are never chunked, and a failed one leaves nothing behind for its redelivery to trip on. entities
+    // come before relationships, as in one action
+    private List<IncomingGraphAction> chunk(IncomingGraphAction action) {
+        if (chunkSize <= 0 || action.operationsCount() <= chunkSize || isRemoval(action.getActionType())) {
+            return Collections.singletonList(action);
+        }
+
+        log.info("Splitting action with {} operations into chunks of {}", action.operationsCount(), chunkSize);
+        List<IncomingGraphAction> chunks = new ArrayList<>();
+        partition(action.getDataObjects()).forEach(dataObjects -> chunks.add(new IncomingGraphAction(
+                action.getActorPlatformId(), action.getActionType(), dataObjects, null, null)));
+        partition(action.getRelationships()).forEach(relationships -> chunks.add(new IncomingGraphAction(
+                action.getActorPlatformId(), action.getActionType(), null, relationships, null)));
+        partition(action.getAnnotations()).forEach(annotations -> chunks.add(new IncomingGraphAction(
+                action.getActorPlatformId(), action.getActionType(), null, null, annotations)));
+        return chunks;
+    }
+
+    private boolean isRemoval(ActionType actionType) {
+        return actionType == ActionType.REMOVE_ENTITY || actionType == ActionType.REMOVE_RELATIONSHIP;
+    }
+
+    private <T> List<List<T>> partition(List<T> operations) {
+        if (CollectionUtils.isEmpty(operations)) return Collections.emptyList();
+        return IntStream.range(0, (operations.size() + chunkSize - 1) / chunkSize)
+                .mapToObj(i -> operations.subList(i * chunkSize, Math.min((i + 1) * chunkSize, operations.size())))
+                .collect(Collectors.toList());
+    }
+
+    // housekeeping for actors that came into the graph without a type, so a failure here does not fail the action,
+    // though it is a unit of work of its own, retried on a transient error like any other
+    private void reconcileActorTypes(IncomingGraphAction action) {
+        if (action.getActionType() == ActionType.REMOVE_ENTITY) return;
+        try {
+            List<PlatformEntityDTO> actors = typedActorsIn(action);
+            if (!actors.isEmpty()) {
+                executeWithRetry(status -> existenceBroker.reconcileActorTypes(actors) >= 0);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error reconciling actor types, continuing with action", e);
+        }
+    }
+
+    private List<PlatformEntityDTO> typedActorsIn(IncomingGraphAction action) {
+        List<PlatformEntityDTO> actors = new ArrayList<>();
+        if (action.getDataObjects() != null) {
+            action.getDataObjects().forEach(dataObject -> addIfTypedActor(dataObject, actors));
+        }
+        if (action.getRelationships() != null) {
+            action.getRelationships().forEach(relationship -> {
+                PlatformRelationshipDTO relationshipDTO = PlatformRelationshipDTO.from(relationship);
+                actors.add(relationshipDTO.getTailEntity());
+                actors.add(relationshipDTO.getHeadEntity());
+            });
+        }
+        if (action.getAnnotations() != null) {
+            action.getAnnotations().stream().filter(annotation -> annotation.getEntity() != null)
+                    .forEach(annotation -> addIfTypedActor(annotation.getEntity(), actors));
+        }
+        actors.removeIf(entity -> !entity.isActor() || entity.getActorType() == null);
+        return actors;
+    }
+
+    // the data object's subtype cannot be read off an actor without a type, so those are skipped up front
+    private void addIfTypedActor(IncomingDataObject dataObject, List<PlatformEntityDTO> actors) {
+        if (dataObject.isActor() && ((Actor) dataObject.getGraphEntity()).getActorType() != null) {
+            actors.add(new PlatformEntityDTO(dataObject.getGraphEntity().getPlatformUid(), dataObject.getEntityType(),
+                    dataObject.getEntitySubtype()));
+        }
+    }
+
     private boolean createEntitiesAndRelationships(IncomingGraphAction action) {
         log.info("Handling entity and relationship creation");
         return createEntities(action.getDataObjects()) && establishRelationships(action.getRelationships());
@@ -70,20 +300,8 @@ public class IncomingActionProcessorImpl implements IncomingActionProcessor {
     private boolean createEntities(List<IncomingDataObject> entities) {
         if (CollectionUtils.isEmpty(entities)) return true;
         log.info("Creating {} entities", entities.size());
-        return entities.stream().map(this::createSingleEntity).reduce(true, (a, b) -> a && b);
-    }
-
-    private boolean createSingleEntity(IncomingDataObject dataObject) {
-        PlatformEntityDTO entityDTO = new PlatformEntityDTO(dataObject.getGraphEntity().getPlatformUid(),
-                dataObject.getEntityType(), dataObject.getEntitySubtype());
-
-        if (existenceBroker.entityExists(entityDTO)) {
-            log.info("Entity already exists in graph");
-            return true;
-        }
-
-        log.info("Data object did not exist, has entity type: {}, entity: {}", dataObject.getEntityType(), dataObject);
-        return persistGraphEntity(dataObject.getGraphEntity());
+        return existenceBroker.mergeEntities(entities.stream()
+                .map(IncomingDataObject::getGraphEntity).collect(Collectors.toList()));
     }
 
     private boolean removeEntities(List<IncomingDataObject> entities) {
@@ -102,7 +320,7 @@ public class IncomingActionProcessorImpl implements IncomingActionProcessor {
         }
 
         log.info("Entity {} exists, deleting now.", entityDTO);
-        return deleteGraphEntity(dataObject.getGraphEntity());
+        return existenceBroker.removeEntityFromGraph(entityDTO);
     }
 
     private boolean annotateEntities(List<IncomingAnnotation> annotations) {
@@ -130,57 +348,52 @@ public class IncomingActionProcessorImpl implements IncomingActionProcessor {
     private boolean establishRelationships(List<IncomingRelationship> relationships) {
         if (CollectionUtils.isEmpty(relationships)) return true;
         log.info("Creating {} relationships", relationships.size());
-        return relationships.stream().map(this::createSingleRelationship).reduce(true, (a, b) -> a && b);
+        return establishRelationships(relationships.stream()
+                .map(PlatformRelationshipDTO::from).collect(Collectors.toList()), new ArrayList<>());
     }
 
-    private boolean createSingleRelationship(IncomingRelationship relationship) {
-        PlatformEntityDTO tailEntity = new PlatformEntityDTO(relationship.getTailEntityPlatformId(),
-                relationship.getTailEntityType(), relationship.getTailEntitySubtype());
-        PlatformEntityDTO headEntity = new PlatformEntityDTO(relationship.getHeadEntityPlatformId(),
-                relationship.getHeadEntityType(), relationship.getHeadEntitySubtype());
-
-        if (!entitiesExist(tailEntity, headEntity)) {
+    // any further endpoints passed in are made sure of along with the relationships' own
+    private boolean establishRelationships(List<PlatformRelationshipDTO> relationshipDTOs, List<PlatformEntityDTO> endpoints) {
+        relationshipDTOs.forEach(relationship -> {
+            endpoints.add(relationship.getTailEntity());
+            endpoints.add(relationship.getHeadEntity());
+        });
+        if (endpoints.isEmpty()) return true;
+        if (!existenceBroker.addMissingEntities(endpoints)) {
             log.error("Error! Entities did not previously exist in graph and could not be added, aborting");
             return false;
         }
+        if (relationshipDTOs.isEmpty()) return true;
 
-        if (existenceBroker.relationshipExists(tailEntity, headEntity, relationship.getRelationshipType())) {
-            log.info("Relationship already exists in graph");
-            return true;
-        }
-
-        switch (relationship.getRelationshipType()) {
-            case PARTICIPATES:  return relationshipBroker.addParticipation(tailEntity, headEntity);
-            case GENERATOR:     return relationshipBroker.setGeneration(tailEntity, headEntity);
-            case OBSERVES:      log.error("Observer relationship not yet implemented"); return false;
-            default:            log.error("Unsupported relationship type provided"); return false;
-        }
+        List<RelationshipOutcome> outcomes = relationshipBroker.createRelationships(relationshipDTOs);
+        log.debug("Relationship outcomes: {}", outcomes);
+        return outcomes.stream().allMatch(RelationshipOutcome::isSuccess);
     }
 
     private boolean removeRelationships(List<IncomingRelationship> relationships) {
         if (CollectionUtils.isEmpty(relationships)) return true;
         log.info("Removing {} relationships", relationships.size());
-        return relationships.stream().map(this::removeSingleRelationship).reduce(true, (a, b) -> a && b);
+        return removeRelationshipDTOs(relationships.stream()
+                .map(PlatformRelationshipDTO::from).collect(Collectors.toList()));
     }
 
-    private boolean removeSingleRelationship(IncomingRelationship relationship) {
-        PlatformEntityDTO tailEntity = new PlatformEntityDTO(relationship.getTailEntityPlatformId(),
-                relationship.getTailEntityType(), relationship.getTailEntitySubtype());
-        PlatformEntityDTO headEntity = new PlatformEntityDTO(relationship.getHeadEntityPlatformId(),
-                relationship.getHeadEntityType(), relationship.getHeadEntitySubtype());
-
-        if (!existenceBroker.entityExists(tailEntity) || !existenceBroker.entityExists(headEntity)) {
-            log.error("Error! The head or tail of the relationship does not exist in graph");
-            return false;
-        }
+    private boolean removeRelationshipDTOs(List<PlatformRelationshipDTO> relationshipDTOs) {
+        if (relationshipDTOs.isEmpty()) return true;
+        List<Boolean> relationshipsExist = existenceBroker.relationshipsExist(relationshipDTOs);
+        return IntStream.range(0, relationshipDTOs.size())
+                .mapToObj(i -> removeSingleRelationship(relationshipDTOs.get(i), relationshipsExist.get(i)))
+                .reduce(true, (a, b) -> a && b);
+    }
 
-        if (!existenceBroker.relationshipExists(tailEntity, headEntity, relationship.getRelationshipType())) {
+    private boolean removeSingleRelationship(PlatformRelationshipDTO relationship, boolean relationshipExists) {
+        // an edge can only exist if both of its endpoints do, so this covers missing entities too
+        if (!relationshipExists) {
             log.error("Error! Relationship does not exist in graph so it cannot be removed");
             return false;
         }
 
         switch (relationship.getRelationshipType()) {
-            case PARTICIPATES:  return relationshipBroker.removeParticipation(tailEntity, headEntity);
+            case PARTICIPATES:  return relationshipBroker.removeParticipation(relationship.getTailEntity(), relationship.getHeadEntity());
             case GENERATOR:     log.error("Error! Cannot remove generator relationship"); return false;
             case OBSERVES:      log.error("Observer relationship not yet implemented"); return false;
             default:            log.error("Unsupported relationship type provided"); return false;
@@ -275,36 +488,6 @@ public class IncomingActionProcessorImpl implements IncomingActionProcessor {
         }
     }
 
-    @Transactional
-    private boolean persistGraphEntity(GrassrootGraphEntity graphEntity) {
-        try {
-            switch (graphEntity.getEntityType()) {
-                case ACTOR:         actorRepository.save((Actor) graphEntity, 0); break;
-                case EVENT:         eventRepository.save((Event) graphEntity, 0); break;
-                case INTERACTION:   interactionRepository.save((Interaction) graphEntity, 0); break;
-            }
-            return true;
-        } catch (IllegalArgumentException|ClassCastException e) {
-            log.error("Could not persist entity in graph", e);
-            return false;
-        }
-    }
-
-    @Transactional
-    private boolean deleteGraphEntity(GrassrootGraphEntity graphEntity) {
-        try {
-            switch (graphEntity.getEntityType()) {
-                case ACTOR:         actorRepository.deleteByPlatformUid(graphEntity.getPlatformUid()); break;
-                case EVENT:         eventRepository.deleteByPlatformUid(graphEntity.getPlatformUid()); break;
-                case INTERACTION:   interactionRepository.deleteById(((Interaction) graphEntity).getId()); break;
-            }
-            return true;
-        } catch (IllegalArgumentException|ClassCastException e) {
-            log.error("Could not delete entity from graph", e);
-            return false;
-        }
-    }
-
     private boolean entitiesExist(PlatformEntityDTO tailEntity, PlatformEntityDTO headEntity) {
         boolean entitiesExist = true;
 
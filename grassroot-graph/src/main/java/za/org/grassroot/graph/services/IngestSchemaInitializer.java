@@ -0,0 +1,202 @@
+package za.org.grassroot.graph.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neo4j.ogm.session.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+Runs before anything can write (the statement runner depends on it): first makes sure the indexes that every ingest
+statement looks entities up by are in place (in create mode, after filling in any interaction platform uids missing),
+creating them or failing startup depending on graph.schema.mode, then has the server plan each statement in the
+catalogue, so the first writes after a deploy do not each pay for planning
+ */
+@Component @Slf4j
+public class IngestSchemaInitializer {
+
+    private static final String SCHEMA_CREATE = "create";
+    private static final String SCHEMA_VALIDATE = "validate";
+
+    // interactions written before they had a platform uid carried it as their id, so it is copied across. nothing
+    // indexes a missing property, so this stops at the first one found, which once done is a single pass
+    private static final String INTERACTION_MISSING_UID = "MATCH (n:Interaction) " +
+            "WHERE n.platformUid IS NULL AND n.id IS NOT NULL RETURN id(n) AS nodeId LIMIT 1";
+    private static final String LAST_INTERACTION = "MATCH (n:Interaction) RETURN max(id(n)) AS nodeId";
+    // pages are ranges of node ids, each looked up by id, so no page scans the label again
+    private static final String BACKFILL_INTERACTION_UIDS = "UNWIND range($from, $to) AS nodeId " +
+            "MATCH (n) WHERE id(n) = nodeId AND n:Interaction AND n.platformUid IS NULL AND n.id IS NOT NULL " +
+            "SET n.platformUid = n.id RETURN count(n) AS filled";
+
+    private static final List<SchemaIndex> REQUIRED_INDEXES = Arrays.asList(
+            new SchemaIndex("Actor", "platformUid", true),
+            new SchemaIndex("Event", "platformUid", true),
+            new SchemaIndex("Interaction", "platformUid", true),
+            new SchemaIndex("Actor", "actorType", false));
+
+    private final Session session;
+
+    // create, validate (fail startup if anything is missing), or none
+    @Value("${graph.schema.mode:create}")
+    private String schemaMode;
+
+    @Value("${graph.schema.await.seconds:300}")
+    private long awaitSeconds;
+
+    @Value("${graph.schema.backfill.page:10000}")
+    private int backfillPageSize;
+
+    @Value("${graph.statements.warmup:true}")
+    private boolean warmup;
+
+    public IngestSchemaInitializer(Session session) {
+        this.session = session;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (SCHEMA_CREATE.equals(schemaMode)) {
+            backfillInteractionUids();
+        }
+        if (SCHEMA_CREATE.equals(schemaMode) || SCHEMA_VALIDATE.equals(schemaMode)) {
+            ensureIndexes();
+        }
+        if (warmup) {
+            warmUpStatements();
+        }
+    }
+
+    private void backfillInteractionUids() {
+        if (!session.query(INTERACTION_MISSING_UID, Collections.emptyMap()).queryResults().iterator().hasNext()) {
+            return;
+        }
+
+        final long lastNodeId = ((Number) session.query(LAST_INTERACTION, Collections.emptyMap()).queryResults()
+                .iterator().next().get("nodeId")).longValue();
+        final Map<String, Object> parameters = new HashMap<>();
+        long total = 0;
+        for (long from = 0; from <= lastNodeId; from += backfillPageSize) {
+            parameters.put("from", from);
+            parameters.put("to", Math.min(from + backfillPageSize - 1, lastNodeId));
+            total += ((Number) session.query(BACKFILL_INTERACTION_UIDS, parameters).queryResults().iterator().next()
+                    .get("filled")).longValue();
+        }
+        log.info("Copied id across to platform uid on {} interactions", total);
+    }
+
+    private void ensureIndexes() {
+        List<SchemaIndex> existing = new ArrayList<>();
+        session.query("CALL db.indexes()", Collections.emptyMap()).queryResults().forEach(row -> existing.add(
+                new SchemaIndex((String) row.get("label"), firstProperty(row.get("properties")),
+                        "node_unique_property".equals(row.get("type")))));
+
+        List<SchemaIndex> missing = new ArrayList<>(REQUIRED_INDEXES);
+        missing.removeAll(existing);
+        if (missing.isEmpty()) {
+            log.info("All {} indexes required for ingest are in place", REQUIRED_INDEXES.size());
+            return;
+        }
+
+        if (!SCHEMA_CREATE.equals(schemaMode)) {
+            throw new IllegalStateException("Graph is missing indexes required for ingest: " + missing);
+        }
+        for (SchemaIndex index : missing) {
+            log.info("Creating missing index: {}", index);
+            try {
+                session.query(index.createStatement(), Collections.emptyMap());
+            } catch (RuntimeException e) {
+                // most likely a plain index where a unique one is needed, or duplicates, both of which need a person
+                throw new IllegalStateException("Could not create index required for ingest: " + index, e);
+            }
+        }
+        session.query("CALL db.awaitIndexes($seconds)", Collections.singletonMap("seconds", awaitSeconds));
+    }
+
+    private void warmUpStatements() {
+        final long startTime = System.currentTimeMillis();
+        final Map<String, Object> parameters = sampleParameters();
+        int planned = 0;
+        for (Map.Entry<String, String> statement : IngestStatements.catalogue().entrySet()) {
+            try {
+                session.query("EXPLAIN " + statement.getValue(), parameters);
+                planned++;
+            } catch (RuntimeException e) {
+                log.error("Could not plan statement {}, it will be planned on first use", statement.getKey(), e);
+            }
+        }
+        log.info("Planned {} of {} ingest statements in {} msecs", planned, IngestStatements.catalogue().size(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    // every parameter any statement in the catalogue takes, with a value of the type it is given in use
+    private Map<String, Object> sampleParameters() {
+        Map<String, Object> row = new HashMap<>();
+        Arrays.asList("uid", "id", "creationTime", "actorType", "eventType", "interactionType", "tailUid", "headUid",
+                "relId", "establishedTime").forEach(key -> row.put(key, ""));
+        row.put("tags", new String[0]);
+        row.put("props", Collections.emptyMap());
+        row.put("eventStartTime", 0L);
+        row.put("idx", 0);
+
+        Map<String, Object> parameters = new HashMap<>(row);
+        parameters.put("rows", Collections.singletonList(row));
+        parameters.put("tags", Collections.emptyList());
+        return parameters;
+    }
+
+    private String firstProperty(Object properties) {
+        if (properties instanceof Object[] && ((Object[]) properties).length > 0) {
+            return String.valueOf(((Object[]) properties)[0]);
+        }
+        if (properties instanceof Collection && !((Collection<?>) properties).isEmpty()) {
+            return String.valueOf(((Collection<?>) properties).iterator().next());
+        }
+        return null;
+    }
+
+    private static final class SchemaIndex {
+        private final String label;
+        private final String property;
+        private final boolean unique;
+
+        SchemaIndex(String label, String property, boolean unique) {
+            this.label = label;
+            this.property = property;
+            this.unique = unique;
+        }
+
+        String createStatement() {
+            return unique ?
+                    String.format("CREATE CONSTRAINT ON (n:%s) ASSERT n.%s IS UNIQUE", label, property) :
+                    String.format("CREATE INDEX ON :%s(%s)", label, property);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SchemaIndex that = (SchemaIndex) o;
+            return unique == that.unique && Objects.equals(label, that.label) && Objects.equals(property, that.property);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(label, property, unique);
+        }
+
+        @Override
+        public String toString() {
+            return (unique ? "unique " : "") + ":" + label + "(" + property + ")";
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package za.org.grassroot.graph.services;
+
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static za.org.grassroot.graph.services.GraphEntityLabels.label;
+
+/*
+Catalogue of every statement the ingest path runs, by name: existence checks, upserts of entities and edges, edge
+deletes, and setting and removing tags and properties. Each is built once, for every combination of labels it can be
+used with, so a write only looks its statement up, the text sent for the same kind of write is always identical (and
+so hits the same cached plan), and the whole set can be planned ahead at startup
+ */
+final class IngestStatements {
+
+    private static final String ENTITY_EXISTS = "MATCH (n:%s {platformUid: $uid}) RETURN count(n) > 0 AS exists";
+
+    private static final String DELETE_ENTITY = "MATCH (n:%s {platformUid: $uid}) DETACH DELETE n";
+
+    private static final String MERGE_ACTORS = "UNWIND $rows AS row " +
+            "MERGE (n:Actor {platformUid: row.uid}) " +
+            "ON CREATE SET n.id = row.id, n.creationTime = row.creationTime, n.actorType = row.actorType, " +
+            "n.stdTags = row.tags, n += row.props";
+
+    private static final String MERGE_EVENTS = "UNWIND $rows AS row " +
+            "MERGE (n:Event {platformUid: row.uid}) " +
+            "ON CREATE SET n.id = row.id, n.creationTime = row.creationTime, n.eventType = row.eventType, " +
+            "n.eventStartTimeEpochMilli = row.eventStartTime, n.stdTags = row.tags, n += row.props";
+
+    private static final String MERGE_INTERACTIONS = "UNWIND $rows AS row " +
+            "MERGE (n:Interaction {platformUid: row.uid}) " +
+            "ON CREATE SET n.id = row.id, n.creationTime = row.creationTime, n.interactionType = row.interactionType";
+
+    // only ever fills in a missing type, never overwrites one
+    private static final String RECONCILE_ACTOR_TYPES = "UNWIND $rows AS row " +
+            "MATCH (n:Actor {platformUid: row.uid}) WHERE n.actorType IS NULL " +
+            "SET n.actorType = row.actorType " +
+            "RETURN count(n) AS reconciled";
+
+    // both endpoints are looked up through their unique index, and the edge is then found from one of them
+    private static final String RELATIONSHIP_EXISTS = "MATCH (a:%s {platformUid: $tailUid})-[r:%s]->(b:%s {platformUid: $headUid}) " +
+            "RETURN count(r) > 0 AS exists";
+
+    private static final String RELATIONSHIPS_EXIST = "UNWIND $rows AS row " +
+            "MATCH (a:%s {platformUid: row.tailUid})-[r:%s]->(b:%s {platformUid: row.headUid}) " +
+            "RETURN DISTINCT row.idx AS idx";
+
+    // rows that match both endpoints come back with their index, so anything missing from the result lacked an endpoint
+    private static final String MERGE_PARTICIPATION = "UNWIND $rows AS row " +
+            "MATCH (a:%s {platformUid: row.tailUid}), (b:%s {platformUid: row.headUid}) " +
+            "OPTIONAL MATCH (a)-[existing:PARTICIPATES]->(b) " +
+            "WITH row, a, b, count(existing) > 0 AS existed " +
+            "MERGE (a)-[r:PARTICIPATES]->(b) %s" +
+            "RETURN row.idx AS idx, existed";
+
+    // an entity has only one generator, so any other incoming generator edge is replaced
+    private static final String MERGE_GENERATION = "UNWIND $rows AS row " +
+            "MATCH (a:%s {platformUid: row.tailUid}), (b:%s {platformUid: row.headUid}) " +
+            "OPTIONAL MATCH (other)-[stale:GENERATOR]->(b) WHERE other <> a " +
+            "DELETE stale " +
+            "WITH DISTINCT row, a, b " +
+            "OPTIONAL MATCH (a)-[existing:GENERATOR]->(b) " +
+            "WITH row, a, b, count(existing) > 0 AS existed " +
+            "MERGE (a)-[r:GENERATOR]->(b) " +
+            "RETURN row.idx AS idx, existed";
+
+    private static final String DELETE_PARTICIPATION = "MATCH (a:%s {platformUid: $tailUid}), (b:%s {platformUid: $headUid}) " +
+            "OPTIONAL MATCH (a)-[r:PARTICIPATES]->(b) " +
+            "DELETE r " +
+            "RETURN count(DISTINCT a) AS matched";
+
+    // relationship entity properties, matching ActorInActor and ActorInEvent respectively
+    private static final String ACTOR_IN_ACTOR_ON_CREATE = "ON CREATE SET r.id = row.relId, r.establishedTime = row.establishedTime ";
+    private static final String ACTOR_IN_EVENT_ON_CREATE = "ON CREATE SET r.id = row.relId, r.responded = false ";
+
+    // no row back means no such entity; annotatable is false for the types that may not be annotated, as in the domain
+    private static final String ANNOTATE_ENTITY = "MATCH (n:%s {platformUid: $uid}) " +
+            "WITH n, %s AS annotatable " +
+            "FOREACH (ignored IN CASE WHEN annotatable THEN [1] ELSE [] END | " +
+            "SET n += $props, n.stdTags = coalesce(n.stdTags, []) + [tag IN $tags WHERE NOT tag IN coalesce(n.stdTags, [])]) " +
+            "RETURN annotatable";
+
+    // properties are blanked rather than removed, as OGM does, so the two stay interchangeable
+    private static final String REMOVE_ENTITY_ANNOTATION = "MATCH (n:%s {platformUid: $uid}) " +
+            "WITH n, %s AS annotatable " +
+            "FOREACH (ignored IN CASE WHEN annotatable THEN [1] ELSE [] END | " +
+            "SET n += $props, n.stdTags = [tag IN n.stdTags WHERE NOT tag IN $tags]) " +
+            "RETURN annotatable";
+
+    // tags are only carried by actor in actor participation (ActorInActor); no row back means a missing endpoint
+    private static final String ANNOTATE_PARTICIPATION = "MATCH (a:Actor {platformUid: $tailUid}), (b:Actor {platformUid: $headUid}) " +
+            "OPTIONAL MATCH (a)-[r:PARTICIPATES]->(b) " +
+            "FOREACH (ignored IN CASE WHEN r IS NULL THEN [] ELSE [1] END | " +
+            "SET r.stdTags = coalesce(r.stdTags, []) + [tag IN $tags WHERE NOT tag IN coalesce(r.stdTags, [])]) " +
+            "RETURN r IS NOT NULL AS related";
+
+    private static final String REMOVE_PARTICIPATION_ANNOTATION = "MATCH (a:Actor {platformUid: $tailUid}), (b:Actor {platformUid: $headUid}) " +
+            "OPTIONAL MATCH (a)-[r:PARTICIPATES]->(b) " +
+            "FOREACH (ignored IN CASE WHEN r IS NULL THEN [] ELSE [1] END | " +
+            "SET r.stdTags = [tag IN r.stdTags WHERE NOT tag IN $tags]) " +
+            "RETURN r IS NOT NULL AS related";
+
+    private static final String STD_PROPS_PREFIX = "stdProps."; // matches how OGM flattens @Properties maps
+
+    private static final String ACTOR_ANNOTATABLE = "coalesce(n.actorType IN ['INDIVIDUAL', 'GROUP'], false)";
+    private static final String EVENT_ANNOTATABLE = "coalesce(n.eventType <> 'SAFETY_ALERT', true)";
+
+    private static final Map<String, String> CATALOGUE = new LinkedHashMap<>();
+
+    static {
+        for (GraphEntityType entityType : GraphEntityType.values()) {
+            register(String.format(ENTITY_EXISTS, label(entityType)), "entity-exists", entityType);
+            register(String.format(DELETE_ENTITY, label(entityType)), "delete-entity", entityType);
+        }
+        register(MERGE_ACTORS, "merge-entities", GraphEntityType.ACTOR);
+        register(MERGE_EVENTS, "merge-entities", GraphEntityType.EVENT);
+        register(MERGE_INTERACTIONS, "merge-entities", GraphEntityType.INTERACTION);
+        register(RECONCILE_ACTOR_TYPES, "reconcile-actor-types");
+
+        for (GrassrootRelationship.Type relationshipType : GrassrootRelationship.Type.values()) {
+            for (GraphEntityType tailType : GraphEntityType.values()) {
+                for (GraphEntityType headType : GraphEntityType.values()) {
+                    if (RelationshipBrokerImpl.isSupported(relationshipType, tailType, headType)) {
+                        registerRelationship(relationshipType, tailType, headType);
+                    }
+                }
+            }
+        }
+
+        register(String.format(ANNOTATE_ENTITY, label(GraphEntityType.ACTOR), ACTOR_ANNOTATABLE), "annotate-entity", GraphEntityType.ACTOR);
+        register(String.format(ANNOTATE_ENTITY, label(GraphEntityType.EVENT), EVENT_ANNOTATABLE), "annotate-entity", GraphEntityType.EVENT);
+        register(String.format(REMOVE_ENTITY_ANNOTATION, label(GraphEntityType.ACTOR), ACTOR_ANNOTATABLE), "remove-entity-annotation", GraphEntityType.ACTOR);
+        register(String.format(REMOVE_ENTITY_ANNOTATION, label(GraphEntityType.EVENT), EVENT_ANNOTATABLE), "remove-entity-annotation", GraphEntityType.EVENT);
+        register(ANNOTATE_PARTICIPATION, "annotate-participation");
+        register(REMOVE_PARTICIPATION_ANNOTATION, "remove-participation-annotation");
+    }
+
+    private IngestStatements() {}
+
+    // name to statement, in the order they were registered
+    static Map<String, String> catalogue() {
+        return Collections.unmodifiableMap(CATALOGUE);
+    }
+
+    static String entityExists(GraphEntityType entityType) {
+        return CATALOGUE.get(name("entity-exists", entityType));
+    }
+
+    static String deleteEntity(GraphEntityType entityType) {
+        return CATALOGUE.get(name("delete-entity", entityType));
+    }
+
+    static String mergeEntities(GraphEntityType entityType) {
+        return CATALOGUE.get(name("merge-entities", entityType));
+    }
+
+    static String reconcileActorTypes() {
+        return CATALOGUE.get(name("reconcile-actor-types"));
+    }
+
+    // null for any combination that is not supported, here and in the rest below
+    static String relationshipExists(GrassrootRelationship.Type relationshipType, GraphEntityType tailType, GraphEntityType headType) {
+        return CATALOGUE.get(name("relationship-exists", relationshipType, tailType, headType));
+    }
+
+    static String relationshipsExist(GrassrootRelationship.Type relationshipType, GraphEntityType tailType, GraphEntityType headType) {
+        return CATALOGUE.get(name("relationships-exist", relationshipType, tailType, headType));
+    }
+
+    static String mergeRelationships(GrassrootRelationship.Type relationshipType, GraphEntityType tailType, GraphEntityType headType) {
+        return CATALOGUE.get(name("merge-relationships", relationshipType, tailType, headType));
+    }
+
+    static String deleteParticipation(GraphEntityType tailType, GraphEntityType headType) {
+        return CATALOGUE.get(name("delete-participation", tailType, headType));
+    }
+
+    static String annotateEntity(GraphEntityType entityType) {
+        return CATALOGUE.get(name("annotate-entity", entityType));
+    }
+
+    static String removeEntityAnnotation(GraphEntityType entityType) {
+        return CATALOGUE.get(name("remove-entity-annotation", entityType));
+    }
+
+    static String annotateParticipation() {
+        return CATALOGUE.get(name("annotate-participation"));
+    }
+
+    static String removeParticipationAnnotation() {
+        return CATALOGUE.get(name("remove-participation-annotation"));
+    }
+
+    // entity properties as the statements set them, keyed the way OGM stores them on the node
+    static Map<String, Object> stdProps(Map<String, String> properties) {
+        Map<String, Object> stdProps = new HashMap<>();
+        if (properties != null) {
+            properties.forEach((key, value) -> stdProps.put(STD_PROPS_PREFIX + key, value));
+        }
+        return stdProps;
+    }
+
+    private static void registerRelationship(GrassrootRelationship.Type relationshipType, GraphEntityType tailType,
+                                             GraphEntityType headType) {
+        final String tail = label(tailType), head = label(headType);
+        register(String.format(RELATIONSHIP_EXISTS, tail, relationshipType.name(), head),
+                "relationship-exists", relationshipType, tailType, headType);
+        register(String.format(RELATIONSHIPS_EXIST, tail, relationshipType.name(), head),
+                "relationships-exist", relationshipType, tailType, headType);
+        if (relationshipType == GrassrootRelationship.Type.GENERATOR) {
+            register(String.format(MERGE_GENERATION, tail, head),
+                    "merge-relationships", relationshipType, tailType, headType);
+        } else {
+            register(String.format(MERGE_PARTICIPATION, tail, head, participationOnCreate(tailType, headType)),
+                    "merge-relationships", relationshipType, tailType, headType);
+            register(String.format(DELETE_PARTICIPATION, tail, head),
+                    "delete-participation", tailType, headType);
+        }
+    }
+
+    private static void register(String statement, String operation, Object... qualifiers) {
+        CATALOGUE.put(name(operation, qualifiers), statement);
+    }
+
+    private static String name(String operation, Object... qualifiers) {
+        StringBuilder name = new StringBuilder(operation);
+        for (Object qualifier : qualifiers) {
+            name.append('/').append(qualifier);
+        }
+        return name.toString();
+    }
+
+    private static String participationOnCreate(GraphEntityType tailType, GraphEntityType headType) {
+        if (tailType != GraphEntityType.ACTOR) return "";
+        switch (headType) {
+            case ACTOR:     return ACTOR_IN_ACTOR_ON_CREATE;
+            case EVENT:     return ACTOR_IN_EVENT_ON_CREATE;
+            default:        return "";
+        }
+    }
+
+}
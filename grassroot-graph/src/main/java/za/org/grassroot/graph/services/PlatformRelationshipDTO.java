@@ -0,0 +1,33 @@
+package za.org.grassroot.graph.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+import za.org.grassroot.graph.dto.IncomingRelationship;
+
+@Getter @AllArgsConstructor
+public class PlatformRelationshipDTO {
+
+    private PlatformEntityDTO tailEntity;
+    private PlatformEntityDTO headEntity;
+    private GrassrootRelationship.Type relationshipType;
+
+    public static PlatformRelationshipDTO from(IncomingRelationship relationship) {
+        return new PlatformRelationshipDTO(
+                new PlatformEntityDTO(relationship.getTailEntityPlatformId(), relationship.getTailEntityType(),
+                        relationship.getTailEntitySubtype()),
+                new PlatformEntityDTO(relationship.getHeadEntityPlatformId(), relationship.getHeadEntityType(),
+                        relationship.getHeadEntitySubtype()),
+                relationship.getRelationshipType());
+    }
+
+    @Override
+    public String toString() {
+        return "PlatformRelationshipDTO{" +
+                "tail=" + tailEntity.getPlatformId() +
+                ", head=" + headEntity.getPlatformId() +
+                ", type=" + relationshipType +
+                '}';
+    }
+
+}
@@ -1,7 +1,16 @@
 package za.org.grassroot.graph.services;
 
+import java.util.List;
+
 public interface RelationshipBroker {
 
+    /**
+     * Upserts all of the relationships in a single transaction, grouped into one statement per relationship and
+     * entity type combination. Endpoints must already be in the graph.
+     * @return the outcome for each relationship, in the same order as passed in
+     */
+    List<RelationshipOutcome> createRelationships(List<PlatformRelationshipDTO> relationships);
+
     boolean addParticipation(PlatformEntityDTO participant, PlatformEntityDTO participatesIn);
 
     boolean removeParticipation(PlatformEntityDTO participant, PlatformEntityDTO participatesIn);
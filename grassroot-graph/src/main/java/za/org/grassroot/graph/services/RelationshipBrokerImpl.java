@@ -1,102 +1,129 @@
 package za.org.grassroot.graph.services;
 
 import lombok.extern.slf4j.Slf4j;
-import org.neo4j.ogm.session.Session;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import za.org.grassroot.graph.domain.Actor;
-import za.org.grassroot.graph.domain.Event;
-import za.org.grassroot.graph.domain.GrassrootGraphEntity;
 import za.org.grassroot.graph.domain.enums.GraphEntityType;
-import za.org.grassroot.graph.domain.Interaction;
-import za.org.grassroot.graph.domain.relationship.ActorInActor;
-import za.org.grassroot.graph.domain.relationship.ActorInEvent;
-import za.org.grassroot.graph.repository.ActorRepository;
-import za.org.grassroot.graph.repository.EventRepository;
-import za.org.grassroot.graph.repository.InteractionRepository;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
 
 @Service @Slf4j
 public class RelationshipBrokerImpl implements RelationshipBroker {
 
-    private final ActorRepository actorRepository;
-    private final EventRepository eventRepository;
-    private final InteractionRepository interactionRepository;
+    private static final List<List<GraphEntityType>> VALID_PARTICIPATIONS = Arrays.asList(
+            Arrays.asList(GraphEntityType.ACTOR, GraphEntityType.ACTOR),
+            Arrays.asList(GraphEntityType.ACTOR, GraphEntityType.EVENT),
+            Arrays.asList(GraphEntityType.ACTOR, GraphEntityType.INTERACTION),
+            Arrays.asList(GraphEntityType.EVENT, GraphEntityType.ACTOR));
 
-    private final Session session;
+    private static final List<List<GraphEntityType>> VALID_GENERATIONS = Arrays.asList(
+            Arrays.asList(GraphEntityType.ACTOR, GraphEntityType.ACTOR),
+            Arrays.asList(GraphEntityType.ACTOR, GraphEntityType.EVENT),
+            Arrays.asList(GraphEntityType.ACTOR, GraphEntityType.INTERACTION),
+            Arrays.asList(GraphEntityType.EVENT, GraphEntityType.EVENT));
 
-    public RelationshipBrokerImpl(ActorRepository actorRepository, EventRepository eventRepository, InteractionRepository interactionRepository, Session session) {
-        this.actorRepository = actorRepository;
-        this.eventRepository = eventRepository;
-        this.interactionRepository = interactionRepository;
-        this.session = session;
+    private final BoltStatementRunner statementRunner;
+
+    public RelationshipBrokerImpl(BoltStatementRunner statementRunner) {
+        this.statementRunner = statementRunner;
+    }
+
+    @Override
+    @Transactional
+    public List<RelationshipOutcome> createRelationships(List<PlatformRelationshipDTO> relationships) {
+        RelationshipOutcome[] outcomes = new RelationshipOutcome[relationships.size()];
+        Map<List<Object>, List<Map<String, Object>>> rowsByGroup = new LinkedHashMap<>();
+
+        for (int i = 0; i < relationships.size(); i++) {
+            PlatformRelationshipDTO relationship = relationships.get(i);
+            GraphEntityType tailType = relationship.getTailEntity().getEntityType();
+            GraphEntityType headType = relationship.getHeadEntity().getEntityType();
+            if (!isSupported(relationship.getRelationshipType(), tailType, headType)) {
+                log.error("Unsupported relationship: {}", relationship);
+                outcomes[i] = RelationshipOutcome.UNSUPPORTED;
+                continue;
+            }
+
+            Map<String, Object> row = new HashMap<>();
+            row.put("idx", i);
+            row.put("tailUid", relationship.getTailEntity().getPlatformId());
+            row.put("headUid", relationship.getHeadEntity().getPlatformId());
+            row.put("relId", UUID.randomUUID().toString());
+            row.put("establishedTime", Instant.now().toString());
+            rowsByGroup.computeIfAbsent(Arrays.asList(relationship.getRelationshipType(), tailType, headType),
+                    key -> new ArrayList<>()).add(row);
+        }
+
+        NavigableMap<Integer, Integer> supersededBy = new TreeMap<>();
+        rowsByGroup.forEach((group, rows) -> {
+            GrassrootRelationship.Type relationshipType = (GrassrootRelationship.Type) group.get(0);
+            mergeRelationships(relationshipType, (GraphEntityType) group.get(1), (GraphEntityType) group.get(2),
+                    relationshipType == GrassrootRelationship.Type.GENERATOR ? lastPerHead(rows, supersededBy) : rows,
+                    outcomes);
+        });
+        // latest first, so that a generator superseded in turn by a superseded one ends with the last one's outcome
+        supersededBy.descendingMap().forEach((superseded, by) -> outcomes[superseded] = outcomes[by]);
+
+        for (int i = 0; i < outcomes.length; i++) {
+            if (outcomes[i] == null) {
+                log.error("Error, one or both of the entities does not exist in graph: {}", relationships.get(i));
+                outcomes[i] = RelationshipOutcome.MISSING_ENTITY;
+            }
+        }
+        return Arrays.asList(outcomes);
     }
 
     @Override
     @Transactional
     public boolean addParticipation(PlatformEntityDTO participantDTO, PlatformEntityDTO participatesInDTO) {
         log.info("Wiring up participation addition");
-        GrassrootGraphEntity participant = fetchGraphEntity(participantDTO.getEntityType(), participantDTO.getPlatformId(), 0);
-        log.info("Got participant entity: {}", participant);
-        GrassrootGraphEntity participatesIn = fetchGraphEntity(participatesInDTO.getEntityType(), participatesInDTO.getPlatformId(), 0);
-        log.info("Got participates in entity: {}", participatesIn);
-
-        if (participant == null || participatesIn == null) {
-            log.error("Error, one or both of the entities does not exist in graph, relationship could not be created");
-            return false;
-        }
-
-        switch (participatesIn.getEntityType()) {
-            case ACTOR:         return addParticipantToActor(participant, (Actor) participatesIn);
-            case EVENT:         return addParticipantToEvent(participant, (Event) participatesIn);
-            case INTERACTION:   return addParticipantToInteraction(participant, (Interaction) participatesIn);
-            default:            log.error("Unsupported entity type provided for target entity"); return false;
-        }
+        return createRelationship(new PlatformRelationshipDTO(participantDTO, participatesInDTO,
+                GrassrootRelationship.Type.PARTICIPATES));
     }
 
     @Override
     @Transactional
     public boolean removeParticipation(PlatformEntityDTO participantDTO, PlatformEntityDTO participatesInDTO) {
         log.info("Wiring up participation removal");
-        GrassrootGraphEntity participant = fetchGraphEntity(participantDTO.getEntityType(), participantDTO.getPlatformId(), 0);
-        log.info("Got participant entity: {}", participant);
-        GrassrootGraphEntity participatesIn = fetchGraphEntity(participatesInDTO.getEntityType(), participatesInDTO.getPlatformId(), 0);
-        log.info("Got participates in entity: {}", participatesIn);
-
-        if (participant == null || participatesIn == null) {
-            log.error("Error, one or both of the entities does not exist in graph, relationship could not be removed");
+        GraphEntityType tailType = participantDTO.getEntityType();
+        GraphEntityType headType = participatesInDTO.getEntityType();
+        if (!isSupported(GrassrootRelationship.Type.PARTICIPATES, tailType, headType)) {
+            log.error("Unsupported entity types for participation, from {} to {}", tailType, headType);
             return false;
         }
 
-        switch (participatesIn.getEntityType()) {
-            case ACTOR:         return removeParticipantFromActor(participant, (Actor) participatesIn);
-            case EVENT:         return removeParticipantFromEvent(participant, (Event) participatesIn);
-            case INTERACTION:   return removeParticipantFromInteraction(participant, (Interaction) participatesIn);
-            default:            log.error("Unsupported entity type provided for target entity"); return false;
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("tailUid", participantDTO.getPlatformId());
+        parameters.put("headUid", participatesInDTO.getPlatformId());
+        Iterator<Map<String, Object>> results = statementRunner.run(IngestStatements.deleteParticipation(tailType, headType),
+                parameters).getRows().iterator();
+
+        long matched = results.hasNext() ? ((Number) results.next().get("matched")).longValue() : 0;
+        if (matched == 0) {
+            log.error("Error, one or both of the entities does not exist in graph, relationship could not be removed");
+            return false;
         }
+        return true;
     }
 
     @Override
     @Transactional
     public boolean setGeneration(PlatformEntityDTO generatorDTO, PlatformEntityDTO generatedDTO) {
         log.info("Wiring up generation");
-        GrassrootGraphEntity generator = fetchGraphEntity(generatorDTO.getEntityType(), generatorDTO.getPlatformId(), 0);
-        log.info("Got generator entity: {}", generator);
-        GrassrootGraphEntity generated = fetchGraphEntity(generatedDTO.getEntityType(), generatedDTO.getPlatformId(), 0);
-        log.info("Got generated entity: {}", generated);
-
-        if (generator == null || generated == null) {
-            log.error("Error, one or both of the entities does not exist in graph, relationship could not be created");
-            return false;
-        }
-
-        switch (generated.getEntityType()) {
-            case ACTOR:         return setGeneratorForActor(generator, (Actor) generated);
-            case EVENT:         return setGeneratorForEvent(generator, (Event) generated);
-            case INTERACTION:   return setGeneratorForInteraction(generator, (Interaction) generated);
-            default:            log.error("Unsupported entity type provided for target entity"); return false;
-        }
+        return createRelationship(new PlatformRelationshipDTO(generatorDTO, generatedDTO,
+                GrassrootRelationship.Type.GENERATOR));
     }
 
     @Override
@@ -104,120 +131,49 @@ public class RelationshipBrokerImpl implements RelationshipBroker {
         return false;
     }
 
-    private boolean addParticipantToActor(GrassrootGraphEntity participantEntity, Actor actor) {
-        if (participantEntity.isActor()) {
-            ActorInActor relationship = new ActorInActor((Actor) participantEntity, actor, Instant.now());
-            session.save(relationship, 0);
-            return true;
-        } else if (participantEntity.isEvent()) {
-            Event participant = (Event) participantEntity;
-            participant.addParticipatesInActor(actor);
-            eventRepository.save(participant, 1);
-            return true;
-        }
-        log.error("An interaction cannot participate in an actor");
-        return false;
+    // a single edge goes through the same statements as a batch, so its cost does not depend on either node's degree
+    private boolean createRelationship(PlatformRelationshipDTO relationship) {
+        RelationshipOutcome outcome = createRelationships(Collections.singletonList(relationship)).get(0);
+        log.info("Relationship {}, outcome: {}", relationship, outcome);
+        return outcome.isSuccess();
     }
 
-    private boolean addParticipantToEvent(GrassrootGraphEntity participantEntity, Event event) {
-        if (participantEntity.isActor()) {
-            ActorInEvent relationship = new ActorInEvent((Actor) participantEntity, event);
-            session.save(relationship, 0);
-            return true;
+    private void mergeRelationships(GrassrootRelationship.Type relationshipType, GraphEntityType tailType,
+                                    GraphEntityType headType, List<Map<String, Object>> rows,
+                                    RelationshipOutcome[] outcomes) {
+        final String statement = IngestStatements.mergeRelationships(relationshipType, tailType, headType);
+        try {
+            for (Map<String, Object> resultRow : statementRunner.run(statement, Collections.singletonMap("rows", rows)).getRows()) {
+                boolean existed = (Boolean) resultRow.get("existed");
+                outcomes[((Number) resultRow.get("idx")).intValue()] = existed ?
+                        RelationshipOutcome.EXISTED : RelationshipOutcome.CREATED;
+            }
+            log.info("Merged {} {} relationships from {} to {}", rows.size(), relationshipType, tailType, headType);
+        } catch (RuntimeException e) {
+            if (TransientErrors.isTransient(e)) throw e; // so the whole unit of work can be retried
+            log.error("Could not merge relationships into graph", e);
+            rows.forEach(row -> outcomes[(Integer) row.get("idx")] = RelationshipOutcome.FAILED);
         }
-        log.error("Only actors can participate in events");
-        return false;
     }
 
-    private boolean addParticipantToInteraction(GrassrootGraphEntity participantEntity, Interaction interaction) {
-        if (participantEntity.isActor()) {
-            Actor participant = (Actor) participantEntity;
-            participant.addParticipatesInInteraction(interaction);
-            actorRepository.save(participant, 1);
-            return true;
-        }
-        log.error("Only actors can participate in interactions");
-        return false;
-    }
-
-    private boolean removeParticipantFromActor(GrassrootGraphEntity participantEntity, Actor actor) {
-        if (participantEntity.isActor()) {
-            ActorInActor relationship = ((Actor) participantEntity).getRelationshipWith(actor);
-            session.delete(relationship);
-            return true;
-        } else if (participantEntity.isEvent()) {
-            Event participant = (Event) participantEntity;
-            participant.removeParticipatesInActor(actor);
-            eventRepository.save(participant, 1);
-            return true;
-        }
-        log.error("Interaction cannot participate in actor");
-        return false;
-    }
-
-    private boolean removeParticipantFromEvent(GrassrootGraphEntity participantEntity, Event event) {
-        if (participantEntity.isActor()) {
-            ActorInEvent relationship = ((Actor) participantEntity).getRelationshipWith(event);
-            session.delete(relationship);
-            return true;
-        }
-        log.error("Only actors can participate in events");
-        return false;
-    }
-
-    private boolean removeParticipantFromInteraction(GrassrootGraphEntity participantEntity, Interaction interaction) {
-        if (participantEntity.isActor()) {
-            Actor participant = (Actor) participantEntity;
-            participant.removeParticipationInInteraction(interaction);
-            actorRepository.save(participant, 1);
-            return true;
-        }
-        log.error("Only actors can participate in interactions");
-        return false;
-    }
-
-    private boolean setGeneratorForActor(GrassrootGraphEntity generatorEntity, Actor actor) {
-        if (generatorEntity.isActor()) {
-            actor.setCreatedByActor((Actor) generatorEntity);
-            actorRepository.save(actor, 1);
-            return true;
-        }
-        log.error("Only actors can generate actors");
-        return false;
-    }
-
-    private boolean setGeneratorForEvent(GrassrootGraphEntity generatorEntity, Event event) {
-        if (generatorEntity.isActor()) {
-            event.setCreator(generatorEntity);
-            eventRepository.save(event, 1);
-            return true;
-        } else if (generatorEntity.isEvent()) {
-            event.setCreator(generatorEntity);
-            Event generator = (Event) generatorEntity;
-            generator.addChildEvent(event);
-            eventRepository.save(generator, 1);
-            return true;
-        }
-        log.error("Interactions cannot generate events");
-        return false;
-    }
-
-    private boolean setGeneratorForInteraction(GrassrootGraphEntity generatorEntity, Interaction interaction) {
-        if (generatorEntity.isActor()) {
-            interaction.setInitiator((Actor) generatorEntity);
-            interactionRepository.save(interaction, 1);
-            return true;
-        }
-        log.error("Only actors can generate interactions");
-        return false;
+    // the statement deletes every row's stale generators before merging any, so two rows for one head would both be
+    // left standing; as each generator replaces the one before, only the last for each head is merged
+    private static List<Map<String, Object>> lastPerHead(List<Map<String, Object>> rows, Map<Integer, Integer> supersededBy) {
+        Map<Object, Map<String, Object>> lastByHead = new LinkedHashMap<>();
+        for (Map<String, Object> row : rows) {
+            Map<String, Object> previous = lastByHead.put(row.get("headUid"), row);
+            if (previous != null) {
+                supersededBy.put((Integer) previous.get("idx"), (Integer) row.get("idx"));
+            }
+        }
+        return lastByHead.size() == rows.size() ? rows : new ArrayList<>(lastByHead.values());
     }
 
-    private GrassrootGraphEntity fetchGraphEntity(GraphEntityType entityType, String Uid, int depth) {
-        switch (entityType) {
-            case ACTOR:         return actorRepository.findByPlatformUid(Uid, depth);
-            case EVENT:         return eventRepository.findByPlatformUid(Uid, depth);
-            case INTERACTION:   return interactionRepository.findById(Uid, depth).orElse(null);
-            default:            return null;
+    static boolean isSupported(GrassrootRelationship.Type relationshipType, GraphEntityType tailType, GraphEntityType headType) {
+        switch (relationshipType) {
+            case PARTICIPATES:  return VALID_PARTICIPATIONS.contains(Arrays.asList(tailType, headType));
+            case GENERATOR:     return VALID_GENERATIONS.contains(Arrays.asList(tailType, headType));
+            default:            return false;
         }
     }
 
@@ -0,0 +1,15 @@
+package za.org.grassroot.graph.services;
+
+public enum RelationshipOutcome {
+
+    CREATED,
+    EXISTED,
+    MISSING_ENTITY, // one or both of the endpoints were not in the graph
+    UNSUPPORTED, // relationship type not valid between these entity types
+    FAILED; // the write itself failed
+
+    public boolean isSuccess() {
+        return this == CREATED || this == EXISTED;
+    }
+
+}
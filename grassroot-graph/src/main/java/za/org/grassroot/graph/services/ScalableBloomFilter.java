@@ -0,0 +1,120 @@
+package za.org.grassroot.graph.services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Bloom filter that grows as entries are added, by stacking filters that each double in capacity and halve in
+false positive rate (after Almeida et al, "Scalable Bloom Filters"), so the compound false positive rate stays
+under the target however many entries come in. As with any bloom filter there are no false negatives, and
+entries cannot be removed
+ */
+class ScalableBloomFilter {
+
+    private static final int GROWTH_FACTOR = 2;
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    private final List<BloomSlice> slices = new ArrayList<>();
+    private final double targetFalsePositiveRate;
+
+    ScalableBloomFilter(int initialCapacity, double targetFalsePositiveRate) {
+        this.targetFalsePositiveRate = targetFalsePositiveRate;
+        // the slices' rates form a geometric series, so starting at p * (1 - r) keeps the total under p
+        slices.add(new BloomSlice(initialCapacity, targetFalsePositiveRate * (1 - TIGHTENING_RATIO)));
+    }
+
+    synchronized void add(String value) {
+        final long hash = hash(value);
+        if (mightContain(hash)) return; // avoids filling slices with repeats
+        BloomSlice current = slices.get(slices.size() - 1);
+        if (current.count >= current.capacity) {
+            current = new BloomSlice(current.capacity * GROWTH_FACTOR, current.falsePositiveRate * TIGHTENING_RATIO);
+            slices.add(current);
+        }
+        current.add(hash);
+    }
+
+    synchronized boolean mightContain(String value) {
+        return mightContain(hash(value));
+    }
+
+    // approximate, since an entry that hits a false positive is taken as already present
+    synchronized long count() {
+        return slices.stream().mapToLong(slice -> slice.count).sum();
+    }
+
+    synchronized long sizeInBits() {
+        return slices.stream().mapToLong(slice -> slice.numberBits).sum();
+    }
+
+    double getTargetFalsePositiveRate() {
+        return targetFalsePositiveRate;
+    }
+
+    private boolean mightContain(long hash) {
+        for (BloomSlice slice : slices) {
+            if (slice.mightContain(hash)) return true;
+        }
+        return false;
+    }
+
+    // 64 bit FNV-1a, with a final avalanche, split into the two halves used for double hashing
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class BloomSlice {
+        final int capacity;
+        final double falsePositiveRate;
+        final long numberBits;
+        final int numberHashes;
+        final long[] bits;
+        int count;
+
+        BloomSlice(int capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            // standard sizing: m = -n ln p / (ln 2)^2, k = (m / n) ln 2
+            this.numberBits = Math.max(64, (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+            this.numberHashes = Math.max(1, (int) Math.round((double) numberBits / capacity * Math.log(2)));
+            this.bits = new long[(int) ((numberBits + 63) / 64)];
+        }
+
+        void add(long hash) {
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < numberHashes; i++) {
+                long bit = index(h1, h2, i);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(long hash) {
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < numberHashes; i++) {
+                long bit = index(h1, h2, i);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        private long index(int h1, int h2, int i) {
+            long combined = h1 + (long) i * h2;
+            return Math.floorMod(combined, numberBits);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package za.org.grassroot.graph.services;
+
+import org.neo4j.ogm.exception.CypherException;
+import org.springframework.dao.TransientDataAccessException;
+
+/*
+Neo4j flags errors that should pass if the transaction is simply run again (deadlocks between concurrent writers,
+lock acquisition timeouts, a cluster leader switch) with a TransientError status code, which can end up some way
+down the cause chain once OGM and Spring have wrapped it
+ */
+final class TransientErrors {
+
+    private static final String TRANSIENT_CODE_PREFIX = "Neo.TransientError.";
+
+    private TransientErrors() {}
+
+    static boolean isTransient(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof TransientDataAccessException) {
+                return true;
+            }
+            if (cause instanceof CypherException && ((CypherException) cause).getCode() != null &&
+                    ((CypherException) cause).getCode().startsWith(TRANSIENT_CODE_PREFIX)) {
+                return true;
+            }
+            // the bolt driver's own exception, without tying this to a driver version
+            if (cause.getClass().getSimpleName().equals("TransientException") ||
+                    (cause.getMessage() != null && cause.getMessage().contains(TRANSIENT_CODE_PREFIX))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
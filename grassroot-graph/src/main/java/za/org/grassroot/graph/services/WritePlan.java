@@ -0,0 +1,128 @@
+package za.org.grassroot.graph.services;
+
+import lombok.Getter;
+import za.org.grassroot.graph.domain.GrassrootGraphEntity;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+Output of the write plan compiler: an ordered list of segments, each either a literal action that could not be
+folded (run as it is), or a compiled set of writes that is applied in a fixed order: creates, then relationships,
+then entity annotations, then relationship removals
+ */
+@Getter
+class WritePlan {
+
+    private final List<Segment> segments;
+    private final long inputOperations;
+
+    WritePlan(List<Segment> segments, long inputOperations) {
+        this.segments = segments;
+        this.inputOperations = inputOperations;
+    }
+
+    long plannedOperations() {
+        return segments.stream().mapToLong(Segment::operationCount).sum();
+    }
+
+    long eliminatedOperations() {
+        return inputOperations - plannedOperations();
+    }
+
+    @Getter
+    static class Segment {
+        private final IncomingGraphAction literalAction;
+
+        private final Map<String, GrassrootGraphEntity> entityCreates = new LinkedHashMap<>();
+        private final Map<String, PlatformRelationshipDTO> relationshipCreates = new LinkedHashMap<>();
+        // endpoints of edges that were added and then removed within the segment, which still have to exist after
+        private final Map<String, PlatformEntityDTO> retainedEndpoints = new LinkedHashMap<>();
+        private final Map<String, EntityAnnotationDelta> entityAnnotations = new LinkedHashMap<>();
+        private final Map<String, PlatformRelationshipDTO> relationshipRemovals = new LinkedHashMap<>();
+        // removals of edges added earlier in the segment, so they need no existence check
+        private final Map<String, PlatformRelationshipDTO> cancelledRemovals = new LinkedHashMap<>();
+
+        // entities that some earlier write in the segment will have put in the graph
+        private final Set<String> ensuredEntities = new HashSet<>();
+
+        Segment() {
+            this.literalAction = null;
+        }
+
+        Segment(IncomingGraphAction literalAction) {
+            this.literalAction = literalAction;
+        }
+
+        boolean isLiteral() {
+            return literalAction != null;
+        }
+
+        boolean isEmpty() {
+            return !isLiteral() && operationCount() == 0;
+        }
+
+        long operationCount() {
+            if (isLiteral()) return literalAction.operationsCount();
+            return entityCreates.size() + relationshipCreates.size() + entityAnnotations.size() +
+                    relationshipRemovals.size() + cancelledRemovals.size();
+        }
+    }
+
+    /*
+    Net effect of any number of annotations and annotation removals on one entity. Additions and removals are kept
+    disjoint, so they can be applied in either order
+     */
+    @Getter
+    static class EntityAnnotationDelta {
+        private final PlatformEntityDTO entity;
+        // the first write was a removal, which fails on an absent entity, so existence is checked before anything else
+        private final boolean mustExist;
+
+        private final Map<String, String> properties = new HashMap<>();
+        private final Set<String> keysToRemove = new HashSet<>();
+        private final Set<String> tags = new HashSet<>();
+        private final Set<String> tagsToRemove = new HashSet<>();
+
+        EntityAnnotationDelta(PlatformEntityDTO entity, boolean mustExist) {
+            this.entity = entity;
+            this.mustExist = mustExist;
+        }
+
+        void annotate(Map<String, String> addedProperties, Set<String> addedTags) {
+            if (addedProperties != null) {
+                properties.putAll(addedProperties);
+                keysToRemove.removeAll(addedProperties.keySet());
+            }
+            if (addedTags != null) {
+                tags.addAll(addedTags);
+                tagsToRemove.removeAll(addedTags);
+            }
+        }
+
+        void remove(Set<String> removedKeys, Set<String> removedTags) {
+            if (removedKeys != null) {
+                properties.keySet().removeAll(removedKeys);
+                keysToRemove.addAll(removedKeys);
+            }
+            if (removedTags != null) {
+                tags.removeAll(removedTags);
+                tagsToRemove.addAll(removedTags);
+            }
+        }
+
+        boolean hasAdditions() {
+            return !properties.isEmpty() || !tags.isEmpty();
+        }
+
+        boolean hasRemovals() {
+            return !keysToRemove.isEmpty() || !tagsToRemove.isEmpty();
+        }
+    }
+
+}
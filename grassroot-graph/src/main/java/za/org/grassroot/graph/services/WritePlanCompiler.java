@@ -0,0 +1,172 @@
+package za.org.grassroot.graph.services;
+
+import za.org.grassroot.graph.domain.GrassrootGraphEntity;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingAnnotation;
+import za.org.grassroot.graph.dto.IncomingDataObject;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+import za.org.grassroot.graph.dto.IncomingRelationship;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+Normalises a batch of actions into the fewest writes with the same end result, before any of it touches the graph.
+Repeated creates collapse into one, with the first kept, since the merge only sets properties on create.
+Annotations and annotation removals on one entity fold into a single delta. A participation that is added and then
+removed becomes a check that its endpoints exist, plus removal of any edge that was there before.
+Anything it cannot fold safely (entity removal, relationship annotations, an edge removed and then added back)
+closes the current segment and runs exactly as it came. If any part of the plan fails, the caller falls back to
+running the actions one by one, so a plan only has to match the literal result when every action succeeds, and
+to fail whenever one of them would
+ */
+final class WritePlanCompiler {
+
+    private final List<WritePlan.Segment> segments = new ArrayList<>();
+    private WritePlan.Segment current = new WritePlan.Segment();
+    private int unkeyedCreates;
+
+    private WritePlanCompiler() {}
+
+    static WritePlan compile(List<IncomingGraphAction> actions) {
+        WritePlanCompiler compiler = new WritePlanCompiler();
+        long inputOperations = 0;
+        for (IncomingGraphAction action : actions) {
+            inputOperations += action.operationsCount();
+            compiler.add(action);
+        }
+        compiler.closeSegment();
+        return new WritePlan(compiler.segments, inputOperations);
+    }
+
+    private void add(IncomingGraphAction action) {
+        switch (action.getActionType()) {
+            case CREATE_ENTITY:
+                forEach(action.getDataObjects(), this::addEntityCreate);
+                forEach(action.getRelationships(), this::addRelationshipCreate);
+                break;
+            case CREATE_RELATIONSHIP:
+                forEach(action.getRelationships(), this::addRelationshipCreate);
+                break;
+            case REMOVE_RELATIONSHIP:
+                forEach(action.getRelationships(), this::addRelationshipRemoval);
+                break;
+            case ANNOTATE_ENTITY:
+            case REMOVE_ANNOTATION:
+                if (onlyEntityAnnotations(action)) {
+                    final boolean addition = action.getActionType() == ActionType.ANNOTATE_ENTITY;
+                    forEach(action.getAnnotations(), annotation -> addEntityAnnotation(annotation, addition));
+                } else {
+                    addLiteral(action);
+                }
+                break;
+            default:
+                addLiteral(action);
+        }
+    }
+
+    private void addEntityCreate(IncomingDataObject dataObject) {
+        GrassrootGraphEntity entity = dataObject.getGraphEntity();
+        final String key = entity.getPlatformUid() == null ? "unkeyed:" + unkeyedCreates++ :
+                entityKey(dataObject.getEntityType(), entity.getPlatformUid());
+        current.getEntityCreates().putIfAbsent(key, entity);
+        current.getEnsuredEntities().add(key);
+    }
+
+    private void addRelationshipCreate(IncomingRelationship relationship) {
+        PlatformRelationshipDTO relationshipDTO = PlatformRelationshipDTO.from(relationship);
+        final String key = relationshipKey(relationshipDTO);
+        if (isPendingRemoval(key)) {
+            closeSegment();
+        }
+        // moved to the end, as the last of several generators for an entity is the one that should stand
+        current.getRelationshipCreates().remove(key);
+        current.getRelationshipCreates().put(key, relationshipDTO);
+        current.getEnsuredEntities().add(entityKey(relationshipDTO.getTailEntity()));
+        current.getEnsuredEntities().add(entityKey(relationshipDTO.getHeadEntity()));
+    }
+
+    private void addRelationshipRemoval(IncomingRelationship relationship) {
+        PlatformRelationshipDTO relationshipDTO = PlatformRelationshipDTO.from(relationship);
+        final String key = relationshipKey(relationshipDTO);
+        if (isPendingRemoval(key)) {
+            closeSegment();
+        }
+
+        if (current.getRelationshipCreates().containsKey(key) && isCancellable(relationshipDTO)) {
+            current.getRelationshipCreates().remove(key);
+            current.getRetainedEndpoints().put(entityKey(relationshipDTO.getTailEntity()), relationshipDTO.getTailEntity());
+            current.getRetainedEndpoints().put(entityKey(relationshipDTO.getHeadEntity()), relationshipDTO.getHeadEntity());
+            current.getCancelledRemovals().put(key, relationshipDTO);
+        } else {
+            current.getRelationshipRemovals().put(key, relationshipDTO);
+        }
+    }
+
+    private void addEntityAnnotation(IncomingAnnotation annotation, boolean addition) {
+        IncomingDataObject dataObject = annotation.getEntity();
+        PlatformEntityDTO entity = new PlatformEntityDTO(dataObject.getGraphEntity().getPlatformUid(),
+                dataObject.getEntityType(), dataObject.getEntitySubtype());
+        final String key = entityKey(entity);
+        WritePlan.EntityAnnotationDelta delta = current.getEntityAnnotations().computeIfAbsent(key,
+                k -> new WritePlan.EntityAnnotationDelta(entity, !addition && !current.getEnsuredEntities().contains(k)));
+        if (addition) {
+            delta.annotate(annotation.getProperties(), annotation.getTags());
+            current.getEnsuredEntities().add(key);
+        } else {
+            delta.remove(annotation.getKeysToRemove(), annotation.getTags());
+        }
+    }
+
+    private void addLiteral(IncomingGraphAction action) {
+        closeSegment();
+        segments.add(new WritePlan.Segment(action));
+    }
+
+    private void closeSegment() {
+        if (!current.isEmpty()) {
+            segments.add(current);
+        }
+        current = new WritePlan.Segment();
+    }
+
+    private boolean isPendingRemoval(String relationshipKey) {
+        return current.getRelationshipRemovals().containsKey(relationshipKey) ||
+                current.getCancelledRemovals().containsKey(relationshipKey);
+    }
+
+    // only participations can be removed, and an unsupported one has to go through literally, so that it fails
+    private boolean isCancellable(PlatformRelationshipDTO relationship) {
+        return relationship.getRelationshipType() == GrassrootRelationship.Type.PARTICIPATES &&
+                RelationshipBrokerImpl.isSupported(GrassrootRelationship.Type.PARTICIPATES,
+                        relationship.getTailEntity().getEntityType(), relationship.getHeadEntity().getEntityType());
+    }
+
+    private boolean onlyEntityAnnotations(IncomingGraphAction action) {
+        return action.getAnnotations() != null && action.getAnnotations().stream()
+                .allMatch(annotation -> annotation.getEntity() != null && annotation.getRelationship() == null);
+    }
+
+    private static <T> void forEach(List<T> operations, Consumer<T> consumer) {
+        if (operations != null) {
+            operations.forEach(consumer);
+        }
+    }
+
+    private static String entityKey(PlatformEntityDTO entity) {
+        return entityKey(entity.getEntityType(), entity.getPlatformId());
+    }
+
+    private static String entityKey(GraphEntityType entityType, String platformId) {
+        return entityType + ":" + platformId;
+    }
+
+    private static String relationshipKey(PlatformRelationshipDTO relationship) {
+        return relationship.getRelationshipType() + ":" + entityKey(relationship.getTailEntity()) + "->" +
+                entityKey(relationship.getHeadEntity());
+    }
+
+}
@@ -0,0 +1,49 @@
+package za.org.grassroot.graph.sqs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.model.Message;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// default parser, binds the whole body to an action in one pass
+@Component @Slf4j
+public class JacksonMessageParser implements MessageParser {
+
+    private final ObjectMapper objectMapper;
+
+    public JacksonMessageParser(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public ParsedMessage parse(Message message) {
+        final String body = message.body();
+        final int sizeBytes = body == null ? 0 : body.getBytes(StandardCharsets.UTF_8).length;
+        final long startTime = System.nanoTime();
+        try {
+            // an empty body or a literal null binds to no action at all, which is as unusable as malformed JSON
+            IncomingGraphAction action = body == null ? null : objectMapper.readValue(body, IncomingGraphAction.class);
+            if (action == null) {
+                log.error("No action in input: {}", body);
+                return ParsedMessage.failed(message, sizeBytes, System.nanoTime() - startTime);
+            }
+            ParsedMessage parsedMessage = ParsedMessage.parsed(message, action, sizeBytes, System.nanoTime() - startTime);
+            log.debug("Parsed incoming message: {}, action: {}", parsedMessage, action);
+            return parsedMessage;
+        } catch (IOException e) {
+            log.error("Error deserializing input: {}", body);
+            log.error("error, could not deserialize: ", e);
+            return ParsedMessage.failed(message, sizeBytes, System.nanoTime() - startTime);
+        }
+    }
+
+    @Override
+    public IncomingGraphAction resolveAction(ParsedMessage parsedMessage) {
+        return parsedMessage.getAction();
+    }
+
+}
@@ -0,0 +1,76 @@
+package za.org.grassroot.graph.sqs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Fixed-size histogram of latencies with buckets growing by a constant ratio, so percentile estimates carry a
+bounded relative error (about 20% at the ratio used) whatever the magnitude. Once the total count passes the
+decay threshold all counts are halved, which keeps the histogram tracking recent behaviour
+ */
+class LatencyHistogram {
+
+    private static final double BUCKET_RATIO = 1.2;
+    private static final int NUMBER_BUCKETS = 90; // covers up to ~ 3 hours at the ratio above
+    private static final double LOG_RATIO = Math.log(BUCKET_RATIO);
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUMBER_BUCKETS);
+    private final long decayThreshold;
+    private volatile long totalCount;
+
+    LatencyHistogram(long decayThreshold) {
+        this.decayThreshold = decayThreshold;
+    }
+
+    // recording takes the same lock as decay, so a count is never incremented between being read and halved;
+    // percentiles still read the counts without it
+    void record(long millis) {
+        final int bucket = bucketFor(millis);
+        synchronized (this) {
+            counts.incrementAndGet(bucket);
+            if (++totalCount > decayThreshold) {
+                decay();
+            }
+        }
+    }
+
+    long count() {
+        return totalCount;
+    }
+
+    // returns the upper bound of the bucket holding the percentile, i.e., errs on the side of overestimating
+    long percentile(double percentile) {
+        final long total = totalCount;
+        if (total == 0) return 0;
+        final long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < NUMBER_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(NUMBER_BUCKETS - 1);
+    }
+
+    // only called holding the lock
+    private void decay() {
+        long total = 0;
+        for (int i = 0; i < NUMBER_BUCKETS; i++) {
+            long halved = counts.get(i) / 2;
+            counts.set(i, halved);
+            total += halved;
+        }
+        totalCount = total;
+    }
+
+    static int bucketFor(long millis) {
+        if (millis <= 1) return 0;
+        int bucket = (int) Math.ceil(Math.log(millis) / LOG_RATIO);
+        return Math.min(bucket, NUMBER_BUCKETS - 1);
+    }
+
+    static long upperBound(int bucket) {
+        return (long) Math.ceil(Math.pow(BUCKET_RATIO, bucket));
+    }
+
+}
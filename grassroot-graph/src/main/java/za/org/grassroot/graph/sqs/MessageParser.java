@@ -0,0 +1,20 @@
+package za.org.grassroot.graph.sqs;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+
+public interface MessageParser {
+
+    /**
+     * Parses the message body once, into an envelope that is then reused for the rest of its processing.
+     * Must not throw: a body that cannot be parsed should come back as a failed envelope
+     */
+    ParsedMessage parse(Message message);
+
+    /**
+     * Returns the full action for an envelope, building it if the parser only counted operations up front
+     * @return the action, or null if the body cannot be deserialized
+     */
+    IncomingGraphAction resolveAction(ParsedMessage parsedMessage);
+
+}
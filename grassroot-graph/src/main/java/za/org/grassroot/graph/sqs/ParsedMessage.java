@@ -0,0 +1,55 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.Getter;
+import lombok.ToString;
+import software.amazon.awssdk.services.sqs.model.Message;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+
+/*
+Envelope produced once per SQS message, so the visibility estimate and the processor work off the same parse.
+A parser may fill in the counts without the full action (e.g., a streaming parser on a first pass), in which
+case the action is null until something needs it; a message that could not be parsed at all has no action
+ */
+@Getter @ToString(exclude = {"message", "action"})
+public class ParsedMessage {
+
+    private final Message message;
+    private final IncomingGraphAction action;
+    private final ActionType actionType;
+    private final long operationCount;
+    private final int sizeBytes;
+    private final long parseNanos;
+
+    private ParsedMessage(Message message, IncomingGraphAction action, ActionType actionType, long operationCount,
+                          int sizeBytes, long parseNanos) {
+        this.message = message;
+        this.action = action;
+        this.actionType = actionType;
+        this.operationCount = operationCount;
+        this.sizeBytes = sizeBytes;
+        this.parseNanos = parseNanos;
+    }
+
+    public static ParsedMessage parsed(Message message, IncomingGraphAction action, int sizeBytes, long parseNanos) {
+        return new ParsedMessage(message, action, action.getActionType(), action.operationsCount(), sizeBytes, parseNanos);
+    }
+
+    public static ParsedMessage counted(Message message, ActionType actionType, long operationCount, int sizeBytes,
+                                        long parseNanos) {
+        return new ParsedMessage(message, null, actionType, operationCount, sizeBytes, parseNanos);
+    }
+
+    public static ParsedMessage failed(Message message, int sizeBytes, long parseNanos) {
+        return new ParsedMessage(message, null, null, 0, sizeBytes, parseNanos);
+    }
+
+    public boolean hasAction() {
+        return action != null;
+    }
+
+    public String getReceiptHandle() {
+        return message.receiptHandle();
+    }
+
+}
@@ -0,0 +1,271 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import reactor.core.publisher.Mono;
+import za.org.grassroot.graph.dto.IncomingAnnotation;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+import za.org.grassroot.graph.dto.IncomingRelationship;
+import za.org.grassroot.graph.services.IncomingActionProcessor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+Runs actions on a fixed set of lanes, each a single thread, picked by hashing the uids of the entities the action
+touches. An action whose entities all hash to one lane simply runs there; one that spans several lanes (e.g. a
+relationship between entities on different lanes) holds all of them: it runs on the first once every earlier action
+on the others has been written, and the others wait until it has. Actions on one entity are therefore written in the
+order they arrived, whichever operation of the action they appear in, while actions on unrelated entities run in
+parallel, each lane with its own transactions. Writers in different lanes can still meet on a node neither acts on
+(e.g. the far end of a removed entity's edges), which is what the processor's transient error retry is for.
+Optionally, each lane also coalesces: actions that arrive within the window of each other, up to a maximum number of
+operations, are written together in one transaction, as with mostly single operation messages the commit is most of
+the cost. Each action still gets its own result, so each message is acked or left for redelivery on its own. Actions
+spanning lanes are always written on their own
+ */
+@Slf4j
+@Component
+public class PartitionedActionExecutor {
+
+    private final IncomingActionProcessor incomingActionProcessor;
+
+    @Value("${sqs.lanes:${sqs.pipeline.workers:4}}")
+    private int laneCount;
+
+    @Value("${sqs.coalesce.enabled:false}")
+    private boolean coalesce;
+
+    @Value("${sqs.coalesce.window.millis:50}")
+    private long windowMillis;
+
+    @Value("${sqs.coalesce.max.operations:500}")
+    private long maxOperations;
+
+    private Lane[] lanes;
+    private ScheduledExecutorService timer;
+
+    public PartitionedActionExecutor(IncomingActionProcessor incomingActionProcessor) {
+        this.incomingActionProcessor = incomingActionProcessor;
+    }
+
+    @PostConstruct
+    private void init() {
+        log.info("Setting up {} action lanes, coalescing: {}, window: {} msecs, max operations: {}",
+                laneCount, coalesce, windowMillis, maxOperations);
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(Executors.newSingleThreadExecutor(daemonFactory("graph-lane-" + i)));
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonFactory("action-coalescer"));
+    }
+
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        log.info("Writing outstanding actions before shutdown");
+        timer.shutdownNow();
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                lane.flush();
+            }
+            lane.executor.shutdown();
+        }
+        for (Lane lane : lanes) {
+            lane.executor.awaitTermination(windowMillis + 30000, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queues the action on its entities' lanes, for the next combined write if coalescing and the action is small
+     * @return result of this action alone, once the write it went out with has finished
+     */
+    public Mono<Boolean> submit(IncomingGraphAction action) {
+        final int[] laneIndices = lanesFor(action);
+        final PendingAction entry = new PendingAction(action);
+        if (laneIndices.length > 1) {
+            submitAcross(laneIndices, 0, entry, new CountDownLatch(laneIndices.length - 1), new CountDownLatch(1));
+            return Mono.fromFuture(entry.result);
+        }
+
+        final Lane lane = lanes[laneIndices[0]];
+        final long operations = action.operationsCount();
+
+        // enqueued while holding the lane, so that batches reach its thread in the order they were put together
+        synchronized (lane) {
+            if (!coalesce || operations >= maxOperations) {
+                lane.flush();
+                lane.executor.execute(() -> writeSingle(entry));
+            } else {
+                lane.pending.add(entry);
+                lane.pendingOperations += operations;
+                if (lane.pendingOperations >= maxOperations) {
+                    lane.flush();
+                } else if (lane.scheduledFlush == null) {
+                    lane.scheduledFlush = timer.schedule(() -> flushWindow(lane), windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return Mono.fromFuture(entry.result);
+    }
+
+    // takes the lanes in ascending order and enqueues on all of them before letting any go, so any two actions that
+    // share lanes are queued in the same order on each of them, and no lane can end up waiting on one that waits on it
+    private void submitAcross(int[] laneIndices, int next, PendingAction entry, CountDownLatch othersHeld,
+                              CountDownLatch written) {
+        final Lane lane = lanes[laneIndices[next]];
+        synchronized (lane) {
+            lane.flush();
+            if (next == 0) {
+                lane.executor.execute(() -> {
+                    awaitQuietly(othersHeld);
+                    try {
+                        writeSingle(entry);
+                    } finally {
+                        written.countDown();
+                    }
+                });
+            } else {
+                lane.executor.execute(() -> {
+                    othersHeld.countDown();
+                    awaitQuietly(written);
+                });
+            }
+            if (next + 1 < laneIndices.length) {
+                submitAcross(laneIndices, next + 1, entry, othersHeld, written);
+            }
+        }
+    }
+
+    private void flushWindow(Lane lane) {
+        synchronized (lane) {
+            lane.scheduledFlush = null;
+            lane.flush();
+        }
+    }
+
+    // the entities acted on rather than the actor acting, so that e.g. a user leaving and being re-added stay in
+    // order; the actor only when the action names no entity at all
+    private int[] lanesFor(IncomingGraphAction action) {
+        final Set<String> uids = new HashSet<>();
+        if (!CollectionUtils.isEmpty(action.getDataObjects())) {
+            action.getDataObjects().stream().filter(Objects::nonNull)
+                    .forEach(dataObject -> uids.add(dataObject.getGraphEntity().getPlatformUid()));
+        }
+        if (!CollectionUtils.isEmpty(action.getRelationships())) {
+            action.getRelationships().stream().filter(Objects::nonNull).forEach(relationship -> addEnds(relationship, uids));
+        }
+        if (!CollectionUtils.isEmpty(action.getAnnotations())) {
+            for (IncomingAnnotation annotation : action.getAnnotations()) {
+                if (annotation == null) continue;
+                if (annotation.getEntity() != null) uids.add(annotation.getEntity().getGraphEntity().getPlatformUid());
+                if (annotation.getRelationship() != null) addEnds(annotation.getRelationship(), uids);
+            }
+        }
+        uids.remove(null);
+        if (uids.isEmpty()) uids.add(action.getActorPlatformId());
+        return uids.stream().mapToInt(this::laneIndex).distinct().sorted().toArray();
+    }
+
+    private static void addEnds(IncomingRelationship relationship, Set<String> uids) {
+        uids.add(relationship.getTailEntityPlatformId());
+        uids.add(relationship.getHeadEntityPlatformId());
+    }
+
+    private int laneIndex(String uid) {
+        return uid == null ? 0 : Math.floorMod(uid.hashCode(), lanes.length);
+    }
+
+    private void writeSingle(PendingAction entry) {
+        try {
+            entry.result.complete(Boolean.TRUE.equals(incomingActionProcessor.processIncomingAction(entry.action).block()));
+        } catch (RuntimeException e) {
+            log.error("Error writing action of type {}", entry.action.getActionType(), e);
+            entry.result.complete(false);
+        }
+    }
+
+    private void writeBatch(List<PendingAction> batch) {
+        log.debug("Writing {} coalesced actions", batch.size());
+        try {
+            List<Boolean> results = incomingActionProcessor.processIncomingActions(batch.stream()
+                    .map(entry -> entry.action).collect(Collectors.toList())).block();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results != null && Boolean.TRUE.equals(results.get(i)));
+            }
+        } catch (RuntimeException e) {
+            log.error("Error writing batch of {} coalesced actions", batch.size(), e);
+            batch.forEach(entry -> entry.result.complete(false));
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // all fields are guarded by the lane itself
+    private class Lane {
+        final ExecutorService executor;
+        List<PendingAction> pending = new ArrayList<>();
+        long pendingOperations;
+        ScheduledFuture<?> scheduledFlush;
+
+        Lane(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        void flush() {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (pending.isEmpty()) return;
+            final List<PendingAction> batch = pending;
+            pending = new ArrayList<>();
+            pendingOperations = 0;
+            executor.execute(() -> writeBatch(batch));
+        }
+    }
+
+    private static class PendingAction {
+        final IncomingGraphAction action;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingAction(IncomingGraphAction action) {
+            this.action = action;
+        }
+    }
+
+}
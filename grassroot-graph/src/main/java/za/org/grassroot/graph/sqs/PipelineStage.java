@@ -0,0 +1,11 @@
+package za.org.grassroot.graph.sqs;
+
+public enum PipelineStage {
+
+    RECEIVE,
+    DESERIALIZE,
+    PLAN,
+    WRITE,
+    ACK
+
+}
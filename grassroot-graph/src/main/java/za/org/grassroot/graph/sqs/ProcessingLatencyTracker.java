@@ -0,0 +1,55 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import za.org.grassroot.graph.dto.ActionType;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/*
+Running per-operation processing latency, kept per action type, so that estimates of how long a message will
+take come from what we have actually observed instead of a fixed constant
+ */
+@Slf4j
+@Component
+public class ProcessingLatencyTracker {
+
+    private static final long DEFAULT_PER_OPERATION_ESTIMATE = 1000; // conservative, takes one second
+
+    @Value("${sqs.latency.percentile:0.99}")
+    private double estimatePercentile;
+
+    // below this many samples for an action type, we fall back to the default estimate
+    @Value("${sqs.latency.min.samples:20}")
+    private long minimumSamples;
+
+    @Value("${sqs.latency.decay.threshold:10000}")
+    private long decayThreshold;
+
+    private final Map<ActionType, LatencyHistogram> histograms = new EnumMap<>(ActionType.class);
+
+    public void recordProcessingTime(ActionType actionType, long operationCount, long elapsedMillis) {
+        if (actionType == null || operationCount <= 0) return;
+        histogramFor(actionType).record(elapsedMillis / operationCount);
+    }
+
+    public long perOperationEstimate(ActionType actionType) {
+        if (actionType == null) return DEFAULT_PER_OPERATION_ESTIMATE;
+        LatencyHistogram histogram = histogramFor(actionType);
+        return histogram.count() < minimumSamples ? DEFAULT_PER_OPERATION_ESTIMATE :
+                Math.max(1, histogram.percentile(estimatePercentile));
+    }
+
+    public long estimateProcessingTime(ActionType actionType, long operationCount) {
+        return operationCount * perOperationEstimate(actionType);
+    }
+
+    private LatencyHistogram histogramFor(ActionType actionType) {
+        synchronized (histograms) {
+            return histograms.computeIfAbsent(actionType, type -> new LatencyHistogram(decayThreshold));
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+Buffers receipt handles and flushes them to SQS with the batch APIs (up to ten entries per call), either once
+a full batch has built up or when the flush window elapses. Entries that fail within a batch are retried
+individually in later flushes, unless SQS reports the failure as the sender's fault (e.g., a stale handle)
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty("sqs.pull.enabled")
+public class SqsAcknowledger {
+
+    private static final int MAX_BATCH_SIZE = 10; // hard limit imposed by SQS
+
+    private final SqsQueueClient queueClient;
+
+    @Value("${sqs.ack.flush.millis:200}")
+    private long flushWindowMillis;
+
+    @Value("${sqs.ack.attempts:3}")
+    private int maxAttempts;
+
+    private final BlockingQueue<PendingDelete> pendingDeletes = new LinkedBlockingQueue<>();
+    private final BlockingQueue<PendingVisibilityChange> pendingVisibilityChanges = new LinkedBlockingQueue<>();
+
+    // all flushes happen on this single thread, so batches never race each other
+    private ScheduledExecutorService flusher;
+
+    public SqsAcknowledger(SqsQueueClient queueClient) {
+        this.queueClient = queueClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sqs-acknowledger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAll, flushWindowMillis, flushWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        log.info("Flushing outstanding SQS acknowledgements before shutdown");
+        flusher.execute(this::flushUntilSettled);
+        flusher.shutdown();
+        if (!flusher.awaitTermination(flushWindowMillis * maxAttempts + 5000, TimeUnit.MILLISECONDS)) {
+            log.error("Timed out flushing SQS acknowledgements before shutdown");
+        }
+        // whatever is left will not be flushed now, so callers waiting on it are told rather than left hanging
+        failOutstanding(pendingDeletes, "delete");
+        failOutstanding(pendingVisibilityChanges, "visibility change");
+    }
+
+    /**
+     * Queues the message for deletion
+     * @return future completing with true once SQS has confirmed the delete, or false if it could not be done
+     */
+    public CompletableFuture<Boolean> delete(String receiptHandle) {
+        PendingDelete pending = new PendingDelete(receiptHandle);
+        pendingDeletes.add(pending);
+        if (pendingDeletes.size() >= MAX_BATCH_SIZE) {
+            flusher.execute(this::flushDeletes);
+        }
+        return pending.result;
+    }
+
+    public CompletableFuture<Boolean> changeVisibility(String receiptHandle, int visibilityTimeoutSeconds) {
+        PendingVisibilityChange pending = new PendingVisibilityChange(receiptHandle, visibilityTimeoutSeconds);
+        pendingVisibilityChanges.add(pending);
+        if (pendingVisibilityChanges.size() >= MAX_BATCH_SIZE) {
+            flusher.execute(this::flushVisibilityChanges);
+        }
+        return pending.result;
+    }
+
+    public int pendingCount() {
+        return pendingDeletes.size() + pendingVisibilityChanges.size();
+    }
+
+    private void flushAll() {
+        // visibility first, as extending a message that is about to be deleted is harmless, but not the reverse
+        flushVisibilityChanges();
+        flushDeletes();
+    }
+
+    // entries that failed are normally left for later flushes, which will not come once shut down, so rounds are
+    // flushed here until every entry has succeeded or run out of attempts
+    private void flushUntilSettled() {
+        for (int round = 0; round < maxAttempts && pendingCount() > 0; round++) {
+            if (round > 0) {
+                try {
+                    Thread.sleep(flushWindowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            flushAll();
+        }
+    }
+
+    private <T extends PendingAck> void failOutstanding(BlockingQueue<T> queue, String description) {
+        List<T> outstanding = new ArrayList<>();
+        queue.drainTo(outstanding);
+        if (!outstanding.isEmpty()) {
+            log.error("Shutting down with {} SQS {} entries unsent", outstanding.size(), description);
+            outstanding.forEach(pending -> pending.result.complete(false));
+        }
+    }
+
+    private void flushDeletes() {
+        flush(pendingDeletes, batch -> queueClient.deleteBatch(IntStream.range(0, batch.size())
+                .mapToObj(i -> DeleteMessageBatchRequestEntry.builder()
+                        .id(String.valueOf(i))
+                        .receiptHandle(batch.get(i).receiptHandle).build())
+                .collect(Collectors.toList())), "delete");
+    }
+
+    private void flushVisibilityChanges() {
+        flush(pendingVisibilityChanges, batch -> queueClient.changeVisibilityBatch(IntStream.range(0, batch.size())
+                .mapToObj(i -> ChangeMessageVisibilityBatchRequestEntry.builder()
+                        .id(String.valueOf(i))
+                        .receiptHandle(batch.get(i).receiptHandle)
+                        .visibilityTimeout(batch.get(i).visibilityTimeoutSeconds).build())
+                .collect(Collectors.toList())), "visibility change");
+    }
+
+    // batch entry ids are the entries' positions in the batch, which is how failures are matched back to handles
+    private <T extends PendingAck> void flush(BlockingQueue<T> queue, Function<List<T>, List<BatchResultErrorEntry>> sender,
+                                             String description) {
+        try {
+            List<T> retries = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                List<T> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                queue.drainTo(batch, MAX_BATCH_SIZE);
+                if (batch.isEmpty()) break;
+                sendBatch(batch, sender, description, retries);
+            }
+            queue.addAll(retries);
+        } catch (RuntimeException e) {
+            log.error("Unexpected error flushing SQS {} batch", description, e);
+        }
+    }
+
+    private <T extends PendingAck> void sendBatch(List<T> batch, Function<List<T>, List<BatchResultErrorEntry>> sender,
+                                                 String description, List<T> retries) {
+        List<BatchResultErrorEntry> failures;
+        try {
+            failures = sender.apply(batch);
+        } catch (SdkClientException|SdkServiceException e) {
+            log.error("Error sending SQS {} batch of {} entries, will retry", description, batch.size(), e);
+            batch.forEach(pending -> retryOrFail(pending, retries));
+            return;
+        }
+
+        Map<String, BatchResultErrorEntry> failuresById = failures.stream()
+                .collect(Collectors.toMap(BatchResultErrorEntry::id, entry -> entry));
+        log.debug("Sent SQS {} batch of {} entries, {} failed", description, batch.size(), failuresById.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            T pending = batch.get(i);
+            BatchResultErrorEntry failure = failuresById.get(String.valueOf(i));
+            if (failure == null) {
+                pending.result.complete(true);
+            } else if (Boolean.TRUE.equals(failure.senderFault())) {
+                log.error("SQS rejected {} of handle {}, code: {}, message: {}", description,
+                        pending.receiptHandle, failure.code(), failure.message());
+                pending.result.complete(false);
+            } else {
+                retryOrFail(pending, retries);
+            }
+        }
+    }
+
+    private <T extends PendingAck> void retryOrFail(T pending, List<T> retries) {
+        pending.attempts++;
+        if (pending.attempts < maxAttempts) {
+            retries.add(pending);
+        } else {
+            log.error("Giving up on SQS acknowledgement of handle {} after {} attempts", pending.receiptHandle, pending.attempts);
+            pending.result.complete(false);
+        }
+    }
+
+    private static abstract class PendingAck {
+        final String receiptHandle;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        int attempts;
+
+        PendingAck(String receiptHandle) {
+            this.receiptHandle = receiptHandle;
+        }
+    }
+
+    private static class PendingDelete extends PendingAck {
+        PendingDelete(String receiptHandle) {
+            super(receiptHandle);
+        }
+    }
+
+    private static class PendingVisibilityChange extends PendingAck {
+        final int visibilityTimeoutSeconds;
+
+        PendingVisibilityChange(String receiptHandle, int visibilityTimeoutSeconds) {
+            super(receiptHandle);
+            this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Semaphore;
+
+/*
+Staged pipeline between the SQS receive loop and the graph writes: receive -> deserialize -> plan -> write -> ack.
+In-flight messages are bounded by a window of permits, which the receiving side has to reserve before it pulls,
+so once the write workers saturate, receiving stops until messages have been acked (or given up on).
+A message's slot is only released once its delete has been flushed, via the acknowledger's batches
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty("sqs.pull.enabled")
+public class SqsPipeline {
+
+    private final SqsProcessor sqsProcessor;
+    private final SqsAcknowledger acknowledger;
+    private final VisibilityHeartbeat visibilityHeartbeat;
+    private final SqsPipelineMonitor monitor;
+
+    @Value("${sqs.pipeline.inflight:20}")
+    private int maxInFlight;
+
+    @Value("${sqs.pipeline.workers:4}")
+    private int workerParallelism;
+
+    @Value("${sqs.delete.failure:false}")
+    private boolean deleteEvenOnFailure;
+
+    private Semaphore inFlightPermits;
+    private Scheduler writeWorkers;
+
+    public SqsPipeline(SqsProcessor sqsProcessor, SqsAcknowledger acknowledger, VisibilityHeartbeat visibilityHeartbeat,
+                       SqsPipelineMonitor monitor) {
+        this.sqsProcessor = sqsProcessor;
+        this.acknowledger = acknowledger;
+        this.visibilityHeartbeat = visibilityHeartbeat;
+        this.monitor = monitor;
+    }
+
+    @PostConstruct
+    private void init() {
+        log.info("Setting up SQS pipeline, max in flight: {}, write workers: {}", maxInFlight, workerParallelism);
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        this.writeWorkers = Schedulers.newParallel("graph-writer", workerParallelism);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        writeWorkers.dispose();
+    }
+
+    /**
+     * Blocks until at least one in-flight slot is free, then reserves as many more as are free, up to the maximum.
+     * The caller must submit one message per reserved slot, or release the slots it does not use.
+     * @return number of slots reserved, at least one
+     */
+    public int reserveCapacity(int maxMessages) throws InterruptedException {
+        inFlightPermits.acquire();
+        int reserved = 1;
+        while (reserved < maxMessages && inFlightPermits.tryAcquire()) {
+            reserved++;
+        }
+        monitor.enter(PipelineStage.RECEIVE, reserved);
+        return reserved;
+    }
+
+    /**
+     * As above, but does not block, so returns zero if the pipeline is full
+     */
+    public int tryReserveCapacity(int maxMessages) {
+        int reserved = 0;
+        while (reserved < maxMessages && inFlightPermits.tryAcquire()) {
+            reserved++;
+        }
+        monitor.enter(PipelineStage.RECEIVE, reserved);
+        return reserved;
+    }
+
+    public void releaseCapacity(int unused) {
+        if (unused <= 0) return;
+        monitor.exit(PipelineStage.RECEIVE, unused);
+        inFlightPermits.release(unused);
+    }
+
+    // must only be called with a slot reserved for the message, which is released once the message leaves the pipeline
+    public void submit(Message message) {
+        SqsPipelineMonitor.StageTracker tracker = monitor.track(PipelineStage.RECEIVE);
+        tracker.moveTo(PipelineStage.DESERIALIZE);
+
+        Mono.fromCallable(() -> sqsProcessor.parse(message))
+                .doOnNext(parsedMessage -> {
+                    tracker.moveTo(PipelineStage.PLAN);
+                    reserveVisibility(parsedMessage, sqsProcessor.estimateProcessingTime(parsedMessage));
+                    tracker.moveTo(PipelineStage.WRITE);
+                })
+                .flatMap(sqsProcessor::handleSqsMessage)
+                .onErrorResume(e -> {
+                    log.error("Error processing message with handle {}", message.receiptHandle(), e);
+                    return Mono.just(false);
+                })
+                .flatMap(success -> {
+                    visibilityHeartbeat.deregister(message.receiptHandle());
+                    tracker.moveTo(PipelineStage.ACK);
+                    return acknowledge(message, success);
+                })
+                .doFinally(signal -> {
+                    visibilityHeartbeat.deregister(message.receiptHandle()); // in case we never reached the ack
+                    tracker.finish();
+                    inFlightPermits.release();
+                })
+                .subscribeOn(writeWorkers)
+                .subscribe();
+    }
+
+    private void reserveVisibility(ParsedMessage message, long timeEstimate) {
+        log.info("Processing message, estimating {} msecs, handle {}", timeEstimate, message.getReceiptHandle());
+        visibilityHeartbeat.register(message.getReceiptHandle(), timeEstimate);
+    }
+
+    private Mono<Boolean> acknowledge(Message message, boolean success) {
+        log.info("Successfully handled message? : {}", success);
+        if (!success && !deleteEvenOnFailure) {
+            return Mono.just(false);
+        }
+        return Mono.fromFuture(acknowledger.delete(message.receiptHandle()))
+                .doOnNext(deleted -> {
+                    if (deleted) {
+                        log.info("Message handled, deleted");
+                    } else {
+                        log.error("Error deleting message with handle: {}", message.receiptHandle());
+                    }
+                })
+                .map(deleted -> success);
+    }
+
+}
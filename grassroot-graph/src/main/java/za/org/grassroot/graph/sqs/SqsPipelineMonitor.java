@@ -0,0 +1,76 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+@Component
+@ConditionalOnProperty("sqs.pull.enabled")
+public class SqsPipelineMonitor {
+
+    private final Map<PipelineStage, AtomicInteger> stageDepths;
+
+    public SqsPipelineMonitor() {
+        this.stageDepths = new EnumMap<>(PipelineStage.class);
+        for (PipelineStage stage : PipelineStage.values()) {
+            stageDepths.put(stage, new AtomicInteger());
+        }
+    }
+
+    public void enter(PipelineStage stage, int count) {
+        stageDepths.get(stage).addAndGet(count);
+    }
+
+    public void exit(PipelineStage stage, int count) {
+        stageDepths.get(stage).addAndGet(-count);
+    }
+
+    // the message is assumed to already be counted in the initial stage (e.g., as part of a receive reservation)
+    public StageTracker track(PipelineStage initialStage) {
+        return new StageTracker(initialStage);
+    }
+
+    public Map<PipelineStage, Integer> queueDepths() {
+        Map<PipelineStage, Integer> depths = new EnumMap<>(PipelineStage.class);
+        stageDepths.forEach((stage, depth) -> depths.put(stage, depth.get()));
+        return depths;
+    }
+
+    @Scheduled(fixedDelayString = "${sqs.pipeline.report.millis:60000}")
+    public void reportQueueDepths() {
+        log.info("SQS pipeline queue depths: {}", queueDepths());
+    }
+
+    // follows a single message through the pipeline, so depths stay accurate whichever stage it leaves from
+    public class StageTracker {
+
+        private PipelineStage currentStage;
+
+        private StageTracker(PipelineStage initialStage) {
+            this.currentStage = initialStage;
+        }
+
+        public synchronized void moveTo(PipelineStage nextStage) {
+            if (currentStage != null) {
+                exit(currentStage, 1);
+            }
+            enter(nextStage, 1);
+            this.currentStage = nextStage;
+        }
+
+        public synchronized void finish() {
+            if (currentStage != null) {
+                exit(currentStage, 1);
+                this.currentStage = null;
+            }
+        }
+
+    }
+
+}
@@ -1,54 +1,54 @@
 package za.org.grassroot.graph.sqs;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
 import software.amazon.awssdk.services.sqs.model.Message;
 import za.org.grassroot.graph.dto.IncomingGraphAction;
-import za.org.grassroot.graph.services.IncomingActionProcessor;
-
-import java.io.IOException;
 
 @Component @Slf4j
 public class SqsProcessorImpl implements SqsProcessor {
     
-    private static final long PER_OPERATION_TIME_ESTIMATE = 1000; // conservative, takes one second
-
-    private final ObjectMapper objectMapper;
-    private final IncomingActionProcessor incomingActionProcessor;
+    private final MessageParser messageParser;
+    private final PartitionedActionExecutor actionExecutor;
+    private final ProcessingLatencyTracker latencyTracker;
+
+    public SqsProcessorImpl(MessageParser messageParser, PartitionedActionExecutor actionExecutor,
+                            ProcessingLatencyTracker latencyTracker) {
+        this.messageParser = messageParser;
+        this.actionExecutor = actionExecutor;
+        this.latencyTracker = latencyTracker;
+    }
 
-    public SqsProcessorImpl(ObjectMapper objectMapper, IncomingActionProcessor incomingActionProcessor) {
-        this.objectMapper = objectMapper;
-        this.incomingActionProcessor = incomingActionProcessor;
+    @Override
+    public ParsedMessage parse(Message message) {
+        return messageParser.parse(message);
     }
 
     @Override
-    public long estimateProcessingTime(Message message) {
-        IncomingGraphAction action = deserialize(message.body());
-        return action == null ? 0 : action.operationsCount() * PER_OPERATION_TIME_ESTIMATE;
+    public long estimateProcessingTime(ParsedMessage message) {
+        return latencyTracker.estimateProcessingTime(message.getActionType(), message.getOperationCount());
     }
 
     @Override
-    public Mono<Boolean> handleSqsMessage(Message message) {
-        IncomingGraphAction action = deserialize(message.body());
+    public Mono<Boolean> handleSqsMessage(ParsedMessage message) {
+        IncomingGraphAction action = messageParser.resolveAction(message);
         if (action == null) {
-            log.error("Error deserializing message: ", message);
+            log.error("Error deserializing message, handle: {}", message.getReceiptHandle());
+            return Mono.just(false);
         }
 
         log.debug("message body deserialized: {}", action);
-        return incomingActionProcessor.processIncomingAction(action);
+        final long startTime = System.currentTimeMillis();
+        // this includes waiting on the lane (and for the coalescing window), which the visibility estimate should cover too
+        return actionExecutor.submit(action)
+                .doOnNext(success -> {
+                    // failures often bail out early, so would drag the estimates down
+                    if (success) {
+                        latencyTracker.recordProcessingTime(action.getActionType(), message.getOperationCount(),
+                                System.currentTimeMillis() - startTime);
+                    }
+                });
     }
 
-    private IncomingGraphAction deserialize(String jsonValue) {
-        try {
-            IncomingGraphAction action = objectMapper.readValue(jsonValue, IncomingGraphAction.class);
-            log.info("incoming action: {}", action);
-            return action;
-        } catch (IOException e) {
-            log.error("Error deserializing input: {}", jsonValue);
-            log.error("error, could not deserialize: ", e);
-            return null;
-        }
-    }
 }
@@ -5,25 +5,28 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import reactor.core.scheduler.Schedulers;
-import software.amazon.awssdk.core.auth.SystemPropertyCredentialsProvider;
 import software.amazon.awssdk.core.exception.SdkClientException;
-import software.amazon.awssdk.core.regions.Region;
-import software.amazon.awssdk.services.sqs.SQSClient;
-import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
-import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
-import za.org.grassroot.graph.domain.GraphStringUtils;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.sqs.model.Message;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 @Component
 @ConditionalOnProperty("sqs.pull.enabled")
 public class SqsPuller {
 
-    private static final long QUEUE_DEFAULT_TIME = 60 * 1000;
+    private static final int MAX_MESSAGES_PER_RECEIVE = 10; // hard limit imposed by SQS
 
-    private final SqsProcessor sqsProcessor;
+    private final SqsQueueClient queueClient;
+    private final SqsPipeline pipeline;
 
     @Value("${sqs.crud.url}")
     private String sqsUrl;
@@ -31,99 +34,143 @@ public class SqsPuller {
     @Value("${sqs.pull.crud.messages:1}")
     private int numberMessagesToPull;
 
-    @Value("${aws.accessKeyId:}")
-    private String awsAccessKey;
+    // if true, pollers long-poll the queue continuously instead of waiting on the cron trigger
+    @Value("${sqs.pull.continuous:false}")
+    private boolean continuousPolling;
 
-    @Value("${aws.secretAccessKey:}")
-    private String awsSecretKey;
+    @Value("${sqs.pull.pollers:1}")
+    private int numberOfPollers;
 
-    @Value("${sqs.delete.failure:false}")
-    private boolean deleteEvenOnFailure;
+    @Value("${sqs.pull.wait.seconds:20}")
+    private int longPollWaitSeconds;
 
-    private SQSClient sqs;
+    @Value("${sqs.pull.idle.backoff.initial:1000}")
+    private long initialIdleBackoffMillis;
 
-    public SqsPuller(SqsProcessor sqsProcessor) {
-        this.sqsProcessor = sqsProcessor;
+    @Value("${sqs.pull.idle.backoff.max:30000}")
+    private long maxIdleBackoffMillis;
+
+    private ExecutorService pollerExecutor;
+    private volatile boolean polling;
+
+    public SqsPuller(SqsQueueClient queueClient, SqsPipeline pipeline) {
+        this.queueClient = queueClient;
+        this.pipeline = pipeline;
     }
 
     @PostConstruct
     private void init() {
-        log.info("Setting up SQS client, url: {}", sqsUrl);
-        if (!GraphStringUtils.isEmpty(awsAccessKey) && !GraphStringUtils.isEmpty(awsSecretKey)) {
-            setUpSqsFromCredentials();
-        } else {
-            setUpDefaultCredentials();
+        if (continuousPolling) {
+            startPollers();
         }
     }
 
-    private void setUpSqsFromCredentials() {
-        log.info("Have AWS credentials, using them ...");
-        System.setProperty("aws.accessKeyId", awsAccessKey);
-        System.setProperty("aws.secretAccessKey", awsSecretKey);
-        SystemPropertyCredentialsProvider provider = SystemPropertyCredentialsProvider.create();
-        log.info("created provider, credentials: {}", provider.getCredentials());
-        this.sqs = SQSClient.builder()
-                .credentialsProvider(provider)
-                .region(Region.EU_WEST_1)
-                .build();
+    private void startPollers() {
+        if (!queueClient.isAvailable()) {
+            log.error("Error! sqs client null, not starting continuous pollers");
+            return;
+        }
+
+        log.info("Starting {} continuous SQS pollers, long poll wait: {} secs", numberOfPollers, longPollWaitSeconds);
+        final AtomicInteger pollerCount = new AtomicInteger();
+        this.pollerExecutor = Executors.newFixedThreadPool(numberOfPollers, runnable -> {
+            Thread thread = new Thread(runnable, "sqs-poller-" + pollerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.polling = true;
+        for (int i = 0; i < numberOfPollers; i++) {
+            pollerExecutor.submit(this::pollContinuously);
+        }
     }
 
-    private void setUpDefaultCredentials() {
-        try {
-            this.sqs = SQSClient.builder()
-                    .region(Region.EU_WEST_1).build();
-        } catch (SdkClientException e) {
-            log.error("Could not set up SQS client", e);
+    @PreDestroy
+    private void stopPollers() {
+        if (pollerExecutor != null) {
+            log.info("Stopping continuous SQS pollers");
+            this.polling = false;
+            pollerExecutor.shutdownNow();
         }
     }
 
     @Scheduled(cron = "${sqs.pull.crud.rate:*/60 * * * * *}")
     public void readDataFromSqs() {
+        if (continuousPolling) {
+            log.debug("Continuous pollers are draining the queue, skipping scheduled pull");
+            return;
+        }
+
         log.info("Pulling from SQS ... queue: {}", sqsUrl);
 
-        if (sqs == null) {
+        if (!queueClient.isAvailable()) {
             log.info("Error! sqs client null");
             return;
         }
 
-        ReceiveMessageResponse response  = sqs.receiveMessage(builder -> builder.queueUrl(sqsUrl)
-            .maxNumberOfMessages(numberMessagesToPull));
-
-        if (response.messages() == null || response.messages().isEmpty()) {
-            log.info("empty message queue, exiting, messages: {}", response.messages());
+        int capacity = pipeline.tryReserveCapacity(numberMessagesToPull);
+        if (capacity == 0) {
+            log.info("Processing pipeline full, skipping pull");
             return;
         }
 
-        log.info("Fetched {} messages", response.messages().size());
+        List<Message> messages = receive(capacity, null);
+        if (messages.isEmpty()) {
+            log.info("empty message queue, exiting, messages: {}", messages);
+            return;
+        }
 
-        response.messages().forEach(message -> {
-            log.info("Setting up subscription for {}", message.receiptHandle());
-            long timeEstimate = sqsProcessor.estimateProcessingTime(message);
+        log.info("Fetched {} messages", messages.size());
+        messages.forEach(pipeline::submit);
+    }
 
-            log.info("Processing message, estimating {} msecs, handle {}", timeEstimate, message.receiptHandle());
-            if (timeEstimate > QUEUE_DEFAULT_TIME) {
-                ChangeMessageVisibilityResponse extendVisibilityResponse = sqs.changeMessageVisibility(builder -> builder
-                        .queueUrl(sqsUrl)
-                        .receiptHandle(message.receiptHandle())
-                    .visibilityTimeout((int) (timeEstimate / 1000)));
-                log.info("Visibility change response: {}", extendVisibilityResponse.toString());
+    // keeps long polling while the queue has messages, backing off exponentially once it runs dry
+    private void pollContinuously() {
+        int consecutiveEmptyReceives = 0;
+        while (polling && !Thread.currentThread().isInterrupted()) {
+            try {
+                // blocks while the pipeline is full, which is what stops us pulling when writes saturate
+                int capacity = pipeline.reserveCapacity(MAX_MESSAGES_PER_RECEIVE);
+                List<Message> messages = receive(capacity, longPollWaitSeconds);
+                if (messages.isEmpty()) {
+                    consecutiveEmptyReceives++;
+                    backOff(consecutiveEmptyReceives);
+                } else {
+                    consecutiveEmptyReceives = 0;
+                    log.debug("Long poll fetched {} messages", messages.size());
+                    messages.forEach(pipeline::submit);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                log.error("Unexpected error in SQS poller, continuing", e);
             }
+        }
+        log.info("SQS poller exiting");
+    }
 
-            sqsProcessor.handleSqsMessage(message)
-                    .subscribeOn(Schedulers.elastic())
-                    .subscribe(success -> {
-                        log.info("Successfully handled message? : {}", success);
-                        if (success || deleteEvenOnFailure) {
-                            try {
-                                sqs.deleteMessage(builder -> builder.queueUrl(sqsUrl).receiptHandle(message.receiptHandle()));
-                                log.info("Message handled, deleted");
-                            } catch (SdkClientException e) {
-                                log.error("Error deleting message with handle: {}", message.receiptHandle());
-                            }
-                        }
-                    });
-        });
+    // releases whatever part of the reserved capacity the queue did not fill
+    private List<Message> receive(int capacity, Integer waitTimeSeconds) {
+        List<Message> messages = Collections.emptyList();
+        try {
+            messages = queueClient.receive(capacity, waitTimeSeconds);
+        } catch (SdkClientException|SdkServiceException e) {
+            log.error("Error receiving messages from SQS", e);
+        } finally {
+            pipeline.releaseCapacity(capacity - messages.size());
+        }
+        return messages;
     }
 
+    private void backOff(int consecutiveEmptyReceives) {
+        // first empty receive goes straight back to long polling, which already waits on the server side
+        if (consecutiveEmptyReceives <= 1) return;
+        long backoff = Math.min(maxIdleBackoffMillis, initialIdleBackoffMillis << Math.min(consecutiveEmptyReceives - 2, 16));
+        log.debug("Queue idle for {} receives, backing off {} msecs", consecutiveEmptyReceives, backoff);
+        try {
+            TimeUnit.MILLISECONDS.sleep(backoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
 }
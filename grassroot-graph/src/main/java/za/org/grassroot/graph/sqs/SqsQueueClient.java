@@ -0,0 +1,105 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.auth.SystemPropertyCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.regions.Region;
+import software.amazon.awssdk.services.sqs.SQSClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+import za.org.grassroot.graph.domain.GraphStringUtils;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.List;
+
+/*
+Thin wrapper around the SQS client for the crud queue, so that the puller and the processing
+pipeline share one client (and one place where credentials are set up)
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty("sqs.pull.enabled")
+public class SqsQueueClient {
+
+    @Value("${sqs.crud.url}")
+    private String sqsUrl;
+
+    @Value("${aws.accessKeyId:}")
+    private String awsAccessKey;
+
+    @Value("${aws.secretAccessKey:}")
+    private String awsSecretKey;
+
+    private SQSClient sqs;
+
+    @PostConstruct
+    private void init() {
+        log.info("Setting up SQS client, url: {}", sqsUrl);
+        if (!GraphStringUtils.isEmpty(awsAccessKey) && !GraphStringUtils.isEmpty(awsSecretKey)) {
+            setUpSqsFromCredentials();
+        } else {
+            setUpDefaultCredentials();
+        }
+    }
+
+    private void setUpSqsFromCredentials() {
+        log.info("Have AWS credentials, using them ...");
+        System.setProperty("aws.accessKeyId", awsAccessKey);
+        System.setProperty("aws.secretAccessKey", awsSecretKey);
+        SystemPropertyCredentialsProvider provider = SystemPropertyCredentialsProvider.create();
+        log.info("created provider, credentials: {}", provider.getCredentials());
+        this.sqs = SQSClient.builder()
+                .credentialsProvider(provider)
+                .region(Region.EU_WEST_1)
+                .build();
+    }
+
+    private void setUpDefaultCredentials() {
+        try {
+            this.sqs = SQSClient.builder()
+                    .region(Region.EU_WEST_1).build();
+        } catch (SdkClientException e) {
+            log.error("Could not set up SQS client", e);
+        }
+    }
+
+    public boolean isAvailable() {
+        return sqs != null;
+    }
+
+    public String getQueueUrl() {
+        return sqsUrl;
+    }
+
+    // wait time may be null, in which case the queue's default receive wait applies
+    public List<Message> receive(int maxMessages, Integer waitTimeSeconds) {
+        ReceiveMessageResponse response = sqs.receiveMessage(builder -> builder.queueUrl(sqsUrl)
+                .maxNumberOfMessages(maxMessages)
+                .waitTimeSeconds(waitTimeSeconds));
+        return response.messages() == null ? Collections.emptyList() : response.messages();
+    }
+
+    public List<BatchResultErrorEntry> changeVisibilityBatch(List<ChangeMessageVisibilityBatchRequestEntry> entries) {
+        ChangeMessageVisibilityBatchResponse response = sqs.changeMessageVisibilityBatch(builder -> builder
+                .queueUrl(sqsUrl)
+                .entries(entries));
+        return response.failed() == null ? Collections.emptyList() : response.failed();
+    }
+
+    public List<BatchResultErrorEntry> deleteBatch(List<DeleteMessageBatchRequestEntry> entries) {
+        DeleteMessageBatchResponse response = sqs.deleteMessageBatch(builder -> builder
+                .queueUrl(sqsUrl)
+                .entries(entries));
+        return response.failed() == null ? Collections.emptyList() : response.failed();
+    }
+
+}
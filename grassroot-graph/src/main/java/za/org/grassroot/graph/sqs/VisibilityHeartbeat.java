@@ -0,0 +1,106 @@
+package za.org.grassroot.graph.sqs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Keeps messages invisible on the queue for as long as they are being processed. The initial reservation is set
+from the latency estimate, and the heartbeat then extends any message whose visibility is about to lapse while
+it is still in flight, so large actions are not redelivered halfway through (which would double their writes)
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty("sqs.pull.enabled")
+public class VisibilityHeartbeat {
+
+    private static final int MAX_VISIBILITY_SECONDS = 12 * 60 * 60; // hard limit imposed by SQS, counted from receipt
+
+    private final SqsAcknowledger acknowledger;
+
+    @Value("${sqs.visibility.default.seconds:60}")
+    private int queueDefaultVisibilitySeconds;
+
+    @Value("${sqs.visibility.heartbeat.millis:10000}")
+    private long heartbeatMillis;
+
+    private final Map<String, InFlightMessage> inFlight = new ConcurrentHashMap<>();
+
+    public VisibilityHeartbeat(SqsAcknowledger acknowledger) {
+        this.acknowledger = acknowledger;
+    }
+
+    /**
+     * Starts tracking the message, extending its visibility straight away if the estimate exceeds the queue default
+     */
+    public void register(String receiptHandle, long estimateMillis) {
+        final long now = System.currentTimeMillis();
+        // we only see the message after receipt, so the deadline is a slight overestimate, covered by the margin
+        InFlightMessage message = new InFlightMessage(now, now + queueDefaultVisibilitySeconds * 1000L,
+                Math.max(queueDefaultVisibilitySeconds, toSeconds(estimateMillis)));
+        inFlight.put(receiptHandle, message);
+        if (estimateMillis > queueDefaultVisibilitySeconds * 1000L) {
+            extend(receiptHandle, message, now);
+        }
+    }
+
+    public void deregister(String receiptHandle) {
+        inFlight.remove(receiptHandle);
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    @Scheduled(fixedDelayString = "${sqs.visibility.heartbeat.millis:10000}")
+    public void extendExpiringMessages() {
+        final long now = System.currentTimeMillis();
+        // anything that would lapse before the next beat (plus one beat of slack) gets extended now
+        final long horizon = now + 2 * heartbeatMillis;
+        inFlight.forEach((handle, message) -> {
+            if (message.deadline <= horizon) {
+                extend(handle, message, now);
+            }
+        });
+    }
+
+    private void extend(String receiptHandle, InFlightMessage message, long now) {
+        final int remainingAllowed = MAX_VISIBILITY_SECONDS - toSeconds(now - message.receivedAt);
+        final int extension = Math.min(message.extensionSeconds, remainingAllowed);
+        if (extension <= 0) {
+            log.error("Message with handle {} has reached the SQS visibility limit, cannot extend", receiptHandle);
+            inFlight.remove(receiptHandle);
+            return;
+        }
+
+        log.debug("Extending visibility of message with handle {} by {} secs", receiptHandle, extension);
+        message.deadline = now + extension * 1000L;
+        acknowledger.changeVisibility(receiptHandle, extension).thenAccept(extended -> {
+            if (!extended) {
+                log.error("Error extending visibility of message with handle: {}", receiptHandle);
+            }
+        });
+    }
+
+    private static int toSeconds(long millis) {
+        return (int) Math.min(Integer.MAX_VALUE, (millis + 999) / 1000);
+    }
+
+    private static class InFlightMessage {
+        final long receivedAt;
+        final int extensionSeconds;
+        volatile long deadline;
+
+        InFlightMessage(long receivedAt, long deadline, int extensionSeconds) {
+            this.receivedAt = receivedAt;
+            this.deadline = deadline;
+            this.extensionSeconds = extensionSeconds;
+        }
+    }
+
+}
@@ -17,6 +17,7 @@ import za.org.grassroot.graph.dto.*;
 import za.org.grassroot.graph.repository.ActorRepository;
 import za.org.grassroot.graph.repository.EventRepository;
 import za.org.grassroot.graph.repository.InteractionRepository;
+import za.org.grassroot.graph.services.CachingExistenceBroker;
 import za.org.grassroot.graph.services.IncomingActionProcessor;
 
 import java.time.Instant;
@@ -34,6 +35,7 @@ import static za.org.grassroot.graph.TestUtils.wrapInteractionAction;
 public class AnnotationTests {
 
     @Autowired IncomingActionProcessor incomingActionProcessor;
+    @Autowired CachingExistenceBroker existenceCache;
 
     @Autowired ActorRepository actorRepository;
     @Autowired EventRepository eventRepository;
@@ -175,7 +177,7 @@ public class AnnotationTests {
         incomingActionProcessor.processIncomingAction(wrapInteractionAction(interactionType, id, ActionType.CREATE_ENTITY));
         Interaction interaction = new Interaction();
         interaction.setInteractionType(interactionType);
-        interaction.setId(id);
+        interaction.setPlatformUid(id);
         return new IncomingDataObject(GraphEntityType.INTERACTION, interaction);
     }
 
@@ -209,9 +211,10 @@ public class AnnotationTests {
 
     @After
     public void cleanDb() {
+        existenceCache.invalidateAll(); // entities are deleted behind the broker's back here
         actorRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
         eventRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
-        interactionRepository.deleteByIdContaining(TEST_ENTITY_PREFIX);
+        interactionRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
     }
 
 }
\ No newline at end of file
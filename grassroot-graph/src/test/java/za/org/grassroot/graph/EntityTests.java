@@ -19,9 +19,11 @@ import za.org.grassroot.graph.dto.IncomingRelationship;
 import za.org.grassroot.graph.repository.ActorRepository;
 import za.org.grassroot.graph.repository.EventRepository;
 import za.org.grassroot.graph.repository.InteractionRepository;
+import za.org.grassroot.graph.services.CachingExistenceBroker;
 import za.org.grassroot.graph.services.IncomingActionProcessor;
 
 import java.util.Collections;
+import java.util.stream.IntStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
@@ -37,6 +39,7 @@ import static za.org.grassroot.graph.TestUtils.wrapInteractionAction;
 public class EntityTests {
 
     @Autowired IncomingActionProcessor incomingActionProcessor;
+    @Autowired CachingExistenceBroker existenceCache;
 
     @Autowired ActorRepository actorRepository;
     @Autowired EventRepository eventRepository;
@@ -73,15 +76,41 @@ public class EntityTests {
     public void addAndRemoveInteraction() {
         dispatchInteraction(InteractionType.SURVEY, TEST_ENTITY_PREFIX + "survey", ActionType.CREATE_ENTITY);
         addGenerator(TEST_ENTITY_PREFIX + "survey", GraphEntityType.INTERACTION, InteractionType.SURVEY.name());
-        Interaction surveyFromDB = interactionRepository.findById(TEST_ENTITY_PREFIX + "survey").orElse(null);
+        Interaction surveyFromDB = interactionRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "survey");
         assertThat(surveyFromDB, notNullValue());
         assertThat(surveyFromDB.getInitiator().getPlatformUid(), is(TEST_ENTITY_PREFIX + "creator"));
 
         dispatchInteraction(InteractionType.SURVEY, TEST_ENTITY_PREFIX + "survey", ActionType.REMOVE_ENTITY);
-        Interaction surveyFromDB3 = interactionRepository.findById(TEST_ENTITY_PREFIX + "survey").orElse(null);
+        Interaction surveyFromDB3 = interactionRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "survey");
         assertThat(surveyFromDB3, nullValue());
     }
 
+    @Test
+    @Rollback
+    public void addManyActorsInOneAction() {
+        dispatchActor(ActorType.INDIVIDUAL, TEST_ENTITY_PREFIX + "member-0", ActionType.CREATE_ENTITY);
+
+        IncomingGraphAction graphAction = new IncomingGraphAction(TEST_ENTITY_PREFIX + "group", ActionType.CREATE_ENTITY,
+                null, null, null);
+        graphAction.addDataObject(new IncomingDataObject(GraphEntityType.ACTOR,
+                new Actor(ActorType.GROUP, TEST_ENTITY_PREFIX + "group")));
+        IntStream.range(0, 50).forEach(i -> graphAction.addDataObject(new IncomingDataObject(GraphEntityType.ACTOR,
+                new Actor(ActorType.INDIVIDUAL, TEST_ENTITY_PREFIX + "member-" + i))));
+        graphAction.addDataObject(new IncomingDataObject(GraphEntityType.ACTOR,
+                new Actor(ActorType.INDIVIDUAL, TEST_ENTITY_PREFIX + "member-1"))); // duplicate within the action
+
+        boolean succeeded = incomingActionProcessor.processIncomingAction(graphAction).block();
+        assertThat(succeeded, is(true));
+        // only this action's actors, as the database is shared with other tests
+        assertThat(actorRepository.countByPlatformUidStartingWith(TEST_ENTITY_PREFIX + "member-"), is(50L));
+        assertThat(actorRepository.countByPlatformUid(TEST_ENTITY_PREFIX + "group"), is(1L));
+
+        Actor groupFromDB = actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "group");
+        assertThat(groupFromDB.getActorType(), is(ActorType.GROUP));
+        assertThat(groupFromDB.getId(), notNullValue());
+        assertThat(groupFromDB.getCreationTime(), notNullValue());
+    }
+
     private boolean dispatchActor(ActorType actorType, String platformId, ActionType actionType) {
         return incomingActionProcessor.processIncomingAction(wrapActorAction(actorType, platformId, actionType)).block();
     }
@@ -106,6 +135,7 @@ public class EntityTests {
 
     @After
     public void cleanDb() {
+        existenceCache.invalidateAll(); // entities are deleted behind the broker's back here
         actorRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
         eventRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
         interactionRepository.deleteAll();
@@ -15,7 +15,11 @@ import za.org.grassroot.graph.dto.*;
 import za.org.grassroot.graph.repository.ActorRepository;
 import za.org.grassroot.graph.repository.EventRepository;
 import za.org.grassroot.graph.repository.InteractionRepository;
+import za.org.grassroot.graph.services.CachingExistenceBroker;
+import za.org.grassroot.graph.services.ExistenceBroker;
 import za.org.grassroot.graph.services.IncomingActionProcessor;
+import za.org.grassroot.graph.services.PlatformEntityDTO;
+import za.org.grassroot.graph.services.PlatformRelationshipDTO;
 
 import java.util.*;
 
@@ -31,6 +35,8 @@ import static za.org.grassroot.graph.TestUtils.wrapEventAction;
 public class ExistenceTests {
 
     @Autowired IncomingActionProcessor incomingActionProcessor;
+    @Autowired CachingExistenceBroker existenceCache;
+    @Autowired ExistenceBroker existenceBroker;
 
     @Autowired ActorRepository actorRepository;
     @Autowired EventRepository eventRepository;
@@ -136,6 +142,43 @@ public class ExistenceTests {
         assertThat(relationshipAnnotationRemoval, is(false));
     }
 
+    @Test
+    @Rollback
+    public void checkManyRelationshipsAtOnce() {
+        dispatchParticipation(TEST_ENTITY_PREFIX + "user", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(),
+                TEST_ENTITY_PREFIX + "meeting", GraphEntityType.EVENT, EventType.MEETING.name(), ActionType.CREATE_RELATIONSHIP);
+        dispatchParticipation(TEST_ENTITY_PREFIX + "user", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(),
+                TEST_ENTITY_PREFIX + "group", GraphEntityType.ACTOR, ActorType.GROUP.name(), ActionType.CREATE_RELATIONSHIP);
+
+        PlatformEntityDTO user = new PlatformEntityDTO(TEST_ENTITY_PREFIX + "user", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        PlatformEntityDTO group = new PlatformEntityDTO(TEST_ENTITY_PREFIX + "group", GraphEntityType.ACTOR, ActorType.GROUP.name());
+        PlatformEntityDTO meeting = new PlatformEntityDTO(TEST_ENTITY_PREFIX + "meeting", GraphEntityType.EVENT, EventType.MEETING.name());
+
+        List<Boolean> exist = existenceBroker.relationshipsExist(Arrays.asList(
+                new PlatformRelationshipDTO(user, meeting, GrassrootRelationship.Type.PARTICIPATES),
+                new PlatformRelationshipDTO(user, group, GrassrootRelationship.Type.PARTICIPATES),
+                new PlatformRelationshipDTO(group, user, GrassrootRelationship.Type.PARTICIPATES),
+                new PlatformRelationshipDTO(user, meeting, GrassrootRelationship.Type.GENERATOR)));
+        assertThat(exist, is(Arrays.asList(true, true, false, false)));
+        assertThat(existenceBroker.relationshipExists(user, group, GrassrootRelationship.Type.PARTICIPATES), is(true));
+    }
+
+    @Test
+    @Rollback
+    public void reconcileTypeOfUntypedActor() {
+        Actor untyped = new Actor();
+        untyped.setPlatformUid(TEST_ENTITY_PREFIX + "user");
+        actorRepository.save(untyped);
+
+        dispatchParticipation(TEST_ENTITY_PREFIX + "user", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(),
+                TEST_ENTITY_PREFIX + "group", GraphEntityType.ACTOR, ActorType.GROUP.name(), ActionType.CREATE_RELATIONSHIP);
+        assertThat(actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "user").getActorType(), is(ActorType.INDIVIDUAL));
+
+        dispatchParticipation(TEST_ENTITY_PREFIX + "user", GraphEntityType.ACTOR, ActorType.MOVEMENT.name(),
+                TEST_ENTITY_PREFIX + "group", GraphEntityType.ACTOR, ActorType.GROUP.name(), ActionType.CREATE_RELATIONSHIP);
+        assertThat(actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "user").getActorType(), is(ActorType.INDIVIDUAL));
+    }
+
     private boolean dispatchActor(ActorType actorType, String platformId, ActionType actionType) {
         return incomingActionProcessor.processIncomingAction(wrapActorAction(actorType, platformId, actionType)).block();
     }
@@ -163,6 +206,7 @@ public class ExistenceTests {
 
     @After
     public void cleanDb() {
+        existenceCache.invalidateAll(); // entities are deleted behind the broker's back here
         actorRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
         eventRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
         interactionRepository.deleteAll();
@@ -0,0 +1,128 @@
+package za.org.grassroot.graph;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.neo4j.ogm.session.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.EventType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.InteractionType;
+import za.org.grassroot.graph.services.PlatformEntityDTO;
+import za.org.grassroot.graph.services.RelationshipBroker;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static za.org.grassroot.graph.GraphApplicationTests.TEST_ENTITY_PREFIX;
+
+/*
+Writes to very high degree nodes (super-user actors, long-lived meeting series) go through edge-level statements that
+never read the node's other relationships; these check that such writes still add and remove the right edges, and
+leave the others alone. What they cost at each degree is measured in HubNodeWriteBenchmark
+ */
+@RunWith(SpringRunner.class) @Slf4j
+@SpringBootTest(properties = {"sqs.pull.enabled=false","sqs.push.enabled=false"})
+public class HubNodeWriteTests {
+
+    private static final int HUB_DEGREE = 10_000;
+    private static final int SETUP_BATCH_SIZE = 10_000;
+    private static final String HUB_PREFIX = TEST_ENTITY_PREFIX + "hub-";
+
+    @Autowired RelationshipBroker relationshipBroker;
+    @Autowired Session session;
+
+    @Test
+    public void participationOnHubActorIsAddedAndRemoved() {
+        session.query("CREATE (:Actor {platformUid: $uid, actorType: 'INDIVIDUAL'})",
+                Collections.singletonMap("uid", HUB_PREFIX + "superuser"));
+        PlatformEntityDTO superUser = new PlatformEntityDTO(HUB_PREFIX + "superuser", GraphEntityType.ACTOR,
+                ActorType.INDIVIDUAL.name());
+        bulkCreate("UNWIND $rows AS row " +
+                "MATCH (hub:Actor {platformUid: $hubUid}) " +
+                "CREATE (hub)-[:PARTICIPATES]->(:Interaction {id: row, platformUid: row, interactionType: 'SURVEY'})",
+                HUB_PREFIX + "superuser", HUB_PREFIX + "bulk-");
+
+        PlatformEntityDTO survey = interaction(HUB_PREFIX + "survey");
+        assertThat(relationshipBroker.addParticipation(superUser, survey), is(true));
+        assertThat(relationshipBroker.addParticipation(superUser, survey), is(true));
+        assertThat(edgeCount("Actor", HUB_PREFIX + "superuser", "PARTICIPATES", "Interaction", HUB_PREFIX + "survey"), is(1L));
+        assertThat(degree("Actor", HUB_PREFIX + "superuser", "PARTICIPATES"), is(HUB_DEGREE + 1L));
+
+        assertThat(relationshipBroker.removeParticipation(superUser, survey), is(true));
+        assertThat(edgeCount("Actor", HUB_PREFIX + "superuser", "PARTICIPATES", "Interaction", HUB_PREFIX + "survey"), is(0L));
+        assertThat(degree("Actor", HUB_PREFIX + "superuser", "PARTICIPATES"), is((long) HUB_DEGREE));
+    }
+
+    @Test
+    public void generationFromHubEventIsAdded() {
+        session.query("CREATE (:Event {platformUid: $uid, eventType: 'MEETING'})",
+                Collections.singletonMap("uid", HUB_PREFIX + "series"));
+        PlatformEntityDTO series = new PlatformEntityDTO(HUB_PREFIX + "series", GraphEntityType.EVENT,
+                EventType.MEETING.name());
+        bulkCreate("UNWIND $rows AS row " +
+                "MATCH (hub:Event {platformUid: $hubUid}) " +
+                "CREATE (hub)-[:GENERATOR]->(:Event {platformUid: row, eventType: 'MEETING'})",
+                HUB_PREFIX + "series", HUB_PREFIX + "bulk-");
+
+        assertThat(relationshipBroker.setGeneration(series, event(HUB_PREFIX + "meeting")), is(true));
+        assertThat(edgeCount("Event", HUB_PREFIX + "series", "GENERATOR", "Event", HUB_PREFIX + "meeting"), is(1L));
+        assertThat(degree("Event", HUB_PREFIX + "series", "GENERATOR"), is(HUB_DEGREE + 1L));
+    }
+
+    private long edgeCount(String tailLabel, String tailUid, String type, String headLabel, String headUid) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("tailUid", tailUid);
+        parameters.put("headUid", headUid);
+        return session.queryForObject(Long.class, String.format("MATCH (:%s {platformUid: $tailUid})-[r:%s]->" +
+                "(:%s {platformUid: $headUid}) RETURN count(r)", tailLabel, type, headLabel), parameters);
+    }
+
+    private long degree(String label, String uid, String type) {
+        return session.queryForObject(Long.class, String.format("MATCH (:%s {platformUid: $uid})-[r:%s]->() " +
+                "RETURN count(r)", label, type), Collections.singletonMap("uid", uid));
+    }
+
+    private PlatformEntityDTO interaction(String id) {
+        session.query("CREATE (:Interaction {id: $uid, platformUid: $uid, interactionType: 'SURVEY'})", Collections.singletonMap("uid", id));
+        return new PlatformEntityDTO(id, GraphEntityType.INTERACTION, InteractionType.SURVEY.name());
+    }
+
+    private PlatformEntityDTO event(String uid) {
+        session.query("CREATE (:Event {platformUid: $uid, eventType: 'MEETING'})", Collections.singletonMap("uid", uid));
+        return new PlatformEntityDTO(uid, GraphEntityType.EVENT, EventType.MEETING.name());
+    }
+
+    private void bulkCreate(String statement, String hubUid, String rowPrefix) {
+        for (int start = 0; start < HUB_DEGREE; start += SETUP_BATCH_SIZE) {
+            List<String> rows = IntStream.range(start, Math.min(start + SETUP_BATCH_SIZE, HUB_DEGREE))
+                    .mapToObj(i -> rowPrefix + i).collect(Collectors.toList());
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("rows", rows);
+            parameters.put("hubUid", hubUid);
+            session.query(statement, parameters);
+        }
+    }
+
+    @After
+    public void cleanDb() {
+        // derived deletes would load every node through OGM, so clear out in batches directly
+        long deleted;
+        do {
+            deleted = ((Number) session.query("MATCH (n) WHERE n.platformUid STARTS WITH $prefix " +
+                    "WITH n LIMIT 10000 DETACH DELETE n RETURN count(n) AS deleted",
+                    Collections.singletonMap("prefix", HUB_PREFIX)).queryResults().iterator().next().get("deleted")).longValue();
+        } while (deleted > 0);
+    }
+
+}
@@ -0,0 +1,121 @@
+package za.org.grassroot.graph;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.neo4j.ogm.session.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.repository.ActorRepository;
+import za.org.grassroot.graph.services.AnnotationBroker;
+import za.org.grassroot.graph.services.CachingExistenceBroker;
+import za.org.grassroot.graph.services.ExistenceBroker;
+import za.org.grassroot.graph.services.PlatformEntityDTO;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static za.org.grassroot.graph.GraphApplicationTests.TEST_ENTITY_PREFIX;
+
+/*
+The hot ingest writes on the native statement path against the same writes through OGM (load, modify, save), which
+remains in use for admin and tests: each pair has to leave the graph in the same state. How long each takes is
+measured in NativeWritePathBenchmark, outside the test suite
+ */
+@RunWith(SpringRunner.class) @Slf4j
+@SpringBootTest(properties = {"sqs.pull.enabled=false","sqs.push.enabled=false"})
+public class NativeWritePathTests {
+
+    private static final int WRITES = 5;
+    private static final String OGM_PREFIX = TEST_ENTITY_PREFIX + "ogm-";
+    private static final String NATIVE_PREFIX = TEST_ENTITY_PREFIX + "native-";
+
+    @Autowired AnnotationBroker annotationBroker;
+    @Autowired ExistenceBroker existenceBroker;
+    @Autowired CachingExistenceBroker existenceCache;
+    @Autowired ActorRepository actorRepository;
+    @Autowired PlatformTransactionManager transactionManager;
+    @Autowired Session session;
+
+    @Test
+    public void upsertEntityMatchesOgm() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        IntStream.range(0, WRITES).forEach(i -> {
+            assertThat(transaction.execute(status ->
+                    actorRepository.save(new Actor(ActorType.INDIVIDUAL, OGM_PREFIX + i), 0)), notNullValue());
+            assertThat(existenceBroker.mergeEntities(
+                    Collections.singletonList(new Actor(ActorType.INDIVIDUAL, NATIVE_PREFIX + i))), is(true));
+        });
+
+        session.clear();
+        for (int i = 0; i < WRITES; i++) {
+            Actor throughOgm = actorRepository.findByPlatformUid(OGM_PREFIX + i, 0);
+            Actor natively = actorRepository.findByPlatformUid(NATIVE_PREFIX + i, 0);
+            assertThat(natively, notNullValue());
+            assertThat(natively.getActorType(), is(throughOgm.getActorType()));
+            assertThat(natively.getId(), notNullValue());
+            assertThat(natively.getCreationTime(), notNullValue());
+        }
+    }
+
+    @Test
+    public void setTagsMatchesOgm() {
+        existenceBroker.mergeEntities(IntStream.range(0, WRITES).boxed().flatMap(i -> Stream.of(
+                new Actor(ActorType.INDIVIDUAL, OGM_PREFIX + i), new Actor(ActorType.INDIVIDUAL, NATIVE_PREFIX + i)))
+                .collect(Collectors.toList()));
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+
+        IntStream.range(0, WRITES).forEach(i -> {
+            transaction.execute(status -> {
+                Actor actor = actorRepository.findByPlatformUid(OGM_PREFIX + i, 0);
+                actor.addTags(tags(i));
+                actor.addProperties(Collections.singletonMap("LANGUAGE", "zu"));
+                return actorRepository.save(actor, 0);
+            });
+            assertThat(annotationBroker.annotateEntity(
+                    new PlatformEntityDTO(NATIVE_PREFIX + i, GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name()),
+                    Collections.singletonMap("LANGUAGE", "zu"), tags(i)), is(true));
+        });
+
+        session.clear();
+        for (int i = 0; i < WRITES; i++) {
+            Actor throughOgm = actorRepository.findByPlatformUid(OGM_PREFIX + i, 0);
+            Actor natively = actorRepository.findByPlatformUid(NATIVE_PREFIX + i, 0);
+            assertThat(Arrays.asList(natively.getStdTags()), containsInAnyOrder(throughOgm.getStdTags()));
+            assertThat(natively.getStdProps(), is(throughOgm.getStdProps()));
+        }
+    }
+
+    private Set<String> tags(int i) {
+        return new HashSet<>(Arrays.asList("native", "tag-" + (i % 10)));
+    }
+
+    @After
+    public void cleanDb() {
+        existenceCache.invalidateAll();
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("ogm", OGM_PREFIX);
+        parameters.put("native", NATIVE_PREFIX);
+        session.query("MATCH (n:Actor) WHERE n.platformUid STARTS WITH $ogm OR n.platformUid STARTS WITH $native " +
+                "DETACH DELETE n", parameters);
+    }
+
+}
@@ -4,6 +4,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.neo4j.ogm.session.Session;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.annotation.Rollback;
@@ -20,9 +21,15 @@ import za.org.grassroot.graph.dto.IncomingRelationship;
 import za.org.grassroot.graph.repository.ActorRepository;
 import za.org.grassroot.graph.repository.EventRepository;
 import za.org.grassroot.graph.repository.InteractionRepository;
+import za.org.grassroot.graph.services.CachingExistenceBroker;
 import za.org.grassroot.graph.services.IncomingActionProcessor;
+import za.org.grassroot.graph.services.PlatformEntityDTO;
+import za.org.grassroot.graph.services.PlatformRelationshipDTO;
+import za.org.grassroot.graph.services.RelationshipBroker;
+import za.org.grassroot.graph.services.RelationshipOutcome;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -42,10 +49,13 @@ import static za.org.grassroot.graph.TestUtils.wrapInteractionAction;
 public class RelationshipTests {
 
     @Autowired IncomingActionProcessor incomingActionProcessor;
+    @Autowired CachingExistenceBroker existenceCache;
+    @Autowired RelationshipBroker relationshipBroker;
 
     @Autowired ActorRepository actorRepository;
     @Autowired EventRepository eventRepository;
     @Autowired InteractionRepository interactionRepository;
+    @Autowired Session session;
 
     @Test
     @Rollback
@@ -109,7 +119,7 @@ public class RelationshipTests {
 
         Actor personFromDB = actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "person");
         Event meetingFromDB = eventRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "meeting");
-        Interaction surveyFromDB = interactionRepository.findById(TEST_ENTITY_PREFIX + "survey").orElse(null);
+        Interaction surveyFromDB = interactionRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "survey");
         assertThat(personFromDB.getCreatedByActor(), is(nullValue()));
         assertThat(meetingFromDB.getCreator(), is(nullValue()));
         assertThat(surveyFromDB.getInitiator(), is(nullValue()));
@@ -244,6 +254,108 @@ public class RelationshipTests {
         assertThat(CollectionUtils.isEmpty(personFromDB.getParticipatesInInteractions()), is(true));
     }
 
+    @Test
+    @Rollback
+    public void batchRelationshipOutcomes() {
+        dispatchActor(ActorType.INDIVIDUAL, TEST_ENTITY_PREFIX + "user", ActionType.CREATE_ENTITY);
+        dispatchActor(ActorType.GROUP, TEST_ENTITY_PREFIX + "group", ActionType.CREATE_ENTITY);
+        dispatchEvent(EventType.MEETING, TEST_ENTITY_PREFIX + "meeting", ActionType.CREATE_ENTITY);
+
+        PlatformEntityDTO user = new PlatformEntityDTO(TEST_ENTITY_PREFIX + "user", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        PlatformEntityDTO group = new PlatformEntityDTO(TEST_ENTITY_PREFIX + "group", GraphEntityType.ACTOR, ActorType.GROUP.name());
+        PlatformEntityDTO meeting = new PlatformEntityDTO(TEST_ENTITY_PREFIX + "meeting", GraphEntityType.EVENT, EventType.MEETING.name());
+        PlatformEntityDTO missing = new PlatformEntityDTO(TEST_ENTITY_PREFIX + "missing", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+
+        relationshipBroker.createRelationships(Collections.singletonList(
+                new PlatformRelationshipDTO(user, group, GrassrootRelationship.Type.PARTICIPATES)));
+
+        List<RelationshipOutcome> outcomes = relationshipBroker.createRelationships(Arrays.asList(
+                new PlatformRelationshipDTO(user, group, GrassrootRelationship.Type.PARTICIPATES),
+                new PlatformRelationshipDTO(user, meeting, GrassrootRelationship.Type.PARTICIPATES),
+                new PlatformRelationshipDTO(missing, group, GrassrootRelationship.Type.PARTICIPATES),
+                new PlatformRelationshipDTO(meeting, meeting, GrassrootRelationship.Type.PARTICIPATES),
+                new PlatformRelationshipDTO(group, meeting, GrassrootRelationship.Type.GENERATOR)));
+
+        assertThat(outcomes, is(Arrays.asList(RelationshipOutcome.EXISTED, RelationshipOutcome.CREATED,
+                RelationshipOutcome.MISSING_ENTITY, RelationshipOutcome.UNSUPPORTED, RelationshipOutcome.CREATED)));
+
+        Actor userFromDB = actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "user");
+        assertThat(userFromDB.getParticipatesInActors().size(), is(1));
+        assertThat(userFromDB.getParticipatesInActors().iterator().next().getEstablishedTime(), notNullValue());
+        assertThat(userFromDB.getParticipatesInEvents().size(), is(1));
+        assertThat(eventRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "meeting").getCreator().getPlatformUid(),
+                is(TEST_ENTITY_PREFIX + "group"));
+    }
+
+    @Test
+    @Rollback
+    public void lastOfTwoGeneratorsInOneActionWins() {
+        dispatchActor(ActorType.GROUP, TEST_ENTITY_PREFIX + "group", ActionType.CREATE_ENTITY);
+        dispatchActor(ActorType.GROUP, TEST_ENTITY_PREFIX + "other", ActionType.CREATE_ENTITY);
+        dispatchEvent(EventType.MEETING, TEST_ENTITY_PREFIX + "meeting", ActionType.CREATE_ENTITY);
+
+        IncomingGraphAction action = new IncomingGraphAction(TEST_ENTITY_PREFIX + "group",
+                ActionType.CREATE_RELATIONSHIP, null, new ArrayList<>(), null);
+        Arrays.asList("group", "other").forEach(generator -> action.addRelationship(new IncomingRelationship(
+                TEST_ENTITY_PREFIX + generator, GraphEntityType.ACTOR, ActorType.GROUP.name(), TEST_ENTITY_PREFIX + "meeting",
+                GraphEntityType.EVENT, EventType.MEETING.name(), GrassrootRelationship.Type.GENERATOR)));
+        assertThat(incomingActionProcessor.processIncomingAction(action).block(), is(true));
+
+        assertThat(session.queryForObject(Long.class, "MATCH ()-[g:GENERATOR]->(e:Event {platformUid: $uid}) RETURN count(g)",
+                Collections.singletonMap("uid", TEST_ENTITY_PREFIX + "meeting")), is(1L));
+        assertThat(eventRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "meeting").getCreator().getPlatformUid(),
+                is(TEST_ENTITY_PREFIX + "other"));
+    }
+
+    @Test
+    @Rollback
+    public void failedActionRollsBackEntirely() {
+        dispatchActor(ActorType.GROUP, TEST_ENTITY_PREFIX + "group", ActionType.CREATE_ENTITY);
+
+        IncomingGraphAction action = new IncomingGraphAction(TEST_ENTITY_PREFIX + "person",
+                ActionType.CREATE_RELATIONSHIP, null, new ArrayList<>(), null);
+        action.addRelationship(new IncomingRelationship(TEST_ENTITY_PREFIX + "person",
+                GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(), TEST_ENTITY_PREFIX + "group",
+                GraphEntityType.ACTOR, ActorType.GROUP.name(), GrassrootRelationship.Type.PARTICIPATES));
+        action.addRelationship(new IncomingRelationship(TEST_ENTITY_PREFIX + "meeting",
+                GraphEntityType.EVENT, EventType.MEETING.name(), TEST_ENTITY_PREFIX + "group",
+                GraphEntityType.ACTOR, ActorType.GROUP.name(), GrassrootRelationship.Type.GENERATOR));
+        boolean succeeded = incomingActionProcessor.processIncomingAction(action).block();
+
+        // neither the valid participation nor the endpoints created for the action should have survived the invalid generation
+        assertThat(succeeded, is(false));
+        assertThat(actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "person"), is(nullValue()));
+        assertThat(eventRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "meeting"), is(nullValue()));
+        assertThat(existenceCache.entityExists(new PlatformEntityDTO(TEST_ENTITY_PREFIX + "person",
+                GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name())), is(false));
+    }
+
+    @Test
+    @Rollback
+    public void combinedActionsFallBackToOneAtATime() {
+        IncomingGraphAction first = new IncomingGraphAction(TEST_ENTITY_PREFIX + "person",
+                ActionType.CREATE_RELATIONSHIP, null, new ArrayList<>(), null);
+        first.addRelationship(new IncomingRelationship(TEST_ENTITY_PREFIX + "person",
+                GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(), TEST_ENTITY_PREFIX + "group",
+                GraphEntityType.ACTOR, ActorType.GROUP.name(), GrassrootRelationship.Type.PARTICIPATES));
+        IncomingGraphAction invalid = new IncomingGraphAction(TEST_ENTITY_PREFIX + "meeting",
+                ActionType.CREATE_RELATIONSHIP, null, new ArrayList<>(), null);
+        invalid.addRelationship(new IncomingRelationship(TEST_ENTITY_PREFIX + "meeting",
+                GraphEntityType.EVENT, EventType.MEETING.name(), TEST_ENTITY_PREFIX + "group",
+                GraphEntityType.ACTOR, ActorType.GROUP.name(), GrassrootRelationship.Type.GENERATOR));
+        IncomingGraphAction last = new IncomingGraphAction(TEST_ENTITY_PREFIX + "other",
+                ActionType.CREATE_RELATIONSHIP, null, new ArrayList<>(), null);
+        last.addRelationship(new IncomingRelationship(TEST_ENTITY_PREFIX + "other",
+                GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(), TEST_ENTITY_PREFIX + "group",
+                GraphEntityType.ACTOR, ActorType.GROUP.name(), GrassrootRelationship.Type.PARTICIPATES));
+
+        List<Boolean> results = incomingActionProcessor.processIncomingActions(Arrays.asList(first, invalid, last)).block();
+        assertThat(results, is(Arrays.asList(true, false, true)));
+        assertThat(actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "person").getParticipatesInActors().size(), is(1));
+        assertThat(actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "other").getParticipatesInActors().size(), is(1));
+        assertThat(eventRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "meeting"), is(nullValue()));
+    }
+
     private boolean dispatchActor(ActorType actorType, String platformId, ActionType actionType) {
         return incomingActionProcessor.processIncomingAction(wrapActorAction(actorType, platformId, actionType)).block();
     }
@@ -259,7 +371,7 @@ public class RelationshipTests {
     private void verifyGeneratorRelationshipsExist() {
         Actor groupFromDB = actorRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "group");
         Event meetingFromDB = eventRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "meeting");
-        Interaction surveyFromDB = interactionRepository.findById(TEST_ENTITY_PREFIX + "survey").orElse(null);
+        Interaction surveyFromDB = interactionRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "survey");
         Event voteFromDB = eventRepository.findByPlatformUid(TEST_ENTITY_PREFIX + "vote");
         assertThat(groupFromDB.getCreatedByActor(), is(notNullValue()));
         assertThat(meetingFromDB.getCreator(), is(notNullValue()));
@@ -278,6 +390,7 @@ public class RelationshipTests {
 
     @After
     public void cleanDb() {
+        existenceCache.invalidateAll(); // entities are deleted behind the broker's back here
         actorRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
         eventRepository.deleteByPlatformUidContaining(TEST_ENTITY_PREFIX);
         interactionRepository.deleteAll();
@@ -0,0 +1,155 @@
+package za.org.grassroot.graph;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.neo4j.ogm.session.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingAnnotation;
+import za.org.grassroot.graph.dto.IncomingDataObject;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+import za.org.grassroot.graph.dto.IncomingRelationship;
+import za.org.grassroot.graph.services.CachingExistenceBroker;
+import za.org.grassroot.graph.services.IncomingActionProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static za.org.grassroot.graph.GraphApplicationTests.TEST_ENTITY_PREFIX;
+import static za.org.grassroot.graph.TestUtils.wrapActorAction;
+
+/*
+Stress test for many workers writing through the processor at once: each unit of work has to get its own session,
+so that no worker sees (or writes back) another's entities. that a session is cleared between the segments of one
+unit of work is checked directly, in IncomingActionProcessorSessionTest
+ */
+@RunWith(SpringRunner.class) @Slf4j
+@SpringBootTest(properties = {"sqs.pull.enabled=false","sqs.push.enabled=false"})
+public class SessionConcurrencyTests {
+
+    private static final int WRITERS = 32;
+    private static final int ACTORS_PER_WRITER = 25;
+    private static final int ROUNDS = 3;
+    private static final String CONCURRENCY_PREFIX = TEST_ENTITY_PREFIX + "concurrent-";
+    private static final String SHARED_GROUP = CONCURRENCY_PREFIX + "group";
+
+    @Autowired IncomingActionProcessor incomingActionProcessor;
+    @Autowired CachingExistenceBroker existenceCache;
+    @Autowired Session session;
+
+    @Test
+    public void concurrentWritersStayIsolated() throws Exception {
+        assertThat(incomingActionProcessor.processIncomingAction(
+                wrapActorAction(ActorType.GROUP, SHARED_GROUP, ActionType.CREATE_ENTITY)).block(), is(true));
+
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int writer = 0; writer < WRITERS; writer++) {
+                    final String writerPrefix = CONCURRENCY_PREFIX + round + "-" + writer + "-";
+                    final String writerTag = "writer-" + writer;
+                    results.add(writers.submit(() -> writeActors(writerPrefix, writerTag)));
+                }
+                for (Future<Boolean> result : results) {
+                    assertThat(result.get(5, TimeUnit.MINUTES), is(true));
+                }
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int writer = 0; writer < WRITERS; writer++) {
+                final String writerPrefix = CONCURRENCY_PREFIX + round + "-" + writer + "-";
+                for (List<Object> tags : tagsOfActors(writerPrefix)) {
+                    assertThat(tags, containsInAnyOrder("writer-" + writer, "stress"));
+                }
+            }
+        }
+        assertThat(countParticipants(), is((long) ROUNDS * WRITERS * ACTORS_PER_WRITER));
+    }
+
+    private boolean writeActors(String writerPrefix, String writerTag) {
+        for (int i = 0; i < ACTORS_PER_WRITER; i++) {
+            final String uid = writerPrefix + i;
+            boolean written = incomingActionProcessor.processIncomingAction(
+                    wrapActorAction(ActorType.INDIVIDUAL, uid, ActionType.CREATE_ENTITY)).block()
+                    && incomingActionProcessor.processIncomingAction(annotate(uid, writerTag)).block()
+                    && incomingActionProcessor.processIncomingAction(joinSharedGroup(uid)).block();
+            if (!written) {
+                log.error("Writer failed on actor {}", uid);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private IncomingGraphAction annotate(String uid, String writerTag) {
+        IncomingDataObject entity = new IncomingDataObject(GraphEntityType.ACTOR, new Actor(ActorType.INDIVIDUAL, uid));
+        IncomingAnnotation annotation = new IncomingAnnotation(entity, null, null,
+                new HashSet<>(Arrays.asList(writerTag, "stress")), null);
+        return new IncomingGraphAction(uid, ActionType.ANNOTATE_ENTITY, null, null, Collections.singletonList(annotation));
+    }
+
+    // every writer adds edges to the one group, so the writers contend on it and go through the retries
+    private IncomingGraphAction joinSharedGroup(String uid) {
+        IncomingRelationship relationship = new IncomingRelationship(uid, GraphEntityType.ACTOR,
+                ActorType.INDIVIDUAL.name(), SHARED_GROUP, GraphEntityType.ACTOR, ActorType.GROUP.name(),
+                GrassrootRelationship.Type.PARTICIPATES);
+        return new IncomingGraphAction(uid, ActionType.CREATE_RELATIONSHIP, null,
+                Collections.singletonList(relationship), null);
+    }
+
+    // depending on driver, arrays come back from raw queries as either arrays or lists
+    private List<List<Object>> tagsOfActors(String writerPrefix) {
+        List<List<Object>> tags = new ArrayList<>();
+        session.query("MATCH (a:Actor) WHERE a.platformUid STARTS WITH $prefix RETURN a.stdTags AS tags",
+                Collections.singletonMap("prefix", writerPrefix)).queryResults()
+                .forEach(row -> {
+                    Object value = row.get("tags");
+                    tags.add(value instanceof Object[] ? Arrays.asList((Object[]) value) : new ArrayList<>((List<?>) value));
+                });
+        assertThat(tags.size(), is(ACTORS_PER_WRITER));
+        return tags;
+    }
+
+    private long countParticipants() {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("groupUid", SHARED_GROUP);
+        return ((Number) session.query("MATCH (:Actor)-[r:PARTICIPATES]->(:Actor {platformUid: $groupUid}) " +
+                "RETURN count(r) AS participants", parameters).queryResults().iterator().next().get("participants")).longValue();
+    }
+
+    @After
+    public void cleanDb() {
+        existenceCache.invalidateAll();
+        long deleted;
+        do {
+            deleted = ((Number) session.query("MATCH (n) WHERE n.platformUid STARTS WITH $prefix " +
+                    "WITH n LIMIT 10000 DETACH DELETE n RETURN count(n) AS deleted",
+                    Collections.singletonMap("prefix", CONCURRENCY_PREFIX)).queryResults().iterator().next().get("deleted")).longValue();
+        } while (deleted > 0);
+    }
+
+}
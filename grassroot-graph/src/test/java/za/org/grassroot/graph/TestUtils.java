@@ -33,7 +33,7 @@ public class TestUtils {
     public static IncomingGraphAction wrapInteractionAction(InteractionType interactionType, String id, ActionType actionType) {
         Interaction testInteraction = new Interaction();
         testInteraction.setInteractionType(interactionType);
-        testInteraction.setId(id);
+        testInteraction.setPlatformUid(id);
         IncomingDataObject dataObject = new IncomingDataObject(GraphEntityType.INTERACTION, testInteraction);
         return new IncomingGraphAction(id, actionType, Collections.singletonList(dataObject), null, null);
     }
@@ -0,0 +1,132 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.ogm.model.Result;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.neo4j.ogm.transaction.Transaction;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class CachingExistenceBrokerTest {
+
+    private ExistenceBrokerImpl delegate;
+    private Session session;
+    private CachingExistenceBroker existenceCache;
+
+    @Before
+    public void setUp() {
+        delegate = mock(ExistenceBrokerImpl.class);
+        session = mock(Session.class);
+        SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.openSession()).thenReturn(session);
+        when(session.beginTransaction(any(Transaction.Type.class))).thenReturn(mock(Transaction.class));
+        Result empty = mock(Result.class);
+        when(empty.queryResults()).thenReturn(Collections.emptyList());
+        when(session.query(anyString(), anyMap(), anyBoolean())).thenReturn(empty);
+
+        existenceCache = new CachingExistenceBroker(delegate, sessionFactory);
+        ReflectionTestUtils.setField(existenceCache, "lruSize", 100);
+        ReflectionTestUtils.setField(existenceCache, "bloomInitialCapacity", 1000);
+        ReflectionTestUtils.setField(existenceCache, "bloomFalsePositiveRate", 0.01);
+        ReflectionTestUtils.setField(existenceCache, "bloomNegativesAuthoritative", true);
+        ReflectionTestUtils.setField(existenceCache, "warmUpEnabled", true);
+        ReflectionTestUtils.invokeMethod(existenceCache, "init");
+    }
+
+    @Test
+    public void negativesGoToGraphUntilWarmedUp() {
+        PlatformEntityDTO actor = new PlatformEntityDTO("unseen", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        existenceCache.entityExists(actor);
+        verify(delegate).entityExists(actor);
+    }
+
+    @Test
+    public void negativesAreAnsweredAfterWarmUp() throws Exception {
+        Result uids = mock(Result.class);
+        when(uids.queryResults()).thenReturn(Collections.singletonList(Collections.singletonMap("uid", "seen")));
+        when(session.query(contains(":Actor"), anyMap(), anyBoolean())).thenReturn(uids);
+        when(delegate.entityExists(any())).thenReturn(true);
+        awaitWarmUp();
+
+        PlatformEntityDTO unseen = new PlatformEntityDTO("unseen", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        PlatformEntityDTO seen = new PlatformEntityDTO("seen", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        assertThat(existenceCache.entityExists(unseen), is(false));
+        assertThat(existenceCache.entityExists(seen), is(true));
+        verify(delegate, never()).entityExists(unseen);
+        verify(delegate).entityExists(seen);
+    }
+
+    @Test
+    public void negativesGoToGraphIfWarmUpFails() throws Exception {
+        when(session.query(contains(":Event"), anyMap(), anyBoolean())).thenThrow(new IllegalStateException("unavailable"));
+        existenceCache.warmUp();
+        verify(session, timeout(1000).times(GraphEntityType.values().length)).query(anyString(), anyMap(), anyBoolean());
+        Thread.sleep(50);
+
+        PlatformEntityDTO actor = new PlatformEntityDTO("unseen", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        existenceCache.entityExists(actor);
+        verify(delegate).entityExists(actor);
+    }
+
+    @Test
+    public void negativesGoToGraphUnlessSoleWriter() throws Exception {
+        ReflectionTestUtils.setField(existenceCache, "bloomNegativesAuthoritative", false);
+        awaitWarmUp();
+
+        PlatformEntityDTO actor = new PlatformEntityDTO("unseen", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        existenceCache.entityExists(actor);
+        verify(delegate).entityExists(actor);
+    }
+
+    // a lane that checked before the delete committed re-caches the entity, which the commit then evicts again
+    @Test
+    public void removalEvictsAfterCommit() throws Exception {
+        PlatformEntityDTO actor = new PlatformEntityDTO("removed", GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name());
+        when(delegate.entityExists(actor)).thenReturn(true);
+        when(delegate.removeEntityFromGraph(actor)).thenAnswer(invocation -> {
+            Thread concurrentLane = new Thread(() -> existenceCache.entityExists(actor));
+            concurrentLane.start();
+            concurrentLane.join();
+            return true;
+        });
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            existenceCache.removeEntityFromGraph(actor);
+            assertThat(cachedKeys().contains("ACTOR:removed"), is(true));
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertThat(cachedKeys().contains("ACTOR:removed"), is(false));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> cachedKeys() {
+        return ((Map<String, Boolean>) ReflectionTestUtils.getField(existenceCache, "knownEntities")).keySet();
+    }
+
+    private void awaitWarmUp() throws InterruptedException {
+        existenceCache.warmUp();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!(Boolean) ReflectionTestUtils.getField(existenceCache, "warmedUp")) {
+            assertThat("warm up completed in time", System.currentTimeMillis() < deadline, is(true));
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.ogm.session.Session;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingDataObject;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class IncomingActionProcessorChunkTest {
+
+    // stands in for the graph: what has committed, and what the current unit of work has removed so far
+    private final Set<String> committed = new HashSet<>();
+    private final List<String> removedInUnitOfWork = new ArrayList<>();
+    private String failingRemoval;
+
+    private ExistenceBroker existenceBroker;
+    private PlatformTransactionManager transactionManager;
+    private IncomingActionProcessorImpl processor;
+
+    @Before
+    public void setUp() {
+        existenceBroker = mock(ExistenceBroker.class);
+        when(existenceBroker.mergeEntities(anyList())).thenReturn(true);
+        when(existenceBroker.entityExists(any())).thenAnswer(invocation ->
+                committed.contains(((PlatformEntityDTO) invocation.getArgument(0)).getPlatformId()));
+        when(existenceBroker.removeEntityFromGraph(any())).thenAnswer(invocation -> {
+            String uid = ((PlatformEntityDTO) invocation.getArgument(0)).getPlatformId();
+            if (uid.equals(failingRemoval)) return false;
+            removedInUnitOfWork.add(uid);
+            return true;
+        });
+
+        transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any(TransactionDefinition.class))).thenAnswer(invocation -> new SimpleTransactionStatus());
+        // as the real managers do, a unit of work marked rollback only is rolled back on commit
+        doAnswer(invocation -> {
+            if (!((TransactionStatus) invocation.getArgument(0)).isRollbackOnly()) {
+                committed.removeAll(removedInUnitOfWork);
+            }
+            removedInUnitOfWork.clear();
+            return null;
+        }).when(transactionManager).commit(any(TransactionStatus.class));
+        doAnswer(invocation -> {
+            removedInUnitOfWork.clear();
+            return null;
+        }).when(transactionManager).rollback(any(TransactionStatus.class));
+
+        processor = new IncomingActionProcessorImpl(existenceBroker, mock(RelationshipBroker.class),
+                mock(AnnotationBroker.class), transactionManager, mock(Session.class));
+        ReflectionTestUtils.setField(processor, "chunkSize", 1);
+        ReflectionTestUtils.setField(processor, "retryAttempts", 1);
+    }
+
+    @Test
+    public void createsAreCommittedInChunks() {
+        assertThat(processor.processIncomingAction(action(ActionType.CREATE_ENTITY, "a", "b", "c")).block(), is(true));
+        verify(existenceBroker, times(3)).mergeEntities(argThat(entities -> entities.size() == 1));
+    }
+
+    // were the removal chunked, the first two would commit before the third failed, and every redelivery would then
+    // fail on them being gone
+    @Test
+    public void failedRemovalLeavesNothingForRedeliveryToTripOn() {
+        committed.addAll(Arrays.asList("a", "b", "c"));
+        IncomingGraphAction removal = action(ActionType.REMOVE_ENTITY, "a", "b", "c");
+
+        failingRemoval = "c";
+        assertThat(processor.processIncomingAction(removal).block(), is(false));
+        assertThat(committed, is(new HashSet<>(Arrays.asList("a", "b", "c"))));
+
+        failingRemoval = null;
+        assertThat(processor.processIncomingAction(removal).block(), is(true));
+        assertThat(committed, is(empty()));
+    }
+
+    private IncomingGraphAction action(ActionType actionType, String... uids) {
+        List<IncomingDataObject> actors = Arrays.stream(uids)
+                .map(uid -> new IncomingDataObject(GraphEntityType.ACTOR, new Actor(ActorType.INDIVIDUAL, uid)))
+                .collect(Collectors.toList());
+        return new IncomingGraphAction("actor", actionType, actors, null, null);
+    }
+
+}
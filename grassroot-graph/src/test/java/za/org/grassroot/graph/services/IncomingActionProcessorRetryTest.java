@@ -0,0 +1,84 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.ogm.session.Session;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import za.org.grassroot.graph.domain.enums.EventType;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+import static za.org.grassroot.graph.TestUtils.wrapEventAction;
+
+public class IncomingActionProcessorRetryTest {
+
+    private ExistenceBroker existenceBroker;
+    private PlatformTransactionManager transactionManager;
+    private IncomingActionProcessorImpl processor;
+
+    // an event, so there are no actor types to reconcile, and the action is the only unit of work
+    private final IncomingGraphAction action = wrapEventAction(EventType.MEETING, "meeting", ActionType.CREATE_ENTITY);
+
+    @Before
+    public void setUp() {
+        existenceBroker = mock(ExistenceBroker.class);
+        when(existenceBroker.mergeEntities(anyList())).thenReturn(true);
+        transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any(TransactionDefinition.class))).thenReturn(new SimpleTransactionStatus());
+
+        processor = new IncomingActionProcessorImpl(existenceBroker, mock(RelationshipBroker.class),
+                mock(AnnotationBroker.class), transactionManager, mock(Session.class));
+        ReflectionTestUtils.setField(processor, "retryAttempts", 3);
+        ReflectionTestUtils.setField(processor, "retryBackoffMillis", 1L);
+    }
+
+    @Test
+    public void retriesUnitOfWorkOnTransientError() {
+        doThrow(new TransientDataAccessResourceException("Neo.TransientError.Transaction.DeadlockDetected"))
+                .doNothing().when(transactionManager).commit(any(TransactionStatus.class));
+
+        assertThat(processor.processIncomingAction(action).block(), is(true));
+        verify(existenceBroker, times(2)).mergeEntities(anyList());
+        verify(transactionManager, times(2)).commit(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void doesNotRetryOtherErrors() {
+        doThrow(new DataIntegrityViolationException("Neo.ClientError.Schema.ConstraintValidationFailed"))
+                .doNothing().when(transactionManager).commit(any(TransactionStatus.class));
+
+        try {
+            processor.processIncomingAction(action).block();
+            fail("Expected the error to be thrown");
+        } catch (DataIntegrityViolationException e) {
+            verify(existenceBroker, times(1)).mergeEntities(anyList());
+            verify(transactionManager, times(1)).commit(any(TransactionStatus.class));
+        }
+    }
+
+    @Test
+    public void givesUpAfterLastAttempt() {
+        doThrow(new TransientDataAccessResourceException("Neo.TransientError.Transaction.DeadlockDetected"))
+                .when(transactionManager).commit(any(TransactionStatus.class));
+
+        try {
+            processor.processIncomingAction(action).block();
+            fail("Expected the error to be thrown");
+        } catch (TransientDataAccessResourceException e) {
+            verify(existenceBroker, times(3)).mergeEntities(anyList());
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.ogm.session.Session;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingDataObject;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class IncomingActionProcessorSessionTest {
+
+    // stands in for the session's identity map: each merge loads its entities, and clearing the session drops them
+    private final AtomicInteger loadedEntities = new AtomicInteger();
+    private final List<Integer> loadedBeforeEachMerge = new ArrayList<>();
+
+    private IncomingActionProcessorImpl processor;
+
+    @Before
+    public void setUp() {
+        ExistenceBroker existenceBroker = mock(ExistenceBroker.class);
+        when(existenceBroker.mergeEntities(anyList())).thenAnswer(invocation -> {
+            loadedBeforeEachMerge.add(loadedEntities.get());
+            loadedEntities.addAndGet(((List<?>) invocation.getArgument(0)).size());
+            return true;
+        });
+        when(existenceBroker.entityExists(any())).thenReturn(true);
+        when(existenceBroker.removeEntityFromGraph(any())).thenReturn(true);
+
+        Session session = mock(Session.class);
+        doAnswer(invocation -> {
+            loadedEntities.set(0);
+            return null;
+        }).when(session).clear();
+
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any(TransactionDefinition.class))).thenReturn(new SimpleTransactionStatus());
+
+        processor = new IncomingActionProcessorImpl(existenceBroker, mock(RelationshipBroker.class),
+                mock(AnnotationBroker.class), transactionManager, session);
+    }
+
+    // a removal between two creates splits the plan into three segments, all in the one unit of work
+    @Test
+    public void sessionIsClearedBetweenSegments() {
+        IncomingGraphAction removal = create("user");
+        removal.setActionType(ActionType.REMOVE_ENTITY);
+        List<IncomingGraphAction> actions = Arrays.asList(create("user"), removal, create("user"), create("group"));
+
+        assertThat(processor.processIncomingActions(actions).block(), everyItem(is(true)));
+        assertThat(loadedBeforeEachMerge, contains(0, 0));
+        assertThat(loadedEntities.get(), is(0));
+    }
+
+    private IncomingGraphAction create(String uid) {
+        IncomingDataObject actor = new IncomingDataObject(GraphEntityType.ACTOR, new Actor(ActorType.INDIVIDUAL, uid));
+        return new IncomingGraphAction(uid, ActionType.CREATE_ENTITY, Collections.singletonList(actor), null, null);
+    }
+
+}
@@ -0,0 +1,52 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Test;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class IngestStatementsTest {
+
+    @Test
+    public void everySupportedRelationshipHasItsStatements() {
+        for (GrassrootRelationship.Type relationshipType : GrassrootRelationship.Type.values()) {
+            for (GraphEntityType tailType : GraphEntityType.values()) {
+                for (GraphEntityType headType : GraphEntityType.values()) {
+                    boolean supported = RelationshipBrokerImpl.isSupported(relationshipType, tailType, headType);
+                    assertEquals(supported, IngestStatements.mergeRelationships(relationshipType, tailType, headType) != null);
+                    assertEquals(supported, IngestStatements.relationshipExists(relationshipType, tailType, headType) != null);
+                    assertEquals(supported, IngestStatements.relationshipsExist(relationshipType, tailType, headType) != null);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void entityStatementsLookUpByTheRightKey() {
+        assertThat(IngestStatements.entityExists(GraphEntityType.ACTOR), containsString(":Actor {platformUid: $uid}"));
+        assertThat(IngestStatements.deleteEntity(GraphEntityType.INTERACTION), containsString(":Interaction {platformUid: $uid}"));
+        assertNotNull(IngestStatements.mergeEntities(GraphEntityType.EVENT));
+        assertNotNull(IngestStatements.reconcileActorTypes());
+    }
+
+    @Test
+    public void interactionsCannotBeAnnotated() {
+        assertNull(IngestStatements.annotateEntity(GraphEntityType.INTERACTION));
+        assertNull(IngestStatements.removeEntityAnnotation(GraphEntityType.INTERACTION));
+        assertNotNull(IngestStatements.annotateParticipation());
+    }
+
+    @Test
+    public void catalogueIsFullyFormatted() {
+        assertTrue(IngestStatements.catalogue().size() > 20);
+        IngestStatements.catalogue().values().forEach(statement -> assertThat(statement, not(containsString("%s"))));
+    }
+
+}
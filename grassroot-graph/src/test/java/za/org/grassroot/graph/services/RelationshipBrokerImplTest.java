@@ -0,0 +1,49 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Test;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.EventType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class RelationshipBrokerImplTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void onlyLastGeneratorPerHeadIsMerged() {
+        BoltStatementRunner statementRunner = mock(BoltStatementRunner.class);
+        List<Map<String, Object>>[] mergedRows = new List[1];
+        when(statementRunner.run(anyString(), anyMap())).thenAnswer(invocation -> {
+            mergedRows[0] = (List<Map<String, Object>>) ((Map<String, Object>) invocation.getArgument(1)).get("rows");
+            Map<String, Object> result = new HashMap<>();
+            result.put("idx", mergedRows[0].get(0).get("idx"));
+            result.put("existed", false);
+            return new BoltStatementRunner.StatementOutcome(Collections.singletonList(result), 0);
+        });
+
+        PlatformEntityDTO first = new PlatformEntityDTO("first", GraphEntityType.ACTOR, ActorType.GROUP.name());
+        PlatformEntityDTO second = new PlatformEntityDTO("second", GraphEntityType.ACTOR, ActorType.GROUP.name());
+        PlatformEntityDTO meeting = new PlatformEntityDTO("meeting", GraphEntityType.EVENT, EventType.MEETING.name());
+        List<RelationshipOutcome> outcomes = new RelationshipBrokerImpl(statementRunner).createRelationships(Arrays.asList(
+                new PlatformRelationshipDTO(first, meeting, GrassrootRelationship.Type.GENERATOR),
+                new PlatformRelationshipDTO(second, meeting, GrassrootRelationship.Type.GENERATOR)));
+
+        verify(statementRunner, times(1)).run(anyString(), anyMap());
+        assertThat(mergedRows[0].size(), is(1));
+        assertThat(mergedRows[0].get(0).get("tailUid"), is("second"));
+        assertThat(outcomes, is(Arrays.asList(RelationshipOutcome.CREATED, RelationshipOutcome.CREATED)));
+    }
+
+}
@@ -0,0 +1,42 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class ScalableBloomFilterTest {
+
+    @Test
+    public void hasNoFalseNegativesAsItGrows() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1000, 0.01);
+        IntStream.range(0, 50_000).forEach(i -> filter.add("entity-" + i));
+
+        // entries hitting a false positive are not counted again, so the count can fall slightly short
+        assertThat(filter.count(), greaterThan(49_000L));
+        IntStream.range(0, 50_000).forEach(i -> assertThat(filter.mightContain("entity-" + i), is(true)));
+    }
+
+    @Test
+    public void keepsFalsePositivesNearTarget() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1000, 0.01);
+        IntStream.range(0, 50_000).forEach(i -> filter.add("entity-" + i));
+
+        long falsePositives = IntStream.range(0, 100_000)
+                .filter(i -> filter.mightContain("absent-" + i)).count();
+        assertThat((double) falsePositives / 100_000, lessThan(0.015));
+        assertThat(filter.sizeInBits(), greaterThan(0L));
+    }
+
+    @Test
+    public void ignoresRepeatedEntries() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(10, 0.01);
+        IntStream.range(0, 100).forEach(i -> filter.add("same-entity"));
+        assertThat(filter.count(), is(1L));
+    }
+
+}
@@ -0,0 +1,34 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Test;
+import org.neo4j.ogm.exception.CypherException;
+import org.springframework.dao.InvalidDataAccessResourceUsageException;
+import org.springframework.dao.TransientDataAccessResourceException;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TransientErrorsTest {
+
+    @Test
+    public void findsTransientCodeDownTheCauseChain() {
+        CypherException deadlock = new CypherException("Error executing Cypher",
+                "Neo.TransientError.Transaction.DeadlockDetected", "deadlock");
+        assertThat(TransientErrors.isTransient(new InvalidDataAccessResourceUsageException("wrapped",
+                new RuntimeException(deadlock))), is(true));
+    }
+
+    @Test
+    public void treatsSpringTransientExceptionsAsTransient() {
+        assertThat(TransientErrors.isTransient(new TransientDataAccessResourceException("lock timeout")), is(true));
+    }
+
+    @Test
+    public void leavesOtherErrorsAlone() {
+        CypherException constraint = new CypherException("Error executing Cypher",
+                "Neo.ClientError.Schema.ConstraintValidationFailed", "exists");
+        assertThat(TransientErrors.isTransient(new InvalidDataAccessResourceUsageException("wrapped", constraint)), is(false));
+        assertThat(TransientErrors.isTransient(new IllegalStateException("no message cause")), is(false));
+    }
+
+}
@@ -0,0 +1,119 @@
+package za.org.grassroot.graph.services;
+
+import org.junit.Test;
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingAnnotation;
+import za.org.grassroot.graph.dto.IncomingDataObject;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+import za.org.grassroot.graph.dto.IncomingRelationship;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class WritePlanCompilerTest {
+
+    @Test
+    public void repeatedCreatesCollapse() {
+        WritePlan plan = WritePlanCompiler.compile(Arrays.asList(create("user"), create("user"), create("group")));
+
+        assertEquals(1, plan.getSegments().size());
+        assertEquals(2, plan.getSegments().get(0).getEntityCreates().size());
+        assertEquals(1, plan.eliminatedOperations());
+    }
+
+    @Test
+    public void tagAddAndRemoveFold() {
+        WritePlan plan = WritePlanCompiler.compile(Arrays.asList(
+                annotate(ActionType.ANNOTATE_ENTITY, "user", "a", "b"),
+                annotate(ActionType.REMOVE_ANNOTATION, "user", "a"),
+                annotate(ActionType.ANNOTATE_ENTITY, "user", "c")));
+
+        WritePlan.EntityAnnotationDelta delta = plan.getSegments().get(0).getEntityAnnotations().values().iterator().next();
+        assertThat(delta.getTags(), containsInAnyOrder("b", "c"));
+        assertThat(delta.getTagsToRemove(), contains("a"));
+        assertFalse(delta.isMustExist());
+        assertEquals(2, plan.eliminatedOperations());
+    }
+
+    @Test
+    public void removalFirstMustFindEntity() {
+        WritePlan plan = WritePlanCompiler.compile(Arrays.asList(
+                annotate(ActionType.REMOVE_ANNOTATION, "user", "a"),
+                create("user")));
+
+        assertTrue(plan.getSegments().get(0).getEntityAnnotations().values().iterator().next().isMustExist());
+    }
+
+    @Test
+    public void addedThenRemovedParticipationCancels() {
+        WritePlan plan = WritePlanCompiler.compile(Arrays.asList(
+                relationshipAction(ActionType.CREATE_RELATIONSHIP, "user", "group"),
+                relationshipAction(ActionType.REMOVE_RELATIONSHIP, "user", "group")));
+
+        WritePlan.Segment segment = plan.getSegments().get(0);
+        assertThat(segment.getRelationshipCreates().values(), empty());
+        assertThat(segment.getRelationshipRemovals().values(), empty());
+        assertEquals(1, segment.getCancelledRemovals().size());
+        assertEquals(2, segment.getRetainedEndpoints().size());
+        assertEquals(1, plan.eliminatedOperations());
+    }
+
+    @Test
+    public void removedThenAddedParticipationKeepsOrder() {
+        WritePlan plan = WritePlanCompiler.compile(Arrays.asList(
+                relationshipAction(ActionType.REMOVE_RELATIONSHIP, "user", "group"),
+                relationshipAction(ActionType.CREATE_RELATIONSHIP, "user", "group")));
+
+        assertEquals(2, plan.getSegments().size());
+        assertEquals(1, plan.getSegments().get(0).getRelationshipRemovals().size());
+        assertEquals(1, plan.getSegments().get(1).getRelationshipCreates().size());
+        assertEquals(0, plan.eliminatedOperations());
+    }
+
+    @Test
+    public void entityRemovalRunsLiterally() {
+        IncomingGraphAction removal = create("user");
+        removal.setActionType(ActionType.REMOVE_ENTITY);
+        WritePlan plan = WritePlanCompiler.compile(Arrays.asList(create("user"), removal, create("user")));
+
+        assertEquals(3, plan.getSegments().size());
+        assertTrue(plan.getSegments().get(1).isLiteral());
+        assertEquals(0, plan.eliminatedOperations());
+    }
+
+    private IncomingGraphAction create(String uid) {
+        return new IncomingGraphAction(uid, ActionType.CREATE_ENTITY,
+                Collections.singletonList(actor(uid)), null, null);
+    }
+
+    private IncomingGraphAction annotate(ActionType actionType, String uid, String... tags) {
+        IncomingAnnotation annotation = new IncomingAnnotation(actor(uid), null, null,
+                new HashSet<>(Arrays.asList(tags)), null);
+        return new IncomingGraphAction(uid, actionType, null, null, Collections.singletonList(annotation));
+    }
+
+    private IncomingGraphAction relationshipAction(ActionType actionType, String tailUid, String headUid) {
+        IncomingRelationship relationship = new IncomingRelationship(tailUid, GraphEntityType.ACTOR,
+                ActorType.INDIVIDUAL.name(), headUid, GraphEntityType.ACTOR, ActorType.GROUP.name(),
+                GrassrootRelationship.Type.PARTICIPATES);
+        return new IncomingGraphAction(tailUid, actionType, null, Collections.singletonList(relationship), null);
+    }
+
+    private IncomingDataObject actor(String uid) {
+        return new IncomingDataObject(GraphEntityType.ACTOR, new Actor(ActorType.INDIVIDUAL, uid));
+    }
+
+}
@@ -0,0 +1,37 @@
+package za.org.grassroot.graph.sqs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class JacksonMessageParserTest {
+
+    private final JacksonMessageParser parser = new JacksonMessageParser(new ObjectMapper());
+
+    @Test
+    public void rejectsLiteralNullBody() {
+        assertUnparseable("null");
+    }
+
+    @Test
+    public void rejectsMissingAndEmptyBodies() {
+        assertUnparseable(null);
+        assertUnparseable("");
+    }
+
+    @Test
+    public void rejectsMalformedBody() {
+        assertUnparseable("{\"actionType\":");
+    }
+
+    private void assertUnparseable(String body) {
+        ParsedMessage parsed = parser.parse(Message.builder().body(body).receiptHandle("handle").build());
+        assertThat(parsed.hasAction(), is(false));
+        assertThat(parsed.getActionType(), is(nullValue()));
+    }
+
+}
@@ -0,0 +1,43 @@
+package za.org.grassroot.graph.sqs;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentileIsWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram(100000);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        long p99 = histogram.percentile(0.99);
+        assertThat(p99, greaterThanOrEqualTo(990L));
+        assertThat(p99, lessThanOrEqualTo((long) (990 * 1.2) + 1));
+    }
+
+    @Test
+    public void emptyHistogramReturnsZero() {
+        assertEquals(0, new LatencyHistogram(10).percentile(0.99));
+    }
+
+    @Test
+    public void decayKeepsTrackingRecentLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram(100);
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10);
+        }
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(5000);
+        }
+
+        assertThat(histogram.count(), lessThanOrEqualTo(100L));
+        assertThat(histogram.percentile(0.5), greaterThanOrEqualTo(5000L));
+    }
+
+}
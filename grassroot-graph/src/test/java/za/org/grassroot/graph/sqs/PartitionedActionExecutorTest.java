@@ -0,0 +1,173 @@
+package za.org.grassroot.graph.sqs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import za.org.grassroot.graph.domain.Actor;
+import za.org.grassroot.graph.domain.enums.ActorType;
+import za.org.grassroot.graph.domain.enums.GraphEntityType;
+import za.org.grassroot.graph.domain.enums.GrassrootRelationship;
+import za.org.grassroot.graph.dto.ActionType;
+import za.org.grassroot.graph.dto.IncomingDataObject;
+import za.org.grassroot.graph.dto.IncomingGraphAction;
+import za.org.grassroot.graph.dto.IncomingRelationship;
+import za.org.grassroot.graph.services.IncomingActionProcessor;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PartitionedActionExecutorTest {
+
+    private RecordingProcessor processor;
+    private PartitionedActionExecutor executor;
+
+    @Before
+    public void setUp() {
+        processor = new RecordingProcessor();
+        executor = new PartitionedActionExecutor(processor);
+        ReflectionTestUtils.setField(executor, "maxOperations", 5L);
+        ReflectionTestUtils.setField(executor, "laneCount", 1);
+    }
+
+    private void start(boolean coalesce, long windowMillis) {
+        ReflectionTestUtils.setField(executor, "coalesce", coalesce);
+        ReflectionTestUtils.setField(executor, "windowMillis", windowMillis);
+        ReflectionTestUtils.invokeMethod(executor, "init");
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(executor, "shutdown");
+    }
+
+    @Test
+    public void actionsWithinWindowAreWrittenTogether() {
+        start(true, 500);
+        List<Mono<Boolean>> results = IntStream.range(0, 3)
+                .mapToObj(i -> executor.submit(action("ok-" + i))).collect(Collectors.toList());
+
+        results.forEach(result -> assertThat(result.block(Duration.ofSeconds(5)), is(true)));
+        assertThat(processor.batchSizes, contains(3));
+    }
+
+    @Test
+    public void reachingMaxOperationsFlushesWithoutWaiting() {
+        start(true, 60_000);
+        List<Mono<Boolean>> results = IntStream.range(0, 5)
+                .mapToObj(i -> executor.submit(action("ok-" + i))).collect(Collectors.toList());
+
+        results.forEach(result -> assertThat(result.block(Duration.ofSeconds(5)), is(true)));
+        assertThat(processor.batchSizes, contains(5));
+    }
+
+    @Test
+    public void eachActionGetsItsOwnResult() {
+        start(true, 500);
+        Mono<Boolean> first = executor.submit(action("ok-first"));
+        Mono<Boolean> failing = executor.submit(action("fail"));
+        Mono<Boolean> last = executor.submit(action("ok-last"));
+
+        assertThat(first.block(Duration.ofSeconds(5)), is(true));
+        assertThat(failing.block(Duration.ofSeconds(5)), is(false));
+        assertThat(last.block(Duration.ofSeconds(5)), is(true));
+    }
+
+    @Test
+    public void actionsOnOneEntityStayInOrderAcrossLanes() {
+        ReflectionTestUtils.setField(executor, "laneCount", 4);
+        start(false, 0);
+        List<Mono<Boolean>> results = IntStream.range(0, 100)
+                .mapToObj(i -> executor.submit(action("ok-" + (i % 2 == 0 ? "even" : "odd"), i)))
+                .collect(Collectors.toList());
+
+        results.forEach(result -> assertThat(result.block(Duration.ofSeconds(5)), is(true)));
+        assertThat(processor.sequencesFor("ok-even"), is(IntStream.range(0, 50).map(i -> i * 2).boxed()
+                .collect(Collectors.toList())));
+        assertThat(processor.sequencesFor("ok-odd"), is(IntStream.range(0, 50).map(i -> i * 2 + 1).boxed()
+                .collect(Collectors.toList())));
+    }
+
+    @Test
+    public void actionAcrossLanesStaysInOrderWithEachOfThem() {
+        ReflectionTestUtils.setField(executor, "laneCount", 4);
+        start(false, 0);
+        String tail = "ok-tail";
+        String head = IntStream.range(0, 100).mapToObj(i -> "ok-head-" + i)
+                .filter(uid -> Math.floorMod(uid.hashCode(), 4) != Math.floorMod(tail.hashCode(), 4))
+                .findFirst().orElseThrow(IllegalStateException::new);
+
+        IncomingGraphAction relationship = new IncomingGraphAction("slow", ActionType.CREATE_RELATIONSHIP,
+                null, null, null);
+        relationship.addRelationship(new IncomingRelationship(tail, GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(),
+                head, GraphEntityType.ACTOR, ActorType.INDIVIDUAL.name(), GrassrootRelationship.Type.PARTICIPATES));
+        Mono<Boolean> first = executor.submit(relationship);
+        Mono<Boolean> onHead = executor.submit(action(head, 1));
+
+        assertThat(first.block(Duration.ofSeconds(5)), is(true));
+        assertThat(onHead.block(Duration.ofSeconds(5)), is(true));
+        // were the relationship on its tail's lane only, the action on its head would overtake it while it was slow
+        assertThat(processor.processed.get(0), is(relationship));
+        assertThat(processor.uid(processor.processed.get(1)), is(head));
+    }
+
+    private IncomingGraphAction action(String uid) {
+        return action(uid, 0);
+    }
+
+    // the sequence number rides along as the acting user, as only the entity uid picks the lane
+    private IncomingGraphAction action(String uid, int sequence) {
+        IncomingGraphAction action = new IncomingGraphAction(String.valueOf(sequence), ActionType.CREATE_ENTITY,
+                null, null, null);
+        action.addDataObject(new IncomingDataObject(GraphEntityType.ACTOR, new Actor(ActorType.INDIVIDUAL, uid)));
+        return action;
+    }
+
+    private static class RecordingProcessor implements IncomingActionProcessor {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        final List<IncomingGraphAction> processed = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public Mono<Boolean> processIncomingAction(IncomingGraphAction action) {
+            if ("slow".equals(action.getActorPlatformId())) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            processed.add(action);
+            return Mono.just(!uid(action).startsWith("fail"));
+        }
+
+        @Override
+        public Mono<List<Boolean>> processIncomingActions(List<IncomingGraphAction> actions) {
+            batchSizes.add(actions.size());
+            processed.addAll(actions);
+            return Mono.just(actions.stream().map(action -> !uid(action).startsWith("fail"))
+                    .collect(Collectors.toList()));
+        }
+
+        List<Integer> sequencesFor(String uid) {
+            synchronized (processed) {
+                return processed.stream().filter(action -> uid(action).equals(uid))
+                        .map(action -> Integer.valueOf(action.getActorPlatformId())).collect(Collectors.toList());
+            }
+        }
+
+        private String uid(IncomingGraphAction action) {
+            return action.getDataObjects() == null ? action.getRelationships().get(0).getTailEntityPlatformId()
+                    : action.getDataObjects().get(0).getGraphEntity().getPlatformUid();
+        }
+    }
+
+}
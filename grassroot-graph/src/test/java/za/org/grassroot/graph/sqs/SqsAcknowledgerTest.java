@@ -0,0 +1,58 @@
+package za.org.grassroot.graph.sqs;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class SqsAcknowledgerTest {
+
+    private SqsQueueClient queueClient;
+    private SqsAcknowledger acknowledger;
+
+    @Before
+    public void setUp() {
+        queueClient = mock(SqsQueueClient.class);
+        acknowledger = new SqsAcknowledger(queueClient);
+        // a long window, so nothing is flushed until shutdown
+        ReflectionTestUtils.setField(acknowledger, "flushWindowMillis", 60000L);
+        ReflectionTestUtils.setField(acknowledger, "maxAttempts", 3);
+        ReflectionTestUtils.invokeMethod(acknowledger, "init");
+    }
+
+    @Test
+    public void retriesQueuedEntriesOnShutdown() throws Exception {
+        BatchResultErrorEntry failure = BatchResultErrorEntry.builder().id("0").senderFault(false).code("InternalError").build();
+        when(queueClient.deleteBatch(anyList())).thenReturn(Collections.singletonList(failure)).thenReturn(Collections.emptyList());
+        ReflectionTestUtils.setField(acknowledger, "flushWindowMillis", 10L);
+
+        CompletableFuture<Boolean> result = acknowledger.delete("handle");
+        ReflectionTestUtils.invokeMethod(acknowledger, "shutdown");
+
+        assertThat(result.get(1, TimeUnit.SECONDS), is(true));
+        verify(queueClient, times(2)).deleteBatch(anyList());
+    }
+
+    @Test
+    public void completesEntriesThatRunOutOfAttemptsOnShutdown() throws Exception {
+        BatchResultErrorEntry failure = BatchResultErrorEntry.builder().id("0").senderFault(false).code("InternalError").build();
+        when(queueClient.changeVisibilityBatch(anyList())).thenReturn(Collections.singletonList(failure));
+        ReflectionTestUtils.setField(acknowledger, "flushWindowMillis", 10L);
+
+        CompletableFuture<Boolean> result = acknowledger.changeVisibility("handle", 30);
+        ReflectionTestUtils.invokeMethod(acknowledger, "shutdown");
+
+        assertThat(result.get(1, TimeUnit.SECONDS), is(false));
+        verify(queueClient, times(3)).changeVisibilityBatch(anyList());
+    }
+
+}